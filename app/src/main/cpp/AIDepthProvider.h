@@ -2,7 +2,8 @@
 #define _AI_DEPTH_PROVIDER_H_
 
 #include "IDepthProvider.h"
-#include <mutex>
+#include "DepthTripleBuffer.h"
+#include <atomic>
 #include <vector>
 
 class AIDepthProvider : public IDepthProvider {
@@ -10,10 +11,11 @@ public:
     AIDepthProvider();
     ~AIDepthProvider() override;
 
-    void init(VkDevice device, VkQueue queue, VkPhysicalDeviceMemoryProperties memoryProperties, uint32_t queueFamilyIndex) override;
+    void init(VkDevice device, VkQueue queue, VkPhysicalDeviceMemoryProperties memoryProperties, uint32_t queueFamilyIndex, uint32_t frameCount) override;
     void updateData(uint8_t *data, size_t width, size_t height) override;
-    bool updateTexture() override;
-    VulkanTexture* getTexture() override;
+    bool updateTexture(uint32_t frameIndex) override;
+    void recordCommands(VkCommandBuffer cmdBuffer, uint32_t frameIndex) override;
+    VulkanTexture* getTexture(uint32_t frameIndex) override;
     void destroy() override;
 
 private:
@@ -22,19 +24,21 @@ private:
     VkPhysicalDeviceMemoryProperties m_memoryProperties;
     uint32_t m_queueFamilyIndex;
 
-    VulkanTexture m_texture{};
-    bool m_isInitialized = false;
-    std::mutex m_mutex;
+    // Written only once the frame's fence signaled, so uploads never race GPU reads
+    struct DepthFrame {
+        VulkanTexture texture;
+        uint64_t sequence; // Mask the texture holds, 0 for the initial white one
+        bool pendingTransition; // Created since the frame was last recorded
+    };
+    std::vector<DepthFrame> m_frames;
+    std::atomic<bool> m_isInitialized{false};
 
-    std::vector<uint8_t> m_stagingBuffer;
-    size_t m_stagingWidth = 0;
-    size_t m_stagingHeight = 0;
-    bool m_hasNewData = false;
+    DepthTripleBuffer m_masks;
 
     VkResult allocateMemoryTypeFromProperties(uint32_t typeBits, VkFlags requirements_mask, uint32_t *typeIndex);
     void createTexture(size_t width, size_t height, VulkanTexture* texture);
     void deleteTexture(VulkanTexture* texture);
-    void transitionImageLayout(VkImage image, VkImageLayout oldLayout, VkImageLayout newLayout);
+    void transitionImageLayout(VkCommandBuffer commandBuffer, VkImage image, VkImageLayout oldLayout, VkImageLayout newLayout);
 };
 
 #endif //_AI_DEPTH_PROVIDER_H_
@@ -0,0 +1,64 @@
+#ifndef _DEPTH_TRIPLE_BUFFER_H_
+#define _DEPTH_TRIPLE_BUFFER_H_
+
+#include <atomic>
+#include <cstdint>
+#include <cstring>
+#include <vector>
+
+// Hands depth masks from the thread producing them to the render thread without a lock.
+//
+// Of the three slots the producer owns one and the consumer one, the third holds the latest
+// published mask. Publishing swaps the producer's slot with the latest, acquiring swaps the
+// consumer's slot with it when something newer was published. Neither side ever waits for the
+// other, a mask the consumer did not pick up in time is overwritten by the next one.
+// Single producer, single consumer.
+class DepthTripleBuffer {
+public:
+    struct Slot {
+        std::vector<uint8_t> data;
+        size_t width = 0;
+        size_t height = 0;
+        uint64_t sequence = 0; // Increases with every published mask, 0 before the first
+    };
+
+    // Producer: copies a width x height mask into its slot and publishes it
+    void publish(const uint8_t *data, size_t width, size_t height) {
+        Slot &slot = m_slots[m_write];
+        size_t size = width * height;
+        if (slot.data.size() < size) {
+            slot.data.resize(size);
+        }
+        memcpy(slot.data.data(), data, size);
+        slot.width = width;
+        slot.height = height;
+        slot.sequence = ++m_published;
+
+        // Release hands the slot contents to the consumer, acquire gets back the one it left
+        uint8_t previous = m_latest.exchange(m_write | kNewBit, std::memory_order_acq_rel);
+        m_write = previous & kIndexMask;
+    }
+
+    // Consumer: the newest published mask, or nullptr before the first. Valid until the next
+    // call.
+    const Slot *acquire() {
+        if (m_latest.load(std::memory_order_relaxed) & kNewBit) {
+            uint8_t previous = m_latest.exchange(m_read, std::memory_order_acq_rel);
+            m_read = previous & kIndexMask;
+        }
+        const Slot &slot = m_slots[m_read];
+        return slot.sequence ? &slot : nullptr;
+    }
+
+private:
+    static const uint8_t kIndexMask = 0x3;
+    static const uint8_t kNewBit = 0x4; // Set in m_latest until the consumer took the slot
+
+    Slot m_slots[3];
+    uint8_t m_write = 0;      // Producer only
+    uint64_t m_published = 0; // Producer only
+    uint8_t m_read = 1;       // Consumer only
+    std::atomic<uint8_t> m_latest{2};
+};
+
+#endif //_DEPTH_TRIPLE_BUFFER_H_
@@ -43,6 +43,8 @@ void GLVideoRendererYUV420::init(ANativeWindow *window, AAssetManager *assetMana
 }
 
 void GLVideoRendererYUV420::render() {
+    stage_timer timer(m_stats, kStageRender);
+
     glViewport(0, 0, m_surfaceWidth, m_surfaceHeight);
     glClear(GL_COLOR_BUFFER_BIT | GL_DEPTH_BUFFER_BIT);
     glClearColor(0.0f, 0.0f, 0.0f, 1.0f);
@@ -81,7 +83,26 @@ void GLVideoRendererYUV420::updateFrame(const video_frame &frame) {
         }
     }
 
-    if (m_frameWidth / 2 == frame.stride_uv) {
+    if (frame.pixel_stride_uv != 1) {
+        // Interleaved chroma, pick every |pixel_stride_uv| byte of each row.
+        uint8_t *pSrcU = frame.u;
+        uint8_t *pSrcV = frame.v;
+        uint8_t *pDstU = m_pDataU;
+        uint8_t *pDstV = m_pDataV;
+
+        for (int h = 0; h < m_frameHeight / 2; h++) {
+            for (int w = 0; w < m_frameWidth / 2; w++) {
+                pDstU[w] = pSrcU[w * frame.pixel_stride_uv];
+                pDstV[w] = pSrcV[w * frame.pixel_stride_uv];
+            }
+
+            pDstU += m_frameWidth / 2;
+            pDstV += m_frameWidth / 2;
+
+            pSrcU += frame.stride_uv;
+            pSrcV += frame.stride_uv;
+        }
+    } else if (m_frameWidth / 2 == frame.stride_uv) {
         memcpy(m_pDataU, frame.u, m_sizeU);
         memcpy(m_pDataV, frame.v, m_sizeV);
     } else {
@@ -107,18 +128,13 @@ void GLVideoRendererYUV420::updateFrame(const video_frame &frame) {
 
 void GLVideoRendererYUV420::draw(uint8_t *buffer, size_t length, size_t width, size_t height,
                                  float rotation, bool mirror) {
+    draw(packedFrame(buffer, width, height), rotation, mirror);
+}
+
+void GLVideoRendererYUV420::draw(const video_frame &frame, float rotation, bool mirror) {
     m_rotation = rotation;
     m_mirror = mirror;
 
-    video_frame frame;
-    frame.width = width;
-    frame.height = height;
-    frame.stride_y = width;
-    frame.stride_uv = width / 2;
-    frame.y = buffer;
-    frame.u = buffer + width * height;
-    frame.v = buffer + width * height * 5 / 4;
-
     updateFrame(frame);
 }
 
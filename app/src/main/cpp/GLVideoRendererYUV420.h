@@ -17,6 +17,8 @@ public:
 
     void draw(uint8_t *buffer, size_t length, size_t width, size_t height, float rotation, bool mirror) override;
 
+    void draw(const video_frame &frame, float rotation, bool mirror) override;
+
     void setParameters(uint32_t params) override;
 
     uint32_t getParameters() override;
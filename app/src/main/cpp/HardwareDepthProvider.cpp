@@ -13,69 +13,85 @@ HardwareDepthProvider::~HardwareDepthProvider() {
     destroy();
 }
 
-void HardwareDepthProvider::init(VkDevice device, VkQueue queue, VkPhysicalDeviceMemoryProperties memoryProperties, uint32_t queueFamilyIndex) {
+void HardwareDepthProvider::init(VkDevice device, VkQueue queue, VkPhysicalDeviceMemoryProperties memoryProperties, uint32_t queueFamilyIndex, uint32_t frameCount) {
     m_device = device;
     m_queue = queue;
     m_memoryProperties = memoryProperties;
     m_queueFamilyIndex = queueFamilyIndex;
 
-    createTexture(1, 1, &m_texture);
-    if (m_texture.mapped) {
-        memset(m_texture.mapped, 255, 1);
+    m_frames.resize(frameCount);
+    for (auto &frame : m_frames) {
+        createTexture(1, 1, &frame.texture);
+        if (frame.texture.mapped) {
+            memset(frame.texture.mapped, 255, 1);
+        }
+        frame.sequence = 0;
+        frame.pendingTransition = true;
     }
+
     m_isInitialized = true;
 }
 
 void HardwareDepthProvider::destroy() {
-    std::lock_guard<std::mutex> lock(m_mutex);
-    if (m_isInitialized) {
-        deleteTexture(&m_texture);
-        m_isInitialized = false;
+    if (m_isInitialized.exchange(false)) {
+        for (auto &frame : m_frames) {
+            deleteTexture(&frame.texture);
+        }
+        m_frames.clear();
     }
 }
 
-VulkanTexture* HardwareDepthProvider::getTexture() {
-    return &m_texture;
+VulkanTexture* HardwareDepthProvider::getTexture(uint32_t frameIndex) {
+    return &m_frames[frameIndex].texture;
 }
 
 void HardwareDepthProvider::updateData(uint8_t *data, size_t width, size_t height) {
-    std::lock_guard<std::mutex> lock(m_mutex);
     if (!m_isInitialized) return;
 
-    size_t size = width * height;
-    if (m_stagingBuffer.size() < size) {
-        m_stagingBuffer.resize(size);
-    }
-    memcpy(m_stagingBuffer.data(), data, size);
-    m_stagingWidth = width;
-    m_stagingHeight = height;
-    m_hasNewData = true;
+    // Lands in a slot the render thread is not reading, no waiting on either side
+    m_masks.publish(data, width, height);
 }
 
-bool HardwareDepthProvider::updateTexture() {
-    std::lock_guard<std::mutex> lock(m_mutex);
-    if (!m_isInitialized || !m_hasNewData) return false;
+bool HardwareDepthProvider::updateTexture(uint32_t frameIndex) {
+    if (!m_isInitialized || frameIndex >= m_frames.size()) return false;
+
+    const DepthTripleBuffer::Slot *mask = m_masks.acquire();
+    DepthFrame &frame = m_frames[frameIndex];
+    if (mask == nullptr || mask->sequence == frame.sequence) return false;
 
     bool textureRecreated = false;
-    if (m_texture.width != m_stagingWidth || m_texture.height != m_stagingHeight) {
-        deleteTexture(&m_texture);
-        createTexture(m_stagingWidth, m_stagingHeight, &m_texture);
+    if (frame.texture.width != mask->width || frame.texture.height != mask->height) {
+        // Only this frame's set points at it, and the GPU is done with this frame
+        deleteTexture(&frame.texture);
+        createTexture(mask->width, mask->height, &frame.texture);
+        frame.pendingTransition = true;
         textureRecreated = true;
     }
 
-    if (m_texture.mapped) {
-        uint8_t *dst = (uint8_t *) m_texture.mapped;
-        uint8_t *src = m_stagingBuffer.data();
-        for (size_t i = 0; i < m_texture.height; ++i) {
-            memcpy(dst, src + i * m_texture.width, m_texture.width);
-            dst += m_texture.layout.rowPitch;
+    if (frame.texture.mapped) {
+        uint8_t *dst = (uint8_t *) frame.texture.mapped;
+        const uint8_t *src = mask->data.data();
+        for (size_t i = 0; i < frame.texture.height; ++i) {
+            memcpy(dst, src + i * frame.texture.width, frame.texture.width);
+            dst += frame.texture.layout.rowPitch;
         }
     }
 
-    m_hasNewData = false;
+    frame.sequence = mask->sequence;
     return textureRecreated;
 }
 
+void HardwareDepthProvider::recordCommands(VkCommandBuffer cmdBuffer, uint32_t frameIndex) {
+    if (!m_isInitialized || frameIndex >= m_frames.size()) return;
+
+    DepthFrame &frame = m_frames[frameIndex];
+    if (frame.pendingTransition) {
+        // Part of the fenced frame submit, the render thread never waits for it
+        transitionImageLayout(cmdBuffer, frame.texture.image, VK_IMAGE_LAYOUT_PREINITIALIZED, VK_IMAGE_LAYOUT_GENERAL);
+        frame.pendingTransition = false;
+    }
+}
+
 void HardwareDepthProvider::createTexture(size_t width, size_t height, VulkanTexture* texture) {
     texture->width = width;
     texture->height = height;
@@ -127,7 +143,7 @@ void HardwareDepthProvider::createTexture(size_t width, size_t height, VulkanTex
     VkImageSubresource subres = {VK_IMAGE_ASPECT_COLOR_BIT, 0, 0};
     vkGetImageSubresourceLayout(m_device, texture->image, &subres, &texture->layout);
 
-    transitionImageLayout(texture->image, VK_IMAGE_LAYOUT_PREINITIALIZED, VK_IMAGE_LAYOUT_GENERAL);
+    // Left PREINITIALIZED until recordCommands moves it to GENERAL in the frame's command buffer
     texture->imageLayout = VK_IMAGE_LAYOUT_GENERAL;
 
     VkImageViewCreateInfo viewInfo = {
@@ -188,34 +204,7 @@ VkResult HardwareDepthProvider::allocateMemoryTypeFromProperties(uint32_t typeBi
     return VK_ERROR_MEMORY_MAP_FAILED;
 }
 
-void HardwareDepthProvider::transitionImageLayout(VkImage image, VkImageLayout oldLayout, VkImageLayout newLayout) {
-    VkCommandPoolCreateInfo poolInfo = {
-        .sType = VK_STRUCTURE_TYPE_COMMAND_POOL_CREATE_INFO,
-        .pNext = nullptr,
-        .flags = 0,
-        .queueFamilyIndex = m_queueFamilyIndex,
-    };
-    VkCommandPool commandPool;
-    vkCreateCommandPool(m_device, &poolInfo, nullptr, &commandPool);
-
-    VkCommandBufferAllocateInfo allocInfo = {
-        .sType = VK_STRUCTURE_TYPE_COMMAND_BUFFER_ALLOCATE_INFO,
-        .pNext = nullptr,
-        .commandPool = commandPool,
-        .level = VK_COMMAND_BUFFER_LEVEL_PRIMARY,
-        .commandBufferCount = 1,
-    };
-    VkCommandBuffer commandBuffer;
-    vkAllocateCommandBuffers(m_device, &allocInfo, &commandBuffer);
-
-    VkCommandBufferBeginInfo beginInfo = {
-        .sType = VK_STRUCTURE_TYPE_COMMAND_BUFFER_BEGIN_INFO,
-        .pNext = nullptr,
-        .flags = VK_COMMAND_BUFFER_USAGE_ONE_TIME_SUBMIT_BIT,
-        .pInheritanceInfo = nullptr,
-    };
-    vkBeginCommandBuffer(commandBuffer, &beginInfo);
-
+void HardwareDepthProvider::transitionImageLayout(VkCommandBuffer commandBuffer, VkImage image, VkImageLayout oldLayout, VkImageLayout newLayout) {
     VkImageMemoryBarrier barrier = {
         .sType = VK_STRUCTURE_TYPE_IMAGE_MEMORY_BARRIER,
         .pNext = nullptr,
@@ -245,24 +234,4 @@ void HardwareDepthProvider::transitionImageLayout(VkImage image, VkImageLayout o
     }
 
     vkCmdPipelineBarrier(commandBuffer, sourceStage, destinationStage, 0, 0, nullptr, 0, nullptr, 1, &barrier);
-
-    vkEndCommandBuffer(commandBuffer);
-
-    VkSubmitInfo submitInfo = {
-        .sType = VK_STRUCTURE_TYPE_SUBMIT_INFO,
-        .pNext = nullptr,
-        .waitSemaphoreCount = 0,
-        .pWaitSemaphores = nullptr,
-        .pWaitDstStageMask = nullptr,
-        .commandBufferCount = 1,
-        .pCommandBuffers = &commandBuffer,
-        .signalSemaphoreCount = 0,
-        .pSignalSemaphores = nullptr,
-    };
-
-    vkQueueSubmit(m_queue, 1, &submitInfo, VK_NULL_HANDLE);
-    vkQueueWaitIdle(m_queue);
-
-    vkFreeCommandBuffers(m_device, commandPool, 1, &commandBuffer);
-    vkDestroyCommandPool(m_device, commandPool, nullptr);
 }
@@ -9,18 +9,23 @@ class IDepthProvider {
 public:
     virtual ~IDepthProvider() = default;
 
-    // Initialize with Vulkan device and memory properties
-    virtual void init(VkDevice device, VkQueue queue, VkPhysicalDeviceMemoryProperties memoryProperties, uint32_t queueFamilyIndex) = 0;
+    // Initialize with Vulkan device and memory properties, one texture per frame in flight
+    virtual void init(VkDevice device, VkQueue queue, VkPhysicalDeviceMemoryProperties memoryProperties, uint32_t queueFamilyIndex, uint32_t frameCount) = 0;
 
-    // Update the depth data (called from JNI)
+    // Update the depth data (called from JNI), never waits for the render thread
     virtual void updateData(uint8_t *data, size_t width, size_t height) = 0;
 
-    // Process/Upload texture (called from Render Thread)
-    // Returns true if texture view changed (descriptor update needed)
-    virtual bool updateTexture() = 0;
+    // Upload the newest data into the texture of frameIndex (called from Render Thread once
+    // that frame's fence signaled, so the GPU no longer samples it). Never waits for JNI.
+    // Returns true if that texture view changed (descriptor update needed)
+    virtual bool updateTexture(uint32_t frameIndex) = 0;
 
-    // Get the current depth texture to bind in descriptor set
-    virtual VulkanTexture* getTexture() = 0;
+    // Record what the texture of frameIndex needs before it is sampled, such as its initial
+    // layout transition, into that frame's command buffer (called from Render Thread)
+    virtual void recordCommands(VkCommandBuffer cmdBuffer, uint32_t frameIndex) = 0;
+
+    // Get the depth texture of frameIndex to bind in that frame's descriptor set
+    virtual VulkanTexture* getTexture(uint32_t frameIndex) = 0;
 
     // Clean up resources
     virtual void destroy() = 0;
@@ -0,0 +1,116 @@
+#ifndef _H_PIPELINE_STATS_
+#define _H_PIPELINE_STATS_
+
+#include <atomic>
+#include <cstddef>
+#include <cstdint>
+#include <ctime>
+
+// Native stages, indices match Stage.getNativeIndex() on the Java side.
+enum {
+    kStageDraw, kStageRender, kStageUpload, kStageGpu, kStageCount
+};
+
+// Lock free latency histogram in microseconds, same bucket layout as LatencyHistogram.java:
+// each power of two is split into 16 linear sub buckets. Recording only does relaxed atomic
+// updates, so it is safe on the render thread while another thread reads.
+struct stage_histogram {
+    static constexpr int kSubBucketBits = 4;
+    static constexpr int kSubBucketCount = 1 << kSubBucketBits;
+    static constexpr int kMaxExponent = 31;
+    static constexpr int kBucketCount = (kMaxExponent - kSubBucketBits + 1) * kSubBucketCount
+                                        + kSubBucketCount;
+
+    std::atomic<uint64_t> counts[kBucketCount];
+    std::atomic<uint64_t> count;
+    std::atomic<uint64_t> sum;
+    std::atomic<uint64_t> max;
+    std::atomic<uint64_t> drops;
+
+    stage_histogram() : count(0), sum(0), max(0), drops(0) {
+        for (auto &bucket : counts) bucket.store(0, std::memory_order_relaxed);
+    }
+
+    static int bucketOf(uint64_t micros) {
+        if (micros < kSubBucketCount) return (int) micros;
+        int exponent = 63 - __builtin_clzll(micros);
+        if (exponent > kMaxExponent) return kBucketCount - 1;
+        int shift = exponent - kSubBucketBits;
+        return shift * kSubBucketCount + (int) (micros >> shift);
+    }
+
+    void record(uint64_t nanos) {
+        uint64_t micros = nanos / 1000;
+        counts[bucketOf(micros)].fetch_add(1, std::memory_order_relaxed);
+        count.fetch_add(1, std::memory_order_relaxed);
+        sum.fetch_add(micros, std::memory_order_relaxed);
+
+        uint64_t current = max.load(std::memory_order_relaxed);
+        while (micros > current &&
+               !max.compare_exchange_weak(current, micros, std::memory_order_relaxed)) {
+        }
+    }
+
+    // Copies the buckets and {count, sum, max, drops}, clearing them when reset is set.
+    void read(uint64_t *outCounts, uint64_t *outTotals, bool reset) {
+        for (int i = 0; i < kBucketCount; i++) {
+            outCounts[i] = reset ? counts[i].exchange(0, std::memory_order_relaxed)
+                                 : counts[i].load(std::memory_order_relaxed);
+        }
+        std::atomic<uint64_t> *totals[] = {&count, &sum, &max, &drops};
+        for (int i = 0; i < 4; i++) {
+            outTotals[i] = reset ? totals[i]->exchange(0, std::memory_order_relaxed)
+                                 : totals[i]->load(std::memory_order_relaxed);
+        }
+    }
+};
+
+class PipelineStats {
+public:
+    // Same clock as System.nanoTime()
+    static uint64_t now() {
+        timespec ts{};
+        clock_gettime(CLOCK_MONOTONIC, &ts);
+        return (uint64_t) ts.tv_sec * 1000000000ull + (uint64_t) ts.tv_nsec;
+    }
+
+    void record(int stage, uint64_t startNs) {
+        m_stages[stage].record(now() - startNs);
+    }
+
+    // For durations not measured on this clock, like GPU timestamps
+    void recordDuration(int stage, uint64_t nanos) {
+        m_stages[stage].record(nanos);
+    }
+
+    void recordDrop(int stage) {
+        m_stages[stage].drops.fetch_add(1, std::memory_order_relaxed);
+    }
+
+    bool read(int stage, uint64_t *counts, uint64_t *totals, bool reset) {
+        if (stage < 0 || stage >= kStageCount) return false;
+        m_stages[stage].read(counts, totals, reset);
+        return true;
+    }
+
+private:
+    stage_histogram m_stages[kStageCount];
+};
+
+// Records the lifetime of the scope as one sample of a stage.
+class stage_timer {
+public:
+    stage_timer(PipelineStats &stats, int stage)
+            : m_stats(stats), m_stage(stage), m_start(PipelineStats::now()) {}
+
+    ~stage_timer() {
+        m_stats.record(m_stage, m_start);
+    }
+
+private:
+    PipelineStats &m_stats;
+    int m_stage;
+    uint64_t m_start;
+};
+
+#endif // _H_PIPELINE_STATS_
@@ -2,6 +2,8 @@
 #include "Log.h"
 
 #include <cassert>
+#include <cstdio>
+#include <cstring>
 #include <vector>
 
 bool createShaderModuleFromAsset(VkDevice device, const char *shaderFilePath,
@@ -27,3 +29,89 @@ bool createShaderModuleFromAsset(VkDevice device, const char *shaderFilePath,
     CALL_VK_RET(vkCreateShaderModule(device, &shaderDesc, nullptr, shaderModule))
     return true;
 }
+
+namespace {
+    // Written in front of the driver's data, which carries no driver version or length of its own
+    struct pipeline_cache_file_header {
+        uint32_t magic;
+        uint32_t driverVersion;
+        uint64_t dataSize;
+    };
+
+    const uint32_t kPipelineCacheMagic = 0x56504331; // "VPC1"
+
+    // Layout of VK_PIPELINE_CACHE_HEADER_VERSION_ONE at the start of the driver's data
+    const size_t kCacheHeaderSize = 16 + VK_UUID_SIZE;
+
+    uint32_t readU32(const uint8_t *data) {
+        uint32_t value;
+        memcpy(&value, data, sizeof(value));
+        return value;
+    }
+
+    bool isCompatible(const std::vector<uint8_t> &data,
+                      const VkPhysicalDeviceProperties &properties) {
+        if (data.size() < kCacheHeaderSize) return false;
+        return readU32(&data[0]) >= kCacheHeaderSize
+               && readU32(&data[4]) == VK_PIPELINE_CACHE_HEADER_VERSION_ONE
+               && readU32(&data[8]) == properties.vendorID
+               && readU32(&data[12]) == properties.deviceID
+               && memcmp(&data[16], properties.pipelineCacheUUID, VK_UUID_SIZE) == 0;
+    }
+}
+
+std::vector<uint8_t> loadPipelineCache(const std::string &path,
+                                       const VkPhysicalDeviceProperties &properties) {
+    std::vector<uint8_t> data;
+    FILE *file = fopen(path.c_str(), "rb");
+    if (file == nullptr) return data;
+
+    pipeline_cache_file_header header{};
+    if (fread(&header, sizeof(header), 1, file) == 1
+        && header.magic == kPipelineCacheMagic
+        && header.driverVersion == properties.driverVersion
+        && header.dataSize < (64u << 20)) {
+        data.resize(header.dataSize);
+        if (fread(data.data(), 1, data.size(), file) != data.size()) {
+            data.clear();
+        }
+    }
+    fclose(file);
+
+    if (!data.empty() && !isCompatible(data, properties)) {
+        LOGI("Pipeline cache %s is from another driver, ignoring it", path.c_str());
+        data.clear();
+    }
+    return data;
+}
+
+bool savePipelineCache(const std::string &path, VkDevice device, VkPipelineCache cache,
+                       const VkPhysicalDeviceProperties &properties) {
+    size_t size = 0;
+    if (vkGetPipelineCacheData(device, cache, &size, nullptr) != VK_SUCCESS || size == 0) {
+        return false;
+    }
+    std::vector<uint8_t> data(size);
+    if (vkGetPipelineCacheData(device, cache, &size, data.data()) != VK_SUCCESS) return false;
+
+    std::string tmpPath = path + ".tmp";
+    FILE *file = fopen(tmpPath.c_str(), "wb");
+    if (file == nullptr) {
+        LOGE("Cannot write pipeline cache %s", tmpPath.c_str());
+        return false;
+    }
+    pipeline_cache_file_header header{
+            .magic = kPipelineCacheMagic,
+            .driverVersion = properties.driverVersion,
+            .dataSize = size,
+    };
+    bool written = fwrite(&header, sizeof(header), 1, file) == 1
+                   && fwrite(data.data(), 1, size, file) == size;
+    written = fclose(file) == 0 && written;
+    if (!written || rename(tmpPath.c_str(), path.c_str()) != 0) {
+        LOGE("Cannot write pipeline cache %s", path.c_str());
+        remove(tmpPath.c_str());
+        return false;
+    }
+    return true;
+}
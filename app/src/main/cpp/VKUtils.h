@@ -3,6 +3,9 @@
 
 #include <android/asset_manager_jni.h>
 #include <vulkan/vulkan.h>
+#include <cstdint>
+#include <string>
+#include <vector>
 
 struct VulkanTexture {
     VkSampler sampler;
@@ -19,4 +22,15 @@ struct VulkanTexture {
 bool createShaderModuleFromAsset(VkDevice device, const char *shaderFilePath,
                                  AAssetManager *assetManager, VkShaderModule *shaderModule);
 
+// Reads pipeline cache data written by savePipelineCache. Returns nothing when the file is
+// missing, truncated, or was written for another GPU, driver or cache layout, so a stale cache
+// is never handed to the driver.
+std::vector<uint8_t> loadPipelineCache(const std::string &path,
+                                       const VkPhysicalDeviceProperties &properties);
+
+// Writes the contents of cache to path, through a temporary file so a crash never leaves a
+// partial cache behind.
+bool savePipelineCache(const std::string &path, VkDevice device, VkPipelineCache cache,
+                       const VkPhysicalDeviceProperties &properties);
+
 #endif //_VK_UTILS_H_
@@ -9,18 +9,32 @@
 #include <cstring>
 #include <vulkan/vulkan.h>
 #include <vulkan/vulkan_android.h>
+#include <sys/system_properties.h>
 
 VKVideoRendererYUV420::VKVideoRendererYUV420()
         : texType{tTexY, tTexU, tTexV},
-          m_pBuffer(nullptr),
           m_indexCount(0) {
     m_deviceInfo.initialized = false;
 }
 
 VKVideoRendererYUV420::~VKVideoRendererYUV420() {
+    if (m_deviceInfo.device != VK_NULL_HANDLE) {
+        // Frames may still be in flight
+        vkDeviceWaitIdle(m_deviceInfo.device);
+    }
+    for (auto &load: m_shaderLoads) {
+        // Never collected if no frame was drawn
+        if (load.valid()) vkDestroyShaderModule(m_deviceInfo.device, load.get(), nullptr);
+    }
+    if (m_gfxPipeline.cache != VK_NULL_HANDLE) {
+        savePipelineCache();
+    }
+    deleteSyncObjects();
+    deleteTimestampQueries();
     deleteCommandPool();
     deleteGraphicsPipeline();
     deleteTextures();
+    deleteYcbcrConversion();
     deleteUniformBuffers();
     deleteBuffers();
     deleteRenderPass();
@@ -33,17 +47,12 @@ VKVideoRendererYUV420::~VKVideoRendererYUV420() {
 }
 
 void VKVideoRendererYUV420::setFilter(int filterId) {
-    if (m_filterId != filterId) {
-        m_filterId = filterId;
-        isDirty = true;
-    }
+    // Every filter pipeline exists already, the next recorded frame binds the new one
+    m_filterId.store(filterId, std::memory_order_relaxed);
 }
 
 void VKVideoRendererYUV420::setPortraitMode(bool enable) {
-    if (m_isPortrait != enable) {
-        m_isPortrait = enable;
-        isDirty = true;
-    }
+    m_isPortrait.store(enable, std::memory_order_relaxed);
 }
 
 void VKVideoRendererYUV420::setBlurStrength(float strength) {
@@ -57,7 +66,12 @@ void VKVideoRendererYUV420::updateDepthData(uint8_t *data, size_t width, size_t
 }
 
 void VKVideoRendererYUV420::setQualityParams(int samples) {
-    m_sampleCount = samples;
+    // Picked up by the next frame's uniform update, no pipeline rebuild
+    m_sampleCount.store(samples, std::memory_order_relaxed);
+}
+
+void VKVideoRendererYUV420::setCacheDir(const char *path) {
+    m_cacheDir = path;
 }
 
 void VKVideoRendererYUV420::createRenderPipeline() {
@@ -70,6 +84,8 @@ void VKVideoRendererYUV420::createRenderPipeline() {
     createProgram(nullptr, nullptr); // Create graphics pipeline
     createDescriptorSet();
     createCommandPool();
+    createSyncObjects();
+    createTimestampQueries();
 
     m_deviceInfo.initialized = true;
 }
@@ -81,6 +97,16 @@ void VKVideoRendererYUV420::init(ANativeWindow *window, AAssetManager *assetMana
 
     m_assetManager = assetManager;
 
+    // 1.1 where the loader has it, for the YCbCr conversion. A 1.0 loader rejects instances
+    // asking for more.
+    uint32_t instanceVersion = VK_MAKE_VERSION(1, 0, 0);
+    auto enumerateInstanceVersion = reinterpret_cast<PFN_vkEnumerateInstanceVersion>(
+            vkGetInstanceProcAddr(VK_NULL_HANDLE, "vkEnumerateInstanceVersion"));
+    if (enumerateInstanceVersion == nullptr ||
+        enumerateInstanceVersion(&instanceVersion) != VK_SUCCESS) {
+        instanceVersion = VK_MAKE_VERSION(1, 0, 0);
+    }
+
     VkApplicationInfo appInfo = {
             .sType = VK_STRUCTURE_TYPE_APPLICATION_INFO,
             .pNext = nullptr,
@@ -88,87 +114,115 @@ void VKVideoRendererYUV420::init(ANativeWindow *window, AAssetManager *assetMana
             .applicationVersion = VK_MAKE_VERSION(1, 0, 0),
             .pEngineName = "camera",
             .engineVersion = VK_MAKE_VERSION(1, 0, 0),
-            .apiVersion = VK_MAKE_VERSION(1, 0, 0),
+            .apiVersion = instanceVersion >= VK_MAKE_VERSION(1, 1, 0) ? VK_MAKE_VERSION(1, 1, 0)
+                                                                      : VK_MAKE_VERSION(1, 0, 0),
     };
 
     createDevice(window, &appInfo);
 
+    // Decides which shaders are loaded, so it is picked before they are
+    m_uploadMode = chooseUploadMode();
+    if (m_uploadMode == uYcbcr) {
+        createYcbcrConversion();
+    }
+
+    // Shader modules load while the swapchain is set up and the first frame arrives
+    if (!isInitialized()) {
+        loadShaderModules();
+    }
+
     m_depthProvider = std::make_unique<AIDepthProvider>();
-    m_depthProvider->init(m_deviceInfo.device, m_deviceInfo.queue, m_deviceInfo.memoryProperties, m_deviceInfo.queueFamilyIndex);
+    m_depthProvider->init(m_deviceInfo.device, m_deviceInfo.queue, m_deviceInfo.memoryProperties, m_deviceInfo.queueFamilyIndex, kMaxFramesInFlight);
 
     createSwapChain();
 }
 
 void VKVideoRendererYUV420::render() {
+    stage_timer timer(m_stats, kStageRender);
+
+    FrameResources &frame = m_frames[m_frameIndex];
+    // Only blocks when the GPU is kMaxFramesInFlight frames behind
+    CALL_VK(vkWaitForFences(m_deviceInfo.device, 1, &frame.fence, VK_TRUE, 100000000))
+    readTimestamps(frame, m_frameIndex);
+
     uint32_t nextIndex;
     // Get the framebuffer index we should draw in
     CALL_VK(vkAcquireNextImageKHR(m_deviceInfo.device, m_swapchainInfo.swapchain, UINT64_MAX,
-                                  m_render.semaphore, VK_NULL_HANDLE, &nextIndex))
-    CALL_VK(vkResetFences(m_deviceInfo.device, 1, &m_render.fence))
+                                  frame.imageAvailable, VK_NULL_HANDLE, &nextIndex))
+
+    // The GPU is done with this frame's resources, fill them for the new frame
+    {
+        stage_timer upload(m_stats, kStageUpload);
+        updateTextures(frame);
+        // Takes the newest mask without waiting for the inference thread
+        if (m_depthProvider && m_depthProvider->updateTexture(m_frameIndex)) {
+            frame.descriptorsDirty = true;
+        }
+    }
+    updateUniformBuffers(frame);
+    if (frame.descriptorsDirty) {
+        updateDescriptorSet(m_frameIndex);
+    }
+    recordCommandBuffer(m_frameIndex, nextIndex);
+    CALL_VK(vkResetFences(m_deviceInfo.device, 1, &frame.fence))
 
     VkPipelineStageFlags waitStageMask = VK_PIPELINE_STAGE_COLOR_ATTACHMENT_OUTPUT_BIT;
     VkSubmitInfo submitInfo{
             .sType = VK_STRUCTURE_TYPE_SUBMIT_INFO,
             .pNext = nullptr,
             .waitSemaphoreCount = 1,
-            .pWaitSemaphores = &m_render.semaphore,
+            .pWaitSemaphores = &frame.imageAvailable,
             .pWaitDstStageMask = &waitStageMask,
             .commandBufferCount = 1,
-            .pCommandBuffers = &m_render.cmdBuffer[nextIndex],
-            .signalSemaphoreCount = 0,
-            .pSignalSemaphores = nullptr
+            .pCommandBuffers = &frame.cmdBuffer,
+            .signalSemaphoreCount = 1,
+            .pSignalSemaphores = &m_renderFinished[nextIndex]
     };
-    CALL_VK(vkQueueSubmit(m_deviceInfo.queue, 1, &submitInfo, m_render.fence))
-    CALL_VK(vkWaitForFences(m_deviceInfo.device, 1, &m_render.fence, VK_TRUE, 100000000))
+    CALL_VK(vkQueueSubmit(m_deviceInfo.queue, 1, &submitInfo, frame.fence))
 
+    // Presentation waits on the GPU instead of the CPU waiting for the fence
     VkResult result;
     VkPresentInfoKHR presentInfo{
             .sType = VK_STRUCTURE_TYPE_PRESENT_INFO_KHR,
             .pNext = nullptr,
-            .waitSemaphoreCount = 0,
-            .pWaitSemaphores = nullptr,
+            .waitSemaphoreCount = 1,
+            .pWaitSemaphores = &m_renderFinished[nextIndex],
             .swapchainCount = 1,
             .pSwapchains = &m_swapchainInfo.swapchain,
             .pImageIndices = &nextIndex,
             .pResults = &result,
     };
     vkQueuePresentKHR(m_deviceInfo.queue, &presentInfo);
+
+    m_frameIndex = (m_frameIndex + 1) % kMaxFramesInFlight;
 }
 
 void VKVideoRendererYUV420::draw(uint8_t *buffer, size_t length, size_t width, size_t height,
                                  float rotation, bool mirror) {
-    m_pBuffer = buffer;
+    draw(packedFrame(buffer, width, height), rotation, mirror);
+}
+
+void VKVideoRendererYUV420::draw(const video_frame &frame, float rotation, bool mirror) {
+    size_t width = frame.width;
+    size_t height = frame.height;
+
+    m_frame = frame;
     m_rotation = rotation;
     m_mirror = mirror;
 
-    // Update depth texture on render thread
-    if (m_depthProvider) {
-        if (m_depthProvider->updateTexture()) {
-            updateDescriptorSet();
-        }
-    }
-
-    // Trigger full pipeline rebuild if size changes OR dirty flag (filters/portrait) is set
-    if (isInitialized() && ((m_frameWidth != width || m_frameHeight != height) || isDirty)) {
+    // Only the textures depend on the frame size. Filters and portrait mode switch pipelines
+    // when the frame is recorded, without rebuilding anything.
+    if (isInitialized() && (m_frameWidth != width || m_frameHeight != height)) {
         m_frameWidth = width;
         m_frameHeight = height;
-        isDirty = false;
 
-        // Cleanup existing pipeline resources
-        deleteUniformBuffers();
+        // Replace the textures once no frame in flight uses them
+        vkDeviceWaitIdle(m_deviceInfo.device);
         deleteTextures();
-        deleteCommandPool();
-        deleteGraphicsPipeline(); // Critical: delete old shaders/pipeline
-
-        // Recreate everything
-        createUniformBuffers();
         createTextures();
-        createProgram(nullptr, nullptr); // Critical: load new shaders based on filterId
-        createDescriptorSet();
-        createCommandPool();
-
-        // Note: We don't delete buffers/renderpass/swapchain as they depend on surface size/window,
-        // not logic changes. If frame size changes, createTextures handles image resizing.
+        for (uint32_t i = 0; i < kMaxFramesInFlight; i++) {
+            updateDescriptorSet(i);
+        }
     } else {
         m_frameWidth = width;
         m_frameHeight = height;
@@ -176,9 +230,6 @@ void VKVideoRendererYUV420::draw(uint8_t *buffer, size_t length, size_t width, s
 
     if (!isInitialized()) {
         createRenderPipeline();
-    } else {
-        updateTextures();
-        updateUniformBuffers();
     }
 
     if (isInitialized()) {
@@ -195,84 +246,341 @@ uint32_t VKVideoRendererYUV420::getParameters() {
 }
 
 bool VKVideoRendererYUV420::createTextures() {
-    for (int i = 0; i < kTextureCount; i++) {
-        loadTexture(m_pBuffer, texType[i], m_frameWidth, m_frameHeight, &textures[i],
-                    VK_IMAGE_USAGE_SAMPLED_BIT,
-                    VK_MEMORY_PROPERTY_HOST_VISIBLE_BIT);
+    const VkSamplerCreateInfo sampler{
+            .sType = VK_STRUCTURE_TYPE_SAMPLER_CREATE_INFO,
+            .pNext = nullptr,
+            .magFilter = VK_FILTER_NEAREST,
+            .minFilter = VK_FILTER_NEAREST,
+            .mipmapMode = VK_SAMPLER_MIPMAP_MODE_NEAREST,
+            .addressModeU = VK_SAMPLER_ADDRESS_MODE_REPEAT,
+            .addressModeV = VK_SAMPLER_ADDRESS_MODE_REPEAT,
+            .addressModeW = VK_SAMPLER_ADDRESS_MODE_REPEAT,
+            .mipLodBias = 0.0f,
+            .maxAnisotropy = 1,
+            .compareOp = VK_COMPARE_OP_NEVER,
+            .minLod = 0.0f,
+            .maxLod = 0.0f,
+            .borderColor = VK_BORDER_COLOR_FLOAT_OPAQUE_WHITE,
+            .unnormalizedCoordinates = VK_FALSE,
+    };
+    VkImageViewCreateInfo view{
+            .sType = VK_STRUCTURE_TYPE_IMAGE_VIEW_CREATE_INFO,
+            .pNext = nullptr,
+            .flags = 0,
+            .image = VK_NULL_HANDLE,
+            .viewType = VK_IMAGE_VIEW_TYPE_2D,
+            .format = kTextureFormat,
+            .components = {
+                    VK_COMPONENT_SWIZZLE_R, VK_COMPONENT_SWIZZLE_G,
+                    VK_COMPONENT_SWIZZLE_B, VK_COMPONENT_SWIZZLE_A},
+            .subresourceRange = {VK_IMAGE_ASPECT_COLOR_BIT, 0, 1, 0, 1},
+    };
 
-        const VkSamplerCreateInfo sampler{
-                .sType = VK_STRUCTURE_TYPE_SAMPLER_CREATE_INFO,
-                .pNext = nullptr,
-                .magFilter = VK_FILTER_NEAREST,
-                .minFilter = VK_FILTER_NEAREST,
-                .mipmapMode = VK_SAMPLER_MIPMAP_MODE_NEAREST,
-                .addressModeU = VK_SAMPLER_ADDRESS_MODE_REPEAT,
-                .addressModeV = VK_SAMPLER_ADDRESS_MODE_REPEAT,
-                .addressModeW = VK_SAMPLER_ADDRESS_MODE_REPEAT,
-                .mipLodBias = 0.0f,
-                .maxAnisotropy = 1,
-                .compareOp = VK_COMPARE_OP_NEVER,
-                .minLod = 0.0f,
-                .maxLod = 0.0f,
-                .borderColor = VK_BORDER_COLOR_FLOAT_OPAQUE_WHITE,
-                .unnormalizedCoordinates = VK_FALSE,
-        };
-        VkImageViewCreateInfo view{
-                .sType = VK_STRUCTURE_TYPE_IMAGE_VIEW_CREATE_INFO,
-                .pNext = nullptr,
-                .flags = 0,
-                .image = VK_NULL_HANDLE,
-                .viewType = VK_IMAGE_VIEW_TYPE_2D,
-                .format = kTextureFormat,
-                .components = {
-                        VK_COMPONENT_SWIZZLE_R, VK_COMPONENT_SWIZZLE_G,
-                        VK_COMPONENT_SWIZZLE_B, VK_COMPONENT_SWIZZLE_A},
-                .subresourceRange = {VK_IMAGE_ASPECT_COLOR_BIT, 0, 1, 0, 1},
-        };
+    if (m_uploadMode != uLinear) {
+        createStagingRing();
+    }
 
-        CALL_VK(vkCreateSampler(m_deviceInfo.device, &sampler, nullptr, &textures[i].sampler))
-        view.image = textures[i].image;
-        CALL_VK(vkCreateImageView(m_deviceInfo.device, &view, nullptr, &textures[i].view))
+    // One Y, U and V set per frame in flight
+    for (uint32_t frameIndex = 0; frameIndex < kMaxFramesInFlight; frameIndex++) {
+        if (m_uploadMode == uYcbcr) {
+            createYcbcrTexture(frameIndex);
+            continue;
+        }
+        for (int i = 0; i < kTextureCount; i++) {
+            VulkanTexture &texture = m_frames[frameIndex].textures[i];
+            if (m_uploadMode == uStaging) {
+                createStagedTexture(frameIndex, i, &texture);
+            } else {
+                loadTexture(texType[i], m_frameWidth, m_frameHeight, &texture,
+                            VK_IMAGE_USAGE_SAMPLED_BIT,
+                            VK_MEMORY_PROPERTY_HOST_VISIBLE_BIT);
+            }
+
+            CALL_VK(vkCreateSampler(m_deviceInfo.device, &sampler, nullptr, &texture.sampler))
+            view.image = texture.image;
+            CALL_VK(vkCreateImageView(m_deviceInfo.device, &view, nullptr, &texture.view))
+        }
     }
 
     return true;
 }
 
-bool VKVideoRendererYUV420::updateTextures() {
+VKVideoRendererYUV420::UploadMode VKVideoRendererYUV420::chooseUploadMode() const {
+    VkFormatProperties props;
+    vkGetPhysicalDeviceFormatProperties(m_deviceInfo.physicalDevice, kTextureFormat, &props);
+    bool staging = props.optimalTilingFeatures & VK_FORMAT_FEATURE_SAMPLED_IMAGE_BIT;
+    bool linear = props.linearTilingFeatures & VK_FORMAT_FEATURE_SAMPLED_IMAGE_BIT;
+
+    // Sampling optimally tiled device memory is much cheaper on mobile GPUs than linear host
+    // memory, and one multi-planar fetch cheaper than three, so the first supported mode wins.
+    // To compare them on one device:
+    // adb shell setprop debug.media.vk_upload planes (or linear)
+    char value[PROP_VALUE_MAX] = "";
+    __system_property_get("debug.media.vk_upload", value);
+    UploadMode mode;
+    if (linear && (!staging || strcmp(value, "linear") == 0)) {
+        mode = uLinear;
+    } else if (m_ycbcr.supported && strcmp(value, "planes") != 0) {
+        mode = uYcbcr;
+    } else {
+        mode = uStaging;
+    }
+    // Indexed by UploadMode
+    static const char *const modeNames[] = {
+            "staging ring, multi-planar YCbCr", "staging ring, optimal tiling", "linear",
+    };
+    LOGI("Texture upload: %s", modeNames[mode]);
+    return mode;
+}
+
+void VKVideoRendererYUV420::createStagingRing() {
+    // Planes are tightly packed, each starting at a copy friendly offset
+    const VkDeviceSize alignment = 256;
+    VkDeviceSize slotSize = 0;
+    for (int i = 0; i < kTextureCount; i++) {
+        VulkanTexture plane{};
+        setTextureSize(&plane, texType[i], m_frameWidth, m_frameHeight);
+        m_staging.planeOffset[i] = slotSize;
+        slotSize += (plane.width * plane.height + alignment - 1) / alignment * alignment;
+    }
+    m_staging.slotSize = slotSize;
+
+    createBuffer(slotSize * kMaxFramesInFlight, VK_BUFFER_USAGE_TRANSFER_SRC_BIT,
+                 VK_MEMORY_PROPERTY_HOST_VISIBLE_BIT | VK_MEMORY_PROPERTY_HOST_COHERENT_BIT,
+                 m_staging.buffer, m_staging.memory);
+    CALL_VK(vkMapMemory(m_deviceInfo.device, m_staging.memory, 0, VK_WHOLE_SIZE, 0,
+                        &m_staging.mapped))
+}
+
+void VKVideoRendererYUV420::createStagedTexture(uint32_t frameIndex, int plane,
+                                                VulkanTexture *texture) {
+    mapStagingPlane(frameIndex, plane, texture);
+    createDeviceImage(kTextureFormat, texture->width, texture->height, texture);
+}
+
+void VKVideoRendererYUV420::createYcbcrTexture(uint32_t frameIndex) {
+    FrameResources &frame = m_frames[frameIndex];
+    for (int i = 0; i < kTextureCount; i++) {
+        mapStagingPlane(frameIndex, i, &frame.textures[i]);
+    }
+
+    // The image takes the luma size, the chroma planes are half of it
+    VulkanTexture &texture = frame.textures[tTexY];
+    createDeviceImage(kYcbcrFormat, texture.width, texture.height, &texture);
+
+    VkSamplerYcbcrConversionInfo conversionInfo{
+            .sType = VK_STRUCTURE_TYPE_SAMPLER_YCBCR_CONVERSION_INFO,
+            .pNext = nullptr,
+            .conversion = m_ycbcr.conversion,
+    };
+    VkImageViewCreateInfo view{
+            .sType = VK_STRUCTURE_TYPE_IMAGE_VIEW_CREATE_INFO,
+            .pNext = &conversionInfo,
+            .flags = 0,
+            .image = texture.image,
+            .viewType = VK_IMAGE_VIEW_TYPE_2D,
+            .format = kYcbcrFormat,
+            .components = {
+                    VK_COMPONENT_SWIZZLE_IDENTITY, VK_COMPONENT_SWIZZLE_IDENTITY,
+                    VK_COMPONENT_SWIZZLE_IDENTITY, VK_COMPONENT_SWIZZLE_IDENTITY},
+            .subresourceRange = {VK_IMAGE_ASPECT_COLOR_BIT, 0, 1, 0, 1},
+    };
+    CALL_VK(vkCreateImageView(m_deviceInfo.device, &view, nullptr, &texture.view))
+
+    // Sampled through the layout's immutable sampler, which deleteTextures must not destroy
+    texture.sampler = VK_NULL_HANDLE;
+}
+
+void VKVideoRendererYUV420::createDeviceImage(VkFormat format, size_t width, size_t height,
+                                              VulkanTexture *texture) {
+    VkImageCreateInfo imageCreateInfo = {
+            .sType = VK_STRUCTURE_TYPE_IMAGE_CREATE_INFO,
+            .pNext = nullptr,
+            .flags = 0,
+            .imageType = VK_IMAGE_TYPE_2D,
+            .format = format,
+            .extent = {static_cast<uint32_t>(width), static_cast<uint32_t>(height), 1},
+            .mipLevels = 1,
+            .arrayLayers = 1,
+            .samples = VK_SAMPLE_COUNT_1_BIT,
+            .tiling = VK_IMAGE_TILING_OPTIMAL,
+            .usage = VK_IMAGE_USAGE_TRANSFER_DST_BIT | VK_IMAGE_USAGE_SAMPLED_BIT,
+            .sharingMode = VK_SHARING_MODE_EXCLUSIVE,
+            .queueFamilyIndexCount = 1,
+            .pQueueFamilyIndices = &m_deviceInfo.queueFamilyIndex,
+            .initialLayout = VK_IMAGE_LAYOUT_UNDEFINED,
+    };
+    CALL_VK(vkCreateImage(m_deviceInfo.device, &imageCreateInfo, nullptr, &texture->image))
+
+    VkMemoryRequirements memReqs;
+    vkGetImageMemoryRequirements(m_deviceInfo.device, texture->image, &memReqs);
+    VkMemoryAllocateInfo memAlloc = {
+            .sType = VK_STRUCTURE_TYPE_MEMORY_ALLOCATE_INFO,
+            .pNext = nullptr,
+            .allocationSize = memReqs.size,
+            .memoryTypeIndex = 0,
+    };
+    VK_CHECK(allocateMemoryTypeFromProperties(memReqs.memoryTypeBits,
+                                              VK_MEMORY_PROPERTY_DEVICE_LOCAL_BIT,
+                                              &memAlloc.memoryTypeIndex))
+    CALL_VK(vkAllocateMemory(m_deviceInfo.device, &memAlloc, nullptr, &texture->mem))
+    CALL_VK(vkBindImageMemory(m_deviceInfo.device, texture->image, texture->mem, 0))
+}
+
+void VKVideoRendererYUV420::mapStagingPlane(uint32_t frameIndex, int plane,
+                                            VulkanTexture *texture) {
+    setTextureSize(texture, texType[plane], m_frameWidth, m_frameHeight);
+
+    // copyTextureData writes the plane into this frame's slot of the ring, tightly packed
+    memset(&texture->layout, 0, sizeof(texture->layout));
+    texture->layout.offset = frameIndex * m_staging.slotSize + m_staging.planeOffset[plane];
+    texture->layout.rowPitch = texture->width;
+    texture->mapped = (uint8_t *) m_staging.mapped + texture->layout.offset;
+
+    // Where the upload leaves it for the fragment shader
+    texture->imageLayout = VK_IMAGE_LAYOUT_SHADER_READ_ONLY_OPTIMAL;
+}
+
+void VKVideoRendererYUV420::recordTextureUpload(VkCommandBuffer cmdBuffer,
+                                                const FrameResources &frame) const {
+    static const VkImageAspectFlags planeAspects[kTextureCount] = {
+            VK_IMAGE_ASPECT_PLANE_0_BIT, VK_IMAGE_ASPECT_PLANE_1_BIT, VK_IMAGE_ASPECT_PLANE_2_BIT,
+    };
+    // uYcbcr copies every plane into the one image, otherwise each plane has its own
+    const bool ycbcr = m_uploadMode == uYcbcr;
+    const uint32_t imageCount = ycbcr ? 1 : kTextureCount;
+
+    for (uint32_t i = 0; i < imageCount; i++) {
+        // The whole image is rewritten, its previous contents can be discarded
+        setImageLayout(cmdBuffer, frame.textures[i].image, VK_IMAGE_LAYOUT_UNDEFINED,
+                       VK_IMAGE_LAYOUT_TRANSFER_DST_OPTIMAL,
+                       VK_PIPELINE_STAGE_TOP_OF_PIPE_BIT, VK_PIPELINE_STAGE_TRANSFER_BIT);
+    }
+
     for (int i = 0; i < kTextureCount; i++) {
-        size_t offset = getBufferOffset(&textures[i], texType[i], m_frameWidth, m_frameHeight);
-        copyTextureData(&textures[i], m_pBuffer + offset);
+        const VulkanTexture &texture = frame.textures[i];
+        VkBufferImageCopy region{
+                .bufferOffset = texture.layout.offset,
+                .bufferRowLength = 0,  // tightly packed
+                .bufferImageHeight = 0,
+                .imageSubresource = {ycbcr ? planeAspects[i] : VK_IMAGE_ASPECT_COLOR_BIT, 0, 0,
+                                     1},
+                .imageOffset = {0, 0, 0},
+                .imageExtent = {static_cast<uint32_t>(texture.width),
+                                static_cast<uint32_t>(texture.height), 1},
+        };
+        vkCmdCopyBufferToImage(cmdBuffer, m_staging.buffer,
+                               ycbcr ? frame.textures[tTexY].image : texture.image,
+                               VK_IMAGE_LAYOUT_TRANSFER_DST_OPTIMAL, 1, &region);
+    }
+
+    for (uint32_t i = 0; i < imageCount; i++) {
+        setImageLayout(cmdBuffer, frame.textures[i].image, VK_IMAGE_LAYOUT_TRANSFER_DST_OPTIMAL,
+                       VK_IMAGE_LAYOUT_SHADER_READ_ONLY_OPTIMAL,
+                       VK_PIPELINE_STAGE_TRANSFER_BIT, VK_PIPELINE_STAGE_FRAGMENT_SHADER_BIT);
+    }
+}
+
+bool VKVideoRendererYUV420::updateTextures(FrameResources &frame) {
+    for (int i = 0; i < kTextureCount; i++) {
+        setTextureSize(&frame.textures[i], texType[i], m_frameWidth, m_frameHeight);
+        copyTextureData(&frame.textures[i], texType[i]);
     }
     return true;
 }
 
-void VKVideoRendererYUV420::deleteTextures() const {
-    for (auto &texture: textures) {
-        vkDestroyImageView(m_deviceInfo.device, texture.view, nullptr);
-        vkDestroyImage(m_deviceInfo.device, texture.image, nullptr);
-        vkDestroySampler(m_deviceInfo.device, texture.sampler, nullptr);
-        vkUnmapMemory(m_deviceInfo.device, texture.mem);
-        vkFreeMemory(m_deviceInfo.device, texture.mem, nullptr);
+void VKVideoRendererYUV420::deleteTextures() {
+    for (auto &frame: m_frames) {
+        for (auto &texture: frame.textures) {
+            vkDestroyImageView(m_deviceInfo.device, texture.view, nullptr);
+            vkDestroyImage(m_deviceInfo.device, texture.image, nullptr);
+            vkDestroySampler(m_deviceInfo.device, texture.sampler, nullptr);
+            if (m_uploadMode == uLinear) {
+                vkUnmapMemory(m_deviceInfo.device, texture.mem);
+            }
+            vkFreeMemory(m_deviceInfo.device, texture.mem, nullptr);
+        }
     }
+
+    if (m_staging.mapped) {
+        vkUnmapMemory(m_deviceInfo.device, m_staging.memory);
+    }
+    vkDestroyBuffer(m_deviceInfo.device, m_staging.buffer, nullptr);
+    vkFreeMemory(m_deviceInfo.device, m_staging.memory, nullptr);
+    memset(&m_staging, 0, sizeof(m_staging));
 }
 
 void VKVideoRendererYUV420::deleteRenderPass() const {
     vkDestroyRenderPass(m_deviceInfo.device, m_render.renderPass, nullptr);
 }
 
+void VKVideoRendererYUV420::loadShaderModules() {
+    // Indexed by ShaderModule, then by whether the planes are sampled as one YCbCr image
+    static const char *const shaderAssets[kShaderModuleCount][2] = {
+            {"shaders/video_frame.vert.spv",    "shaders/video_frame.vert.spv"},
+            {"shaders/bokeh_portrait.vert.spv", "shaders/bokeh_portrait.vert.spv"},
+            {"shaders/video_frame.frag.spv",    "shaders/video_frame_ycbcr.frag.spv"},
+            {"shaders/filter_grey.frag.spv",    "shaders/filter_grey_ycbcr.frag.spv"},
+            {"shaders/filter_sepia.frag.spv",   "shaders/filter_sepia_ycbcr.frag.spv"},
+            {"shaders/filter_invert.frag.spv",  "shaders/filter_invert_ycbcr.frag.spv"},
+            {"shaders/beauty_face.frag.spv",    "shaders/beauty_face_ycbcr.frag.spv"},
+            {"shaders/bokeh_portrait.frag.spv", "shaders/bokeh_portrait_ycbcr.frag.spv"},
+    };
+
+    // Reading the asset and creating the module are independent per shader
+    for (int i = 0; i < kShaderModuleCount; i++) {
+        const char *asset = shaderAssets[i][m_uploadMode == uYcbcr ? 1 : 0];
+        m_shaderLoads[i] = std::async(std::launch::async, [this, asset]() {
+            VkShaderModule module = VK_NULL_HANDLE;
+            if (!createShaderModuleFromAsset(m_deviceInfo.device, asset, m_assetManager,
+                                             &module)) {
+                LOGE("Cannot load shader %s", asset);
+                module = VK_NULL_HANDLE;
+            }
+            return module;
+        });
+    }
+}
+
 int VKVideoRendererYUV420::createProgram(const char *pVertexSource, const char *pFragmentSource) {
-    const char *filterShader = "shaders/video_frame.frag.spv";
-    switch (m_filterId) {
-        case 1: filterShader = "shaders/filter_grey.frag.spv"; break;
-        case 2: filterShader = "shaders/filter_sepia.frag.spv"; break;
-        case 3: filterShader = "shaders/filter_invert.frag.spv"; break;
-        case 4: filterShader = "shaders/beauty_face.frag.spv"; break;
-        default: filterShader = "shaders/video_frame.frag.spv"; break;
+    // Indexed by filter id
+    static const ShaderModule filterShaders[kFilterCount] = {
+            sFrameFrag, sGreyFrag, sSepiaFrag, sInvertFrag, sBeautyFrag,
+    };
+
+    if (!m_shaderLoads[0].valid()) {
+        loadShaderModules();
+    }
+    VkShaderModule modules[kShaderModuleCount];
+    bool loaded = true;
+    for (int i = 0; i < kShaderModuleCount; i++) {
+        modules[i] = m_shaderLoads[i].get();
+        loaded = loaded && modules[i] != VK_NULL_HANDLE;
     }
 
-    VkResult res = createGraphicsPipeline(&m_gfxPipeline, "shaders/video_frame.vert.spv", filterShader);
-    if (res != VK_SUCCESS) return res;
-    return createGraphicsPipeline(&m_gfxPipelineBokeh, "shaders/bokeh_portrait.vert.spv", "shaders/bokeh_portrait.frag.spv");
+    uint64_t start = PipelineStats::now();
+    createPipelineLayout();
+    VkResult res = loaded ? VK_SUCCESS : VK_ERROR_INITIALIZATION_FAILED;
+    for (int i = 0; i < kFilterCount && res == VK_SUCCESS; i++) {
+        res = createGraphicsPipeline(&m_filterPipelines[i], modules[sFrameVert],
+                                     modules[filterShaders[i]]);
+    }
+    if (res == VK_SUCCESS) {
+        res = createGraphicsPipeline(&m_bokehPipeline, modules[sBokehVert], modules[sBokehFrag]);
+    }
+
+    // We don't need the shaders anymore, we can release their memory
+    for (auto module: modules) {
+        vkDestroyShaderModule(m_deviceInfo.device, module, nullptr);
+    }
+
+    LOGI("Built %d pipelines in %.1f ms from a %s pipeline cache", kFilterCount + 1,
+         (PipelineStats::now() - start) / 1e6, m_pipelineCacheLoaded ? "saved" : "empty");
+    if (res == VK_SUCCESS && !m_pipelineCacheLoaded) {
+        // Saved right away too, the process may be killed before the renderer is destroyed
+        savePipelineCache();
+    }
+    return res;
 }
 
 void
@@ -317,6 +625,7 @@ VKVideoRendererYUV420::createDevice(ANativeWindow *platformWindow, VkApplication
 
     vkGetPhysicalDeviceMemoryProperties(m_deviceInfo.physicalDevice,
                                         &m_deviceInfo.memoryProperties);
+    m_ycbcr.supported = queryYcbcrSupport(appInfo->apiVersion);
 
     // Find a GFX queue family
     uint32_t queueFamilyCount;
@@ -350,9 +659,14 @@ VKVideoRendererYUV420::createDevice(ANativeWindow *platformWindow, VkApplication
             .pQueuePriorities = priorities,
     };
 
+    VkPhysicalDeviceSamplerYcbcrConversionFeatures ycbcrFeatures{
+            .sType = VK_STRUCTURE_TYPE_PHYSICAL_DEVICE_SAMPLER_YCBCR_CONVERSION_FEATURES,
+            .pNext = nullptr,
+            .samplerYcbcrConversion = VK_TRUE,
+    };
     VkDeviceCreateInfo deviceCreateInfo{
             .sType = VK_STRUCTURE_TYPE_DEVICE_CREATE_INFO,
-            .pNext = nullptr,
+            .pNext = m_ycbcr.supported ? &ycbcrFeatures : nullptr,
             .queueCreateInfoCount = 1,
             .pQueueCreateInfos = &queueCreateInfo,
             .enabledLayerCount = 0,
@@ -365,6 +679,112 @@ VKVideoRendererYUV420::createDevice(ANativeWindow *platformWindow, VkApplication
     CALL_VK(vkCreateDevice(m_deviceInfo.physicalDevice, &deviceCreateInfo, nullptr,
                            &m_deviceInfo.device))
     vkGetDeviceQueue(m_deviceInfo.device, 0, 0, &m_deviceInfo.queue);
+
+    if (m_ycbcr.supported) {
+        m_ycbcr.createConversion = reinterpret_cast<PFN_vkCreateSamplerYcbcrConversion>(
+                vkGetDeviceProcAddr(m_deviceInfo.device, "vkCreateSamplerYcbcrConversion"));
+        m_ycbcr.destroyConversion = reinterpret_cast<PFN_vkDestroySamplerYcbcrConversion>(
+                vkGetDeviceProcAddr(m_deviceInfo.device, "vkDestroySamplerYcbcrConversion"));
+        m_ycbcr.supported = m_ycbcr.createConversion && m_ycbcr.destroyConversion;
+    }
+}
+
+bool VKVideoRendererYUV420::queryYcbcrSupport(uint32_t apiVersion) {
+    VkPhysicalDeviceProperties properties;
+    vkGetPhysicalDeviceProperties(m_deviceInfo.physicalDevice, &properties);
+    auto getFeatures2 = reinterpret_cast<PFN_vkGetPhysicalDeviceFeatures2>(
+            vkGetInstanceProcAddr(m_deviceInfo.instance, "vkGetPhysicalDeviceFeatures2"));
+    if (apiVersion < VK_MAKE_VERSION(1, 1, 0) ||
+        properties.apiVersion < VK_MAKE_VERSION(1, 1, 0) || getFeatures2 == nullptr) {
+        return false;
+    }
+
+    VkPhysicalDeviceSamplerYcbcrConversionFeatures ycbcrFeatures{
+            .sType = VK_STRUCTURE_TYPE_PHYSICAL_DEVICE_SAMPLER_YCBCR_CONVERSION_FEATURES,
+            .pNext = nullptr,
+            .samplerYcbcrConversion = VK_FALSE,
+    };
+    VkPhysicalDeviceFeatures2 features{
+            .sType = VK_STRUCTURE_TYPE_PHYSICAL_DEVICE_FEATURES_2,
+            .pNext = &ycbcrFeatures,
+    };
+    getFeatures2(m_deviceInfo.physicalDevice, &features);
+    if (!ycbcrFeatures.samplerYcbcrConversion) {
+        return false;
+    }
+
+    VkFormatProperties props;
+    vkGetPhysicalDeviceFormatProperties(m_deviceInfo.physicalDevice, kYcbcrFormat, &props);
+    const VkFormatFeatureFlags required =
+            VK_FORMAT_FEATURE_SAMPLED_IMAGE_BIT | VK_FORMAT_FEATURE_TRANSFER_DST_BIT;
+    if ((props.optimalTilingFeatures & required) != required) {
+        return false;
+    }
+    // Camera chroma is sited like JPEG's, between the luma samples
+    if (props.optimalTilingFeatures & VK_FORMAT_FEATURE_MIDPOINT_CHROMA_SAMPLES_BIT) {
+        m_ycbcr.chromaOffset = VK_CHROMA_LOCATION_MIDPOINT;
+    } else if (props.optimalTilingFeatures & VK_FORMAT_FEATURE_COSITED_CHROMA_SAMPLES_BIT) {
+        m_ycbcr.chromaOffset = VK_CHROMA_LOCATION_COSITED_EVEN;
+    } else {
+        return false;
+    }
+    return true;
+}
+
+void VKVideoRendererYUV420::createYcbcrConversion() {
+    // Full range BT.601, the same math the three plane shaders do by hand
+    VkSamplerYcbcrConversionCreateInfo conversionCreateInfo{
+            .sType = VK_STRUCTURE_TYPE_SAMPLER_YCBCR_CONVERSION_CREATE_INFO,
+            .pNext = nullptr,
+            .format = kYcbcrFormat,
+            .ycbcrModel = VK_SAMPLER_YCBCR_MODEL_CONVERSION_YCBCR_601,
+            .ycbcrRange = VK_SAMPLER_YCBCR_RANGE_ITU_FULL,
+            .components = {
+                    VK_COMPONENT_SWIZZLE_IDENTITY, VK_COMPONENT_SWIZZLE_IDENTITY,
+                    VK_COMPONENT_SWIZZLE_IDENTITY, VK_COMPONENT_SWIZZLE_IDENTITY},
+            .xChromaOffset = m_ycbcr.chromaOffset,
+            .yChromaOffset = m_ycbcr.chromaOffset,
+            .chromaFilter = VK_FILTER_NEAREST,
+            .forceExplicitReconstruction = VK_FALSE,
+    };
+    CALL_VK(m_ycbcr.createConversion(m_deviceInfo.device, &conversionCreateInfo, nullptr,
+                                     &m_ycbcr.conversion))
+
+    VkSamplerYcbcrConversionInfo conversionInfo{
+            .sType = VK_STRUCTURE_TYPE_SAMPLER_YCBCR_CONVERSION_INFO,
+            .pNext = nullptr,
+            .conversion = m_ycbcr.conversion,
+    };
+    // A conversion sampler has to filter like the chroma filter and clamp to the edge
+    const VkSamplerCreateInfo sampler{
+            .sType = VK_STRUCTURE_TYPE_SAMPLER_CREATE_INFO,
+            .pNext = &conversionInfo,
+            .magFilter = VK_FILTER_NEAREST,
+            .minFilter = VK_FILTER_NEAREST,
+            .mipmapMode = VK_SAMPLER_MIPMAP_MODE_NEAREST,
+            .addressModeU = VK_SAMPLER_ADDRESS_MODE_CLAMP_TO_EDGE,
+            .addressModeV = VK_SAMPLER_ADDRESS_MODE_CLAMP_TO_EDGE,
+            .addressModeW = VK_SAMPLER_ADDRESS_MODE_CLAMP_TO_EDGE,
+            .mipLodBias = 0.0f,
+            .anisotropyEnable = VK_FALSE,
+            .maxAnisotropy = 1,
+            .compareEnable = VK_FALSE,
+            .compareOp = VK_COMPARE_OP_NEVER,
+            .minLod = 0.0f,
+            .maxLod = 0.0f,
+            .borderColor = VK_BORDER_COLOR_FLOAT_OPAQUE_WHITE,
+            .unnormalizedCoordinates = VK_FALSE,
+    };
+    CALL_VK(vkCreateSampler(m_deviceInfo.device, &sampler, nullptr, &m_ycbcr.sampler))
+}
+
+void VKVideoRendererYUV420::deleteYcbcrConversion() {
+    vkDestroySampler(m_deviceInfo.device, m_ycbcr.sampler, nullptr);
+    if (m_ycbcr.conversion != VK_NULL_HANDLE) {
+        m_ycbcr.destroyConversion(m_deviceInfo.device, m_ycbcr.conversion, nullptr);
+    }
+    m_ycbcr.sampler = VK_NULL_HANDLE;
+    m_ycbcr.conversion = VK_NULL_HANDLE;
 }
 
 void VKVideoRendererYUV420::createSwapChain() {
@@ -432,24 +852,36 @@ void VKVideoRendererYUV420::deleteSwapChain() const {
 }
 
 void VKVideoRendererYUV420::deleteCommandPool() const {
-    vkFreeCommandBuffers(m_deviceInfo.device, m_render.cmdPool, m_render.cmdBufferLen,
-                         m_render.cmdBuffer.get());
+    for (auto &frame: m_frames) {
+        vkFreeCommandBuffers(m_deviceInfo.device, m_render.cmdPool, 1, &frame.cmdBuffer);
+    }
     vkDestroyCommandPool(m_deviceInfo.device, m_render.cmdPool, nullptr);
-    vkDestroyFence(m_deviceInfo.device, m_render.fence, nullptr);
-    vkDestroySemaphore(m_deviceInfo.device, m_render.semaphore, nullptr);
+}
+
+void VKVideoRendererYUV420::deleteSyncObjects() const {
+    for (auto &frame: m_frames) {
+        vkDestroyFence(m_deviceInfo.device, frame.fence, nullptr);
+        vkDestroySemaphore(m_deviceInfo.device, frame.imageAvailable, nullptr);
+    }
+    for (uint32_t i = 0; m_renderFinished && i < m_swapchainInfo.swapchainLength; i++) {
+        vkDestroySemaphore(m_deviceInfo.device, m_renderFinished[i], nullptr);
+    }
 }
 
 void VKVideoRendererYUV420::deleteGraphicsPipeline() {
-    auto deletePipeline = [&](VulkanGfxPipelineInfo &info) {
-        if (info.pipeline == VK_NULL_HANDLE) return;
-        vkDestroyPipeline(m_deviceInfo.device, info.pipeline, nullptr);
-        vkDestroyPipelineCache(m_deviceInfo.device, info.cache, nullptr);
-        vkFreeDescriptorSets(m_deviceInfo.device, info.descPool, 1, &info.descSet);
-        vkDestroyDescriptorPool(m_deviceInfo.device, info.descPool, nullptr);
-        vkDestroyPipelineLayout(m_deviceInfo.device, info.layout, nullptr);
-    };
-    deletePipeline(m_gfxPipeline);
-    deletePipeline(m_gfxPipelineBokeh);
+    for (auto &pipeline: m_filterPipelines) {
+        vkDestroyPipeline(m_deviceInfo.device, pipeline, nullptr);
+        pipeline = VK_NULL_HANDLE;
+    }
+    vkDestroyPipeline(m_deviceInfo.device, m_bokehPipeline, nullptr);
+    m_bokehPipeline = VK_NULL_HANDLE;
+
+    vkDestroyPipelineCache(m_deviceInfo.device, m_gfxPipeline.cache, nullptr);
+    // Destroying the pool frees its descriptor sets
+    vkDestroyDescriptorPool(m_deviceInfo.device, m_gfxPipeline.descPool, nullptr);
+    vkDestroyPipelineLayout(m_deviceInfo.device, m_gfxPipeline.layout, nullptr);
+    vkDestroyDescriptorSetLayout(m_deviceInfo.device, m_gfxPipeline.descLayout, nullptr);
+    memset(&m_gfxPipeline, 0, sizeof(m_gfxPipeline));
 }
 
 void VKVideoRendererYUV420::createFrameBuffers(VkImageView depthView) {
@@ -587,10 +1019,12 @@ void VKVideoRendererYUV420::setImageLayout(VkCommandBuffer cmdBuffer, VkImage im
                          &imageMemoryBarrier);
 }
 
-// Create Graphics Pipeline
-VkResult VKVideoRendererYUV420::createGraphicsPipeline(VulkanGfxPipelineInfo *pipelineInfo, const char *vertShaderName, const char *fragShaderName) {
-    memset(pipelineInfo, 0, sizeof(VulkanGfxPipelineInfo));
+// Descriptor set layout, pipeline layout and pipeline cache shared by all pipelines
+void VKVideoRendererYUV420::createPipelineLayout() {
+    memset(&m_gfxPipeline, 0, sizeof(m_gfxPipeline));
 
+    // The YCbCr image is a single descriptor, its conversion sampler has to be immutable
+    const bool ycbcr = m_uploadMode == uYcbcr;
     const VkDescriptorSetLayoutBinding descriptorSetLayoutBinding[3]{
             {
                     .binding = 0,
@@ -602,9 +1036,9 @@ VkResult VKVideoRendererYUV420::createGraphicsPipeline(VulkanGfxPipelineInfo *pi
             {
                     .binding = 1,
                     .descriptorType = VK_DESCRIPTOR_TYPE_COMBINED_IMAGE_SAMPLER,
-                    .descriptorCount = kTextureCount,
+                    .descriptorCount = ycbcr ? 1 : kTextureCount,
                     .stageFlags = VK_SHADER_STAGE_FRAGMENT_BIT,
-                    .pImmutableSamplers = nullptr
+                    .pImmutableSamplers = ycbcr ? &m_ycbcr.sampler : nullptr
             },
             {
                     .binding = 2,
@@ -621,18 +1055,63 @@ VkResult VKVideoRendererYUV420::createGraphicsPipeline(VulkanGfxPipelineInfo *pi
     };
     CALL_VK(vkCreateDescriptorSetLayout(m_deviceInfo.device,
                                         &descriptorSetLayoutCreateInfo, nullptr,
-                                        &pipelineInfo->descLayout))
+                                        &m_gfxPipeline.descLayout))
     VkPipelineLayoutCreateInfo pipelineLayoutCreateInfo{
             .sType = VK_STRUCTURE_TYPE_PIPELINE_LAYOUT_CREATE_INFO,
             .pNext = nullptr,
             .setLayoutCount = 1,
-            .pSetLayouts = &pipelineInfo->descLayout,
+            .pSetLayouts = &m_gfxPipeline.descLayout,
             .pushConstantRangeCount = 0,
             .pPushConstantRanges = nullptr,
     };
     CALL_VK(vkCreatePipelineLayout(m_deviceInfo.device, &pipelineLayoutCreateInfo,
-                                   nullptr, &pipelineInfo->layout))
+                                   nullptr, &m_gfxPipeline.layout))
+
+    // Create the pipeline cache, seeded with the one saved by an earlier launch
+    std::vector<uint8_t> cacheData;
+    if (!m_cacheDir.empty()) {
+        VkPhysicalDeviceProperties properties;
+        vkGetPhysicalDeviceProperties(m_deviceInfo.physicalDevice, &properties);
+        cacheData = loadPipelineCache(pipelineCachePath(), properties);
+    }
+    m_pipelineCacheLoaded = !cacheData.empty();
+
+    VkPipelineCacheCreateInfo pipelineCacheInfo{
+            .sType = VK_STRUCTURE_TYPE_PIPELINE_CACHE_CREATE_INFO,
+            .pNext = nullptr,
+            .flags = 0,  // reserved, must be 0
+            .initialDataSize = cacheData.size(),
+            .pInitialData = cacheData.empty() ? nullptr : cacheData.data(),
+    };
 
+    if (vkCreatePipelineCache(m_deviceInfo.device, &pipelineCacheInfo, nullptr,
+                              &m_gfxPipeline.cache) != VK_SUCCESS && m_pipelineCacheLoaded) {
+        // The driver rejected the data after all, start empty
+        LOGE("Pipeline cache rejected, building from scratch");
+        m_pipelineCacheLoaded = false;
+        pipelineCacheInfo.initialDataSize = 0;
+        pipelineCacheInfo.pInitialData = nullptr;
+        CALL_VK(vkCreatePipelineCache(m_deviceInfo.device, &pipelineCacheInfo, nullptr,
+                                      &m_gfxPipeline.cache))
+    }
+}
+
+std::string VKVideoRendererYUV420::pipelineCachePath() const {
+    return m_cacheDir + "/vk_pipeline_cache.bin";
+}
+
+void VKVideoRendererYUV420::savePipelineCache() const {
+    if (m_cacheDir.empty()) return;
+    VkPhysicalDeviceProperties properties;
+    vkGetPhysicalDeviceProperties(m_deviceInfo.physicalDevice, &properties);
+    ::savePipelineCache(pipelineCachePath(), m_deviceInfo.device, m_gfxPipeline.cache,
+                        properties);
+}
+
+// Create Graphics Pipeline
+VkResult VKVideoRendererYUV420::createGraphicsPipeline(VkPipeline *pipeline,
+                                                       VkShaderModule vertexShader,
+                                                       VkShaderModule fragmentShader) {
     // No dynamic state in that tutorial
     VkPipelineDynamicStateCreateInfo dynamicStateInfo{
             .sType = VK_STRUCTURE_TYPE_PIPELINE_DYNAMIC_STATE_CREATE_INFO,
@@ -640,13 +1119,6 @@ VkResult VKVideoRendererYUV420::createGraphicsPipeline(VulkanGfxPipelineInfo *pi
             .dynamicStateCount = 0,
             .pDynamicStates = nullptr};
 
-    VkShaderModule vertexShader, fragmentShader;
-
-    RET_CHECK(createShaderModuleFromAsset(m_deviceInfo.device, vertShaderName,
-                                          m_assetManager, &vertexShader));
-    RET_CHECK(createShaderModuleFromAsset(m_deviceInfo.device, fragShaderName,
-                                          m_assetManager, &fragmentShader));
-
     // Specify vertex and fragment shader stages
     VkPipelineShaderStageCreateInfo shaderStages[2]{
             {
@@ -771,18 +1243,6 @@ VkResult VKVideoRendererYUV420::createGraphicsPipeline(VulkanGfxPipelineInfo *pi
             .pVertexAttributeDescriptions = vertex_input_attributes,
     };
 
-    // Create the pipeline cache
-    VkPipelineCacheCreateInfo pipelineCacheInfo{
-            .sType = VK_STRUCTURE_TYPE_PIPELINE_CACHE_CREATE_INFO,
-            .pNext = nullptr,
-            .flags = 0,  // reserved, must be 0
-            .initialDataSize = 0,
-            .pInitialData = nullptr,
-    };
-
-    CALL_VK(vkCreatePipelineCache(m_deviceInfo.device, &pipelineCacheInfo, nullptr,
-                                  &pipelineInfo->cache))
-
     // Create the pipeline
     VkGraphicsPipelineCreateInfo pipelineCreateInfo{
             .sType = VK_STRUCTURE_TYPE_GRAPHICS_PIPELINE_CREATE_INFO,
@@ -799,7 +1259,7 @@ VkResult VKVideoRendererYUV420::createGraphicsPipeline(VulkanGfxPipelineInfo *pi
             .pDepthStencilState = nullptr,
             .pColorBlendState = &colorBlendInfo,
             .pDynamicState = &dynamicStateInfo,
-            .layout = pipelineInfo->layout,
+            .layout = m_gfxPipeline.layout,
             .renderPass = m_render.renderPass,
             .subpass = 0,
             .basePipelineHandle = VK_NULL_HANDLE,
@@ -807,20 +1267,17 @@ VkResult VKVideoRendererYUV420::createGraphicsPipeline(VulkanGfxPipelineInfo *pi
     };
 
     VkResult pipelineResult = vkCreateGraphicsPipelines(
-            m_deviceInfo.device, pipelineInfo->cache, 1, &pipelineCreateInfo, nullptr,
-            &pipelineInfo->pipeline);
-
-    // We don't need the shaders anymore, we can release their memory
-    vkDestroyShaderModule(m_deviceInfo.device, vertexShader, nullptr);
-    vkDestroyShaderModule(m_deviceInfo.device, fragmentShader, nullptr);
+            m_deviceInfo.device, m_gfxPipeline.cache, 1, &pipelineCreateInfo, nullptr,
+            pipeline);
 
     return pipelineResult;
 }
 
-void VKVideoRendererYUV420::updateDescriptorSet() {
+void VKVideoRendererYUV420::updateDescriptorSet(uint32_t frameIndex) {
+    FrameResources &frame = m_frames[frameIndex];
     auto updateSet = [&](VulkanGfxPipelineInfo &info) {
         VkDescriptorBufferInfo bufferInfo{
-                bufferInfo.buffer = m_buffers.uboBuffer,
+                bufferInfo.buffer = frame.uboBuffer,
                 bufferInfo.offset = 0,
                 bufferInfo.range = sizeof(UniformBufferObject)
         };
@@ -828,12 +1285,12 @@ void VKVideoRendererYUV420::updateDescriptorSet() {
         VkDescriptorImageInfo texDsts[kTextureCount];
         memset(texDsts, 0, sizeof(texDsts));
         for (int32_t idx = 0; idx < kTextureCount; idx++) {
-            texDsts[idx].sampler = textures[idx].sampler;
-            texDsts[idx].imageView = textures[idx].view;
-            texDsts[idx].imageLayout = VK_IMAGE_LAYOUT_GENERAL;
+            texDsts[idx].sampler = frame.textures[idx].sampler;
+            texDsts[idx].imageView = frame.textures[idx].view;
+            texDsts[idx].imageLayout = frame.textures[idx].imageLayout;
         }
 
-        VulkanTexture* depthTex = m_depthProvider->getTexture();
+        VulkanTexture* depthTex = m_depthProvider->getTexture(frameIndex);
         VkDescriptorImageInfo depthDst = {
                 .sampler = depthTex->sampler,
                 .imageView = depthTex->view,
@@ -844,7 +1301,7 @@ void VKVideoRendererYUV420::updateDescriptorSet() {
                 {
                         .sType = VK_STRUCTURE_TYPE_WRITE_DESCRIPTOR_SET,
                         .pNext = nullptr,
-                        .dstSet = info.descSet,
+                        .dstSet = info.descSet[frameIndex],
                         .dstBinding = 0,
                         .dstArrayElement = 0,
                         .descriptorCount = 1,
@@ -856,10 +1313,10 @@ void VKVideoRendererYUV420::updateDescriptorSet() {
                 {
                         .sType = VK_STRUCTURE_TYPE_WRITE_DESCRIPTOR_SET,
                         .pNext = nullptr,
-                        .dstSet = info.descSet,
+                        .dstSet = info.descSet[frameIndex],
                         .dstBinding = 1,
                         .dstArrayElement = 0,
-                        .descriptorCount = kTextureCount,
+                        .descriptorCount = m_uploadMode == uYcbcr ? 1 : kTextureCount,
                         .descriptorType = VK_DESCRIPTOR_TYPE_COMBINED_IMAGE_SAMPLER,
                         .pImageInfo = texDsts,
                         .pBufferInfo = nullptr,
@@ -868,7 +1325,7 @@ void VKVideoRendererYUV420::updateDescriptorSet() {
                 {
                         .sType = VK_STRUCTURE_TYPE_WRITE_DESCRIPTOR_SET,
                         .pNext = nullptr,
-                        .dstSet = info.descSet,
+                        .dstSet = info.descSet[frameIndex],
                         .dstBinding = 2,
                         .dstArrayElement = 0,
                         .descriptorCount = 1,
@@ -881,7 +1338,7 @@ void VKVideoRendererYUV420::updateDescriptorSet() {
         vkUpdateDescriptorSets(m_deviceInfo.device, 3, writeDst, 0, nullptr);
     };
     updateSet(m_gfxPipeline);
-    updateSet(m_gfxPipelineBokeh);
+    frame.descriptorsDirty = false;
 }
 
 // initialize descriptor set
@@ -890,21 +1347,21 @@ void VKVideoRendererYUV420::createDescriptorSet() {
         const VkDescriptorPoolSize poolSizes[3]{
                 {
                         .type = VK_DESCRIPTOR_TYPE_UNIFORM_BUFFER,
-                        .descriptorCount = 1
+                        .descriptorCount = kMaxFramesInFlight
                 },
                 {
                         .type = VK_DESCRIPTOR_TYPE_COMBINED_IMAGE_SAMPLER,
-                        .descriptorCount = kTextureCount
+                        .descriptorCount = kTextureCount * kMaxFramesInFlight
                 },
                 {
                         .type = VK_DESCRIPTOR_TYPE_COMBINED_IMAGE_SAMPLER,
-                        .descriptorCount = 1
+                        .descriptorCount = kMaxFramesInFlight
                 }
         };
         const VkDescriptorPoolCreateInfo descriptor_pool = {
                 .sType = VK_STRUCTURE_TYPE_DESCRIPTOR_POOL_CREATE_INFO,
                 .pNext = nullptr,
-                .maxSets = 2,
+                .maxSets = kMaxFramesInFlight,
                 .poolSizeCount = 3,
                 .pPoolSizes = poolSizes,
         };
@@ -912,19 +1369,25 @@ void VKVideoRendererYUV420::createDescriptorSet() {
         CALL_VK(vkCreateDescriptorPool(m_deviceInfo.device, &descriptor_pool, nullptr,
                                        &info.descPool))
 
+        // One set per frame in flight, each pointing at that frame's uniforms and textures
+        VkDescriptorSetLayout layouts[kMaxFramesInFlight];
+        for (auto &layout: layouts) {
+            layout = info.descLayout;
+        }
         VkDescriptorSetAllocateInfo alloc_info{
                 .sType = VK_STRUCTURE_TYPE_DESCRIPTOR_SET_ALLOCATE_INFO,
                 .pNext = nullptr,
                 .descriptorPool = info.descPool,
-                .descriptorSetCount = 1,
-                .pSetLayouts = &info.descLayout};
-        CALL_VK(vkAllocateDescriptorSets(m_deviceInfo.device, &alloc_info, &info.descSet))
+                .descriptorSetCount = kMaxFramesInFlight,
+                .pSetLayouts = layouts};
+        CALL_VK(vkAllocateDescriptorSets(m_deviceInfo.device, &alloc_info, info.descSet))
     };
 
     createSet(m_gfxPipeline);
-    createSet(m_gfxPipelineBokeh);
 
-    updateDescriptorSet();
+    for (uint32_t i = 0; i < kMaxFramesInFlight; i++) {
+        updateDescriptorSet(i);
+    }
 }
 
 void VKVideoRendererYUV420::createCommandPool() {
@@ -938,105 +1401,180 @@ void VKVideoRendererYUV420::createCommandPool() {
     CALL_VK(vkCreateCommandPool(m_deviceInfo.device, &cmdPoolCreateInfo, nullptr,
                                 &m_render.cmdPool))
 
-    // Record a command buffer that just clear the screen
-    // 1 command buffer draw in 1 framebuffer
-    // In our case we need 2 command as we have 2 framebuffer
-    m_render.cmdBufferLen = m_swapchainInfo.swapchainLength;
-    m_render.cmdBuffer = std::make_unique<VkCommandBuffer[]>(m_swapchainInfo.swapchainLength);
+    // One command buffer per frame in flight, recorded each frame once the swapchain image is
+    // known. Recording a single draw is cheaper than keeping one per image and frame.
     VkCommandBufferAllocateInfo cmdBufferCreateInfo{
             .sType = VK_STRUCTURE_TYPE_COMMAND_BUFFER_ALLOCATE_INFO,
             .pNext = nullptr,
             .commandPool = m_render.cmdPool,
             .level = VK_COMMAND_BUFFER_LEVEL_PRIMARY,
-            .commandBufferCount = m_render.cmdBufferLen,
+            .commandBufferCount = 1,
     };
-    CALL_VK(vkAllocateCommandBuffers(m_deviceInfo.device, &cmdBufferCreateInfo,
-                                     m_render.cmdBuffer.get()))
+    for (auto &frame: m_frames) {
+        CALL_VK(vkAllocateCommandBuffers(m_deviceInfo.device, &cmdBufferCreateInfo,
+                                         &frame.cmdBuffer))
+    }
+}
 
-    for (int bufferIndex = 0; bufferIndex < m_swapchainInfo.swapchainLength; bufferIndex++) {
-        // We start by creating and declare the "beginning" our command buffer
-        VkCommandBufferBeginInfo cmdBufferBeginInfo{
-                .sType = VK_STRUCTURE_TYPE_COMMAND_BUFFER_BEGIN_INFO,
-                .pNext = nullptr,
-                .flags = 0,
-                .pInheritanceInfo = nullptr,
-        };
-        CALL_VK(vkBeginCommandBuffer(m_render.cmdBuffer[bufferIndex], &cmdBufferBeginInfo))
-
-        // transition the buffer into color attachment
-        setImageLayout(m_render.cmdBuffer[bufferIndex],
-                       m_swapchainInfo.displayImages[bufferIndex],
-                       VK_IMAGE_LAYOUT_PRESENT_SRC_KHR,
-                       VK_IMAGE_LAYOUT_COLOR_ATTACHMENT_OPTIMAL,
-                       VK_PIPELINE_STAGE_BOTTOM_OF_PIPE_BIT,
-                       VK_PIPELINE_STAGE_COLOR_ATTACHMENT_OUTPUT_BIT);
-
-        // Now we start a render pass. Any draw command has to be recorded in a render pass
-        VkClearValue clearValues;
-        clearValues.color.float32[0] = 0.0f;
-        clearValues.color.float32[1] = 0.0f;
-        clearValues.color.float32[2] = 0.0f;
-        clearValues.color.float32[3] = 1.0f;
-
-        VkRenderPassBeginInfo renderPassBeginInfo{
-                .sType = VK_STRUCTURE_TYPE_RENDER_PASS_BEGIN_INFO,
-                .pNext = nullptr,
-                .renderPass = m_render.renderPass,
-                .framebuffer = m_swapchainInfo.framebuffers[bufferIndex],
-                .renderArea = {.offset = {.x = 0, .y = 0},
-                        .extent = m_swapchainInfo.displaySize},
-                .clearValueCount = 1,
-                .pClearValues = &clearValues};
-        vkCmdBeginRenderPass(m_render.cmdBuffer[bufferIndex], &renderPassBeginInfo,
-                             VK_SUBPASS_CONTENTS_INLINE);
-        // Bind what is necessary to the command buffer
-        if (m_isPortrait) {
-            vkCmdBindPipeline(m_render.cmdBuffer[bufferIndex],
-                              VK_PIPELINE_BIND_POINT_GRAPHICS, m_gfxPipelineBokeh.pipeline);
-            vkCmdBindDescriptorSets(m_render.cmdBuffer[bufferIndex], VK_PIPELINE_BIND_POINT_GRAPHICS,
-                                    m_gfxPipelineBokeh.layout, 0, 1, &m_gfxPipelineBokeh.descSet, 0, nullptr);
-        } else {
-            vkCmdBindPipeline(m_render.cmdBuffer[bufferIndex],
-                              VK_PIPELINE_BIND_POINT_GRAPHICS, m_gfxPipeline.pipeline);
-            vkCmdBindDescriptorSets(m_render.cmdBuffer[bufferIndex], VK_PIPELINE_BIND_POINT_GRAPHICS,
-                                    m_gfxPipeline.layout, 0, 1, &m_gfxPipeline.descSet, 0, nullptr);
-        }
-        VkDeviceSize offset = 0;
-        vkCmdBindVertexBuffers(m_render.cmdBuffer[bufferIndex], 0, 1, &m_buffers.vertexBuffer,
-                               &offset);
-
-        vkCmdBindIndexBuffer(m_render.cmdBuffer[bufferIndex], m_buffers.indexBuffer, 0,
-                             VK_INDEX_TYPE_UINT16);
-        vkCmdDrawIndexed(m_render.cmdBuffer[bufferIndex], m_indexCount, 1, 0, 0, 0);
-
-        vkCmdEndRenderPass(m_render.cmdBuffer[bufferIndex]);
-        setImageLayout(m_render.cmdBuffer[bufferIndex],
-                       m_swapchainInfo.displayImages[bufferIndex],
-                       VK_IMAGE_LAYOUT_COLOR_ATTACHMENT_OPTIMAL,
-                       VK_IMAGE_LAYOUT_PRESENT_SRC_KHR,
-                       VK_PIPELINE_STAGE_COLOR_ATTACHMENT_OUTPUT_BIT,
-                       VK_PIPELINE_STAGE_BOTTOM_OF_PIPE_BIT);
-        CALL_VK(vkEndCommandBuffer(m_render.cmdBuffer[bufferIndex]))
-    }
-
-    // We need to create a fence to be able, in the main loop, to wait for our
-    // draw command(s) to finish before swapping the framebuffers
+void VKVideoRendererYUV420::recordCommandBuffer(uint32_t frameIndex, uint32_t imageIndex) {
+    VkCommandBuffer cmdBuffer = m_frames[frameIndex].cmdBuffer;
+    // We start by creating and declare the "beginning" our command buffer
+    VkCommandBufferBeginInfo cmdBufferBeginInfo{
+            .sType = VK_STRUCTURE_TYPE_COMMAND_BUFFER_BEGIN_INFO,
+            .pNext = nullptr,
+            .flags = VK_COMMAND_BUFFER_USAGE_ONE_TIME_SUBMIT_BIT,
+            .pInheritanceInfo = nullptr,
+    };
+    CALL_VK(vkBeginCommandBuffer(cmdBuffer, &cmdBufferBeginInfo))
+
+    uint32_t firstQuery = frameIndex * 2;
+    if (m_timestamps.pool != VK_NULL_HANDLE) {
+        vkCmdResetQueryPool(cmdBuffer, m_timestamps.pool, firstQuery, 2);
+        vkCmdWriteTimestamp(cmdBuffer, VK_PIPELINE_STAGE_TOP_OF_PIPE_BIT, m_timestamps.pool,
+                            firstQuery);
+    }
+
+    if (m_uploadMode != uLinear) {
+        recordTextureUpload(cmdBuffer, m_frames[frameIndex]);
+    }
+    if (m_depthProvider) {
+        m_depthProvider->recordCommands(cmdBuffer, frameIndex);
+    }
+
+    // transition the buffer into color attachment
+    setImageLayout(cmdBuffer,
+                   m_swapchainInfo.displayImages[imageIndex],
+                   VK_IMAGE_LAYOUT_PRESENT_SRC_KHR,
+                   VK_IMAGE_LAYOUT_COLOR_ATTACHMENT_OPTIMAL,
+                   VK_PIPELINE_STAGE_BOTTOM_OF_PIPE_BIT,
+                   VK_PIPELINE_STAGE_COLOR_ATTACHMENT_OUTPUT_BIT);
+
+    // Now we start a render pass. Any draw command has to be recorded in a render pass
+    VkClearValue clearValues;
+    clearValues.color.float32[0] = 0.0f;
+    clearValues.color.float32[1] = 0.0f;
+    clearValues.color.float32[2] = 0.0f;
+    clearValues.color.float32[3] = 1.0f;
+
+    VkRenderPassBeginInfo renderPassBeginInfo{
+            .sType = VK_STRUCTURE_TYPE_RENDER_PASS_BEGIN_INFO,
+            .pNext = nullptr,
+            .renderPass = m_render.renderPass,
+            .framebuffer = m_swapchainInfo.framebuffers[imageIndex],
+            .renderArea = {.offset = {.x = 0, .y = 0},
+                    .extent = m_swapchainInfo.displaySize},
+            .clearValueCount = 1,
+            .pClearValues = &clearValues};
+    vkCmdBeginRenderPass(cmdBuffer, &renderPassBeginInfo,
+                         VK_SUBPASS_CONTENTS_INLINE);
+    // Bind what is necessary to the command buffer. Filter and portrait changes take effect
+    // here, on the next recorded frame.
+    int filterId = m_filterId.load(std::memory_order_relaxed);
+    if (filterId < 0 || filterId >= kFilterCount) filterId = 0;
+    VkPipeline pipeline = m_isPortrait ? m_bokehPipeline : m_filterPipelines[filterId];
+    vkCmdBindPipeline(cmdBuffer, VK_PIPELINE_BIND_POINT_GRAPHICS, pipeline);
+    vkCmdBindDescriptorSets(cmdBuffer, VK_PIPELINE_BIND_POINT_GRAPHICS,
+                            m_gfxPipeline.layout, 0, 1, &m_gfxPipeline.descSet[frameIndex], 0,
+                            nullptr);
+    VkDeviceSize offset = 0;
+    vkCmdBindVertexBuffers(cmdBuffer, 0, 1, &m_buffers.vertexBuffer,
+                           &offset);
+
+    vkCmdBindIndexBuffer(cmdBuffer, m_buffers.indexBuffer, 0,
+                         VK_INDEX_TYPE_UINT16);
+    vkCmdDrawIndexed(cmdBuffer, m_indexCount, 1, 0, 0, 0);
+
+    vkCmdEndRenderPass(cmdBuffer);
+    if (m_timestamps.pool != VK_NULL_HANDLE) {
+        vkCmdWriteTimestamp(cmdBuffer, VK_PIPELINE_STAGE_BOTTOM_OF_PIPE_BIT, m_timestamps.pool,
+                            firstQuery + 1);
+        m_frames[frameIndex].timestampsWritten = true;
+    }
+    setImageLayout(cmdBuffer,
+                   m_swapchainInfo.displayImages[imageIndex],
+                   VK_IMAGE_LAYOUT_COLOR_ATTACHMENT_OPTIMAL,
+                   VK_IMAGE_LAYOUT_PRESENT_SRC_KHR,
+                   VK_PIPELINE_STAGE_COLOR_ATTACHMENT_OUTPUT_BIT,
+                   VK_PIPELINE_STAGE_BOTTOM_OF_PIPE_BIT);
+    CALL_VK(vkEndCommandBuffer(cmdBuffer))
+}
+
+void VKVideoRendererYUV420::createSyncObjects() {
+    // A fence per frame lets render() wait for the GPU to finish that frame before reusing its
+    // resources. Created signaled, so the first use of each frame does not wait.
     VkFenceCreateInfo fenceCreateInfo{
             .sType = VK_STRUCTURE_TYPE_FENCE_CREATE_INFO,
             .pNext = nullptr,
-            .flags = 0,
+            .flags = VK_FENCE_CREATE_SIGNALED_BIT,
     };
-    CALL_VK(vkCreateFence(m_deviceInfo.device, &fenceCreateInfo, nullptr, &m_render.fence))
 
-    // We need to create a semaphore to be able to wait, in the main loop, for our
-    // framebuffer to be available for us before drawing.
+    // Semaphores order the GPU work: drawing waits for the swapchain image to be available,
+    // presenting waits for drawing to finish.
     VkSemaphoreCreateInfo semaphoreCreateInfo{
             .sType = VK_STRUCTURE_TYPE_SEMAPHORE_CREATE_INFO,
             .pNext = nullptr,
             .flags = 0,
     };
-    CALL_VK(vkCreateSemaphore(m_deviceInfo.device, &semaphoreCreateInfo, nullptr,
-                              &m_render.semaphore))
+    for (auto &frame: m_frames) {
+        CALL_VK(vkCreateFence(m_deviceInfo.device, &fenceCreateInfo, nullptr, &frame.fence))
+        CALL_VK(vkCreateSemaphore(m_deviceInfo.device, &semaphoreCreateInfo, nullptr,
+                                  &frame.imageAvailable))
+    }
+    m_renderFinished.reset(new VkSemaphore[m_swapchainInfo.swapchainLength]);
+    for (uint32_t i = 0; i < m_swapchainInfo.swapchainLength; i++) {
+        CALL_VK(vkCreateSemaphore(m_deviceInfo.device, &semaphoreCreateInfo, nullptr,
+                                  &m_renderFinished[i]))
+    }
+}
+
+void VKVideoRendererYUV420::createTimestampQueries() {
+    VkPhysicalDeviceProperties properties;
+    vkGetPhysicalDeviceProperties(m_deviceInfo.physicalDevice, &properties);
+    uint32_t queueFamilyCount = 0;
+    vkGetPhysicalDeviceQueueFamilyProperties(m_deviceInfo.physicalDevice, &queueFamilyCount,
+                                             nullptr);
+    std::vector<VkQueueFamilyProperties> queueFamilyProperties(queueFamilyCount);
+    vkGetPhysicalDeviceQueueFamilyProperties(m_deviceInfo.physicalDevice, &queueFamilyCount,
+                                             queueFamilyProperties.data());
+    uint32_t validBits = queueFamilyProperties[m_deviceInfo.queueFamilyIndex].timestampValidBits;
+    if (validBits == 0 || properties.limits.timestampPeriod <= 0.0f) {
+        LOGI("No GPU timestamps on this queue, not timing frames on the GPU");
+        return;
+    }
+
+    VkQueryPoolCreateInfo queryPoolCreateInfo{
+            .sType = VK_STRUCTURE_TYPE_QUERY_POOL_CREATE_INFO,
+            .pNext = nullptr,
+            .flags = 0,
+            .queryType = VK_QUERY_TYPE_TIMESTAMP,
+            .queryCount = kMaxFramesInFlight * 2,
+            .pipelineStatistics = 0,
+    };
+    CALL_VK(vkCreateQueryPool(m_deviceInfo.device, &queryPoolCreateInfo, nullptr,
+                              &m_timestamps.pool))
+    m_timestamps.period = properties.limits.timestampPeriod;
+    m_timestamps.validMask = validBits >= 64 ? ~0ull : (1ull << validBits) - 1;
+}
+
+void VKVideoRendererYUV420::readTimestamps(FrameResources &frame, uint32_t frameIndex) {
+    if (!frame.timestampsWritten) return;
+    frame.timestampsWritten = false;
+
+    // The fence signaled, so the results are there and no wait flag is needed
+    uint64_t ticks[2];
+    if (vkGetQueryPoolResults(m_deviceInfo.device, m_timestamps.pool, frameIndex * 2, 2,
+                              sizeof(ticks), ticks, sizeof(ticks[0]),
+                              VK_QUERY_RESULT_64_BIT) != VK_SUCCESS) {
+        return;
+    }
+    uint64_t elapsed = (ticks[1] - ticks[0]) & m_timestamps.validMask;
+    m_stats.recordDuration(kStageGpu, (uint64_t) (elapsed * (double) m_timestamps.period));
+}
+
+void VKVideoRendererYUV420::deleteTimestampQueries() const {
+    if (m_timestamps.pool != VK_NULL_HANDLE) {
+        vkDestroyQueryPool(m_deviceInfo.device, m_timestamps.pool, nullptr);
+    }
 }
 
 // A helper function
@@ -1059,7 +1597,7 @@ bool VKVideoRendererYUV420::mapMemoryTypeToIndex(uint32_t typeBits, VkFlags requ
     return false;
 }
 
-void VKVideoRendererYUV420::updateUniformBuffers() {
+void VKVideoRendererYUV420::updateUniformBuffers(FrameResources &frame) {
     mat4f_load_rotate_mat(m_ubo.rotation, m_rotation);
 
     mat4f_load_scale_mat(m_ubo.scale, m_rotation, m_surfaceWidth, m_surfaceHeight,
@@ -1067,7 +1605,12 @@ void VKVideoRendererYUV420::updateUniformBuffers() {
 
     m_ubo.blurStrength = m_blurStrength;
     m_ubo.isPortrait = m_isPortrait ? 1 : 0;
-    m_ubo.sampleCount = m_sampleCount;
+    m_ubo.sampleCount = m_sampleCount.load(std::memory_order_relaxed);
+
+    // render() waited for the frame's fence, so the GPU is done with its previous values.
+    if (frame.uboMapped) {
+        memcpy(frame.uboMapped, &m_ubo, sizeof(m_ubo));
+    }
 }
 
 void VKVideoRendererYUV420::copyBuffer(VkBuffer srcBuffer, VkBuffer dstBuffer, VkDeviceSize size) {
@@ -1169,31 +1712,19 @@ void VKVideoRendererYUV420::createBuffer(VkDeviceSize size, VkBufferUsageFlags u
 }
 
 void VKVideoRendererYUV420::createUniformBuffers() {
-    updateUniformBuffers();
-
-    VkBuffer stagingBuffer;
-    VkDeviceMemory stagingBufferMemory;
-
     VkDeviceSize bufferSize = sizeof(m_ubo);
 
-    // Create Vertex shader uniform buffer
-    createBuffer(bufferSize, VK_BUFFER_USAGE_TRANSFER_SRC_BIT,
-                 VK_MEMORY_PROPERTY_HOST_VISIBLE_BIT | VK_MEMORY_PROPERTY_HOST_COHERENT_BIT,
-                 stagingBuffer, stagingBufferMemory);
+    // Host visible and kept mapped, so blur strength and sample count changes reach the shader
+    // on the next frame instead of waiting for a pipeline rebuild. One per frame in flight.
+    for (auto &frame: m_frames) {
+        createBuffer(bufferSize, VK_BUFFER_USAGE_UNIFORM_BUFFER_BIT,
+                     VK_MEMORY_PROPERTY_HOST_VISIBLE_BIT | VK_MEMORY_PROPERTY_HOST_COHERENT_BIT,
+                     frame.uboBuffer, frame.uboBufferMemory);
+        CALL_VK(vkMapMemory(m_deviceInfo.device, frame.uboBufferMemory, 0, bufferSize, 0,
+                            &frame.uboMapped))
 
-    void *data = nullptr;
-    CALL_VK(vkMapMemory(m_deviceInfo.device, stagingBufferMemory, 0, bufferSize, 0, &data))
-    memcpy(data, &m_ubo, bufferSize);
-    vkUnmapMemory(m_deviceInfo.device, stagingBufferMemory);
-
-    createBuffer(bufferSize, VK_BUFFER_USAGE_TRANSFER_DST_BIT | VK_BUFFER_USAGE_VERTEX_BUFFER_BIT,
-                 VK_MEMORY_PROPERTY_DEVICE_LOCAL_BIT,
-                 m_buffers.uboBuffer, m_buffers.uboBufferMemory);
-
-    copyBuffer(stagingBuffer, m_buffers.uboBuffer, bufferSize);
-
-    vkDestroyBuffer(m_deviceInfo.device, stagingBuffer, nullptr);
-    vkFreeMemory(m_deviceInfo.device, stagingBufferMemory, nullptr);
+        updateUniformBuffers(frame);
+    }
 }
 
 void VKVideoRendererYUV420::createVertexBuffer() {
@@ -1268,9 +1799,15 @@ void VKVideoRendererYUV420::deleteBuffers() const {
     vkFreeMemory(m_deviceInfo.device, m_buffers.indexBufferMemory, nullptr);
 }
 
-void VKVideoRendererYUV420::deleteUniformBuffers() const {
-    vkDestroyBuffer(m_deviceInfo.device, m_buffers.uboBuffer, nullptr);
-    vkFreeMemory(m_deviceInfo.device, m_buffers.uboBufferMemory, nullptr);
+void VKVideoRendererYUV420::deleteUniformBuffers() {
+    for (auto &frame: m_frames) {
+        if (frame.uboMapped) {
+            vkUnmapMemory(m_deviceInfo.device, frame.uboBufferMemory);
+            frame.uboMapped = nullptr;
+        }
+        vkDestroyBuffer(m_deviceInfo.device, frame.uboBuffer, nullptr);
+        vkFreeMemory(m_deviceInfo.device, frame.uboBufferMemory, nullptr);
+    }
 }
 
 bool VKVideoRendererYUV420::isInitialized() const {
@@ -1299,36 +1836,49 @@ VkResult VKVideoRendererYUV420::allocateMemoryTypeFromProperties(uint32_t typeBi
     return VK_ERROR_MEMORY_MAP_FAILED;
 }
 
-size_t VKVideoRendererYUV420::getBufferOffset(VulkanTexture *texture, TextureType type,
-                                              size_t width, size_t height) {
-    size_t offset = 0;
+void VKVideoRendererYUV420::setTextureSize(VulkanTexture *texture, TextureType type,
+                                           size_t width, size_t height) {
     if (type == tTexY) {
         texture->width = width;
         texture->height = height;
-    } else if (type == tTexU) {
-        texture->width = width / 2;
-        texture->height = height / 2;
-        offset = width * height;
-    } else if (type == tTexV) {
+    } else {
         texture->width = width / 2;
         texture->height = height / 2;
-        offset = width * height * 5 / 4;
     }
-
-    return offset;
 }
 
-void VKVideoRendererYUV420::copyTextureData(VulkanTexture *texture, uint8_t *data) {
+void VKVideoRendererYUV420::copyTextureData(VulkanTexture *texture, TextureType type) const {
+    const uint8_t *data = m_frame.y;
+    size_t rowStride = m_frame.stride_y;
+    size_t pixelStride = 1;
+    if (type == tTexU) {
+        data = m_frame.u;
+        rowStride = m_frame.stride_uv;
+        pixelStride = m_frame.pixel_stride_uv;
+    } else if (type == tTexV) {
+        data = m_frame.v;
+        rowStride = m_frame.stride_uv;
+        pixelStride = m_frame.pixel_stride_uv;
+    }
+    if (data == nullptr) return;
+
+    // Copy straight from the camera plane into the mapped image, honouring both strides.
     auto *mappedData = (uint8_t *) texture->mapped;
     for (int i = 0; i < texture->height; ++i) {
-        memcpy(mappedData, data, texture->width);
+        if (pixelStride == 1) {
+            memcpy(mappedData, data, texture->width);
+        } else {
+            for (int j = 0; j < texture->width; ++j) {
+                mappedData[j] = data[j * pixelStride];
+            }
+        }
         mappedData += texture->layout.rowPitch;
-        data += texture->width;
+        data += rowStride;
     }
 }
 
 VkResult
-VKVideoRendererYUV420::loadTexture(uint8_t *buffer, TextureType type, size_t width, size_t height,
+VKVideoRendererYUV420::loadTexture(TextureType type, size_t width, size_t height,
                                    VulkanTexture *texture, VkImageUsageFlags usage,
                                    VkFlags required_props) {
     if (!(usage | required_props)) {
@@ -1348,7 +1898,7 @@ VKVideoRendererYUV420::loadTexture(uint8_t *buffer, TextureType type, size_t wid
         needBlit = false;
     }
 
-    size_t offset = getBufferOffset(texture, type, width, height);
+    setTextureSize(texture, type, width, height);
 
     // Allocate the linear texture so texture could be copied over
     VkImageCreateInfo imageCreateInfo = {
@@ -1395,7 +1945,7 @@ VKVideoRendererYUV420::loadTexture(uint8_t *buffer, TextureType type, size_t wid
         CALL_VK(vkMapMemory(m_deviceInfo.device, texture->mem, 0, memAlloc.allocationSize, 0,
                             &texture->mapped))
 
-        copyTextureData(texture, buffer + offset);
+        copyTextureData(texture, type);
     }
 
     texture->imageLayout = VK_IMAGE_LAYOUT_SHADER_READ_ONLY_OPTIMAL;
@@ -6,6 +6,9 @@
 #include "VideoRenderer.h"
 #include "IDepthProvider.h"
 #include <vulkan/vulkan.h>
+#include <atomic>
+#include <future>
+#include <string>
 
 class VKVideoRendererYUV420 : public VideoRenderer {
 public:
@@ -20,6 +23,8 @@ public:
 
     void draw(uint8_t *buffer, size_t length, size_t width, size_t height, float rotation, bool mirror) override;
 
+    void draw(const video_frame &frame, float rotation, bool mirror) override;
+
     void setParameters(uint32_t params) override;
 
     uint32_t getParameters() override;
@@ -31,12 +36,19 @@ public:
     void setFilter(int filterId) override;
     void updateDepthData(uint8_t *data, size_t width, size_t height) override;
     void setQualityParams(int samples) override;
+    void setCacheDir(const char *path) override;
 
 private:
     enum TextureType {
         tTexY, tTexU, tTexV
     };
 
+    enum ShaderModule {
+        sFrameVert, sBokehVert, sFrameFrag, sGreyFrag, sSepiaFrag, sInvertFrag, sBeautyFrag,
+        sBokehFrag
+    };
+    static const int kShaderModuleCount = sBokehFrag + 1;
+
     struct Vertex {
         float pos[3];
         float uv[2];
@@ -53,10 +65,18 @@ private:
 
     UniformBufferObject m_ubo{};
 
-    bool m_isPortrait = false;
+    // Frames the CPU may record ahead of the GPU. Two keeps camera to display latency at about
+    // one frame while the CPU prepares frame N + 1 as the GPU draws frame N.
+    static const uint32_t kMaxFramesInFlight = 2;
+
+    static const int kFilterCount = 5;
+
+    // Set from the UI thread, read when the render thread records a frame
+    std::atomic<bool> m_isPortrait{false};
     float m_blurStrength = 5.0f;
-    int m_filterId = 0; // 0: Normal, 1: Grey, 2: Sepia, 3: Invert, 4: Beauty
-    int m_sampleCount = 16;
+    std::atomic<int> m_filterId{0}; // 0: Normal, 1: Grey, 2: Sepia, 3: Invert, 4: Beauty
+    // Set from the quality controller thread, read on the render thread
+    std::atomic<int> m_sampleCount{16};
 
     std::unique_ptr<IDepthProvider> m_depthProvider;
 
@@ -91,47 +111,125 @@ private:
     struct VulkanRenderInfo {
         VkRenderPass renderPass;
         VkCommandPool cmdPool;
-        std::unique_ptr<VkCommandBuffer[]> cmdBuffer;
-        uint32_t cmdBufferLen;
-        VkSemaphore semaphore;
-        VkFence fence;
     };
     VulkanRenderInfo m_render;
 
+    // Shared by every pipeline below, they all bind the same uniforms and textures
     struct VulkanGfxPipelineInfo {
         VkDescriptorSetLayout descLayout;
         VkDescriptorPool descPool;
-        VkDescriptorSet descSet;
+        VkDescriptorSet descSet[kMaxFramesInFlight];
         VkPipelineLayout layout;
         VkPipelineCache cache;
-        VkPipeline pipeline;
     };
     VulkanGfxPipelineInfo m_gfxPipeline{};
-    VulkanGfxPipelineInfo m_gfxPipelineBokeh{};
+
+    // Built once for every filter and for bokeh, so switching only binds another pipeline when
+    // the next frame is recorded
+    VkPipeline m_filterPipelines[kFilterCount]{};
+    VkPipeline m_bokehPipeline = VK_NULL_HANDLE;
+
+    // Loaded in parallel from init(), collected when the pipelines are built
+    std::future<VkShaderModule> m_shaderLoads[kShaderModuleCount];
+
+    // m_gfxPipeline.cache is kept in this directory across launches
+    std::string m_cacheDir;
+    bool m_pipelineCacheLoaded = false;
 
     struct VulkanBufferInfo {
         VkBuffer vertexBuffer;
         VkDeviceMemory vertexBufferMemory;
         VkBuffer indexBuffer;
         VkDeviceMemory indexBufferMemory;
-
-        VkBuffer uboBuffer;
-        VkDeviceMemory uboBufferMemory;
     };
     VulkanBufferInfo m_buffers{};
 
     static const uint32_t kTextureCount = 3;
     static const VkFormat kTextureFormat = VK_FORMAT_R8_UNORM;
     const TextureType texType[kTextureCount];
-    struct VulkanTexture textures[kTextureCount]{};
 
-    uint8_t *m_pBuffer;
+    // How camera planes reach the shaders, picked by device support once the device exists
+    enum UploadMode {
+        uYcbcr,   // Copied from the staging ring into the planes of one multi-planar image
+        uStaging, // Copied from the staging ring into device local, optimally tiled images
+        uLinear   // Written straight into host visible, linearly tiled images
+    };
+    UploadMode m_uploadMode = uStaging;
+
+    // Y, Cb and Cr in planes 0, 1 and 2, like the camera delivers them
+    static const VkFormat kYcbcrFormat = VK_FORMAT_G8_B8_R8_3PLANE_420_UNORM;
+
+    // uYcbcr samples a single image through a YCbCr conversion, which returns RGB, so every
+    // shader tap is one fetch instead of three plus the BT.601 math. Needs Vulkan 1.1, the
+    // functions are looked up since libvulkan may only export 1.0 ones.
+    struct VulkanYcbcrInfo {
+        bool supported; // Feature enabled on the device and kYcbcrFormat usable
+        VkChromaLocation chromaOffset;
+        VkSamplerYcbcrConversion conversion;
+        VkSampler sampler; // Immutable in the descriptor set layout, shared by every frame
+        PFN_vkCreateSamplerYcbcrConversion createConversion;
+        PFN_vkDestroySamplerYcbcrConversion destroyConversion;
+    };
+    VulkanYcbcrInfo m_ycbcr{};
+
+    // Persistently mapped upload memory with one slot of Y, U and V planes per frame in flight.
+    // A frame's command buffer copies its slot into the frame's images.
+    struct VulkanStagingRing {
+        VkBuffer buffer;
+        VkDeviceMemory memory;
+        void *mapped;
+        VkDeviceSize slotSize;
+        VkDeviceSize planeOffset[kTextureCount];
+    };
+    VulkanStagingRing m_staging{};
+
+    // Everything the CPU writes for one frame. render() waits for the frame's fence before
+    // touching it, so a frame's textures and uniforms are never rewritten while the GPU still
+    // samples them.
+    struct FrameResources {
+        VkCommandBuffer cmdBuffer;
+        VkFence fence;              // Signaled when the GPU finished the frame
+        VkSemaphore imageAvailable; // Swapchain image acquired, the submit waits on it
+
+        VkBuffer uboBuffer;
+        VkDeviceMemory uboBufferMemory;
+        void *uboMapped; // Persistently mapped, rewritten every frame
+
+        // With uYcbcr textures[0] holds the multi-planar image, all three only describe where
+        // their plane is staged
+        struct VulkanTexture textures[kTextureCount];
+        bool descriptorsDirty; // Depth texture recreated since the set was written
+        bool timestampsWritten; // Last submit wrote the frame's queries, read once fenced
+    };
+    FrameResources m_frames[kMaxFramesInFlight]{};
+    uint32_t m_frameIndex = 0;
+
+    // Drawing done, the present waits on it. One per swapchain image rather than per frame:
+    // a frame's fence does not cover presentation, so a semaphore is only free again once its
+    // image is acquired again.
+    std::unique_ptr<VkSemaphore[]> m_renderFinished;
+
+    // GPU time of each frame from the texture upload to the end of the render pass, recorded as
+    // kStageGpu. The render pass waits for the swapchain image, so a frame whose image was not
+    // free yet counts that wait too. Every frame in flight owns two queries of the pool, begin
+    // and end, read after its fence so reading never waits. No pool when the queue has no
+    // timestamps.
+    struct VulkanTimestampInfo {
+        VkQueryPool pool;
+        float period;       // Nanoseconds per tick
+        uint64_t validMask; // Bits of a timestamp that count, it wraps around above them
+    };
+    VulkanTimestampInfo m_timestamps{};
+
+    video_frame m_frame{};
     uint32_t m_indexCount;
 
     AAssetManager *m_assetManager;
 
     void createDevice(ANativeWindow *platformWindow, VkApplicationInfo *appInfo);
 
+    bool queryYcbcrSupport(uint32_t apiVersion);
+
     void createBuffer(VkDeviceSize size, VkBufferUsageFlags usage, VkMemoryPropertyFlags properties,
                       VkBuffer &buffer, VkDeviceMemory &bufferMemory);
 
@@ -139,7 +237,16 @@ private:
 
     void createDescriptorSet();
 
-    VkResult createGraphicsPipeline(VulkanGfxPipelineInfo *pipelineInfo, const char *vertShader, const char *fragShader);
+    void loadShaderModules();
+
+    void createPipelineLayout();
+
+    VkResult createGraphicsPipeline(VkPipeline *pipeline, VkShaderModule vertexShader,
+                                    VkShaderModule fragmentShader);
+
+    std::string pipelineCachePath() const;
+
+    void savePipelineCache() const;
 
     void createFrameBuffers(VkImageView depthView = VK_NULL_HANDLE);
 
@@ -155,17 +262,43 @@ private:
 
     void createCommandPool();
 
+    void createSyncObjects();
+
+    void createTimestampQueries();
+
+    void readTimestamps(FrameResources &frame, uint32_t frameIndex);
+
+    void recordCommandBuffer(uint32_t frameIndex, uint32_t imageIndex);
+
     bool createTextures();
 
+    UploadMode chooseUploadMode() const;
+
+    void createStagingRing();
+
+    void createYcbcrConversion();
+
+    void deleteYcbcrConversion();
+
+    void createStagedTexture(uint32_t frameIndex, int plane, VulkanTexture *texture);
+
+    void createYcbcrTexture(uint32_t frameIndex);
+
+    void createDeviceImage(VkFormat format, size_t width, size_t height, VulkanTexture *texture);
+
+    void mapStagingPlane(uint32_t frameIndex, int plane, VulkanTexture *texture);
+
+    void recordTextureUpload(VkCommandBuffer cmdBuffer, const FrameResources &frame) const;
+
     void copyBuffer(VkBuffer srcBuffer, VkBuffer dstBuffer, VkDeviceSize size);
 
-    static void copyTextureData(VulkanTexture *texture, uint8_t *data);
+    void copyTextureData(VulkanTexture *texture, TextureType type) const;
 
-    void updateDescriptorSet();
+    void updateDescriptorSet(uint32_t frameIndex);
 
-    void updateUniformBuffers();
+    void updateUniformBuffers(FrameResources &frame);
 
-    bool updateTextures();
+    bool updateTextures(FrameResources &frame);
 
     bool
     mapMemoryTypeToIndex(uint32_t typeBits, VkFlags requirements_mask, uint32_t *typeIndex) const;
@@ -174,23 +307,27 @@ private:
 
     void deleteCommandPool() const;
 
+    void deleteSyncObjects() const;
+
+    void deleteTimestampQueries() const;
+
     void deleteRenderPass() const;
 
     void deleteGraphicsPipeline();
 
-    void deleteTextures() const;
+    void deleteTextures();
 
     void deleteBuffers() const;
 
-    void deleteUniformBuffers() const;
+    void deleteUniformBuffers();
 
     bool isInitialized() const;
 
     VkResult allocateMemoryTypeFromProperties(uint32_t typeBits, VkFlags requirements_mask,
                                               uint32_t *typeIndex);
 
-    static size_t
-    getBufferOffset(VulkanTexture *texture, TextureType type, size_t width, size_t height);
+    static void
+    setTextureSize(VulkanTexture *texture, TextureType type, size_t width, size_t height);
 
     static void setImageLayout(VkCommandBuffer cmdBuffer,
                                VkImage image,
@@ -199,7 +336,7 @@ private:
                                VkPipelineStageFlags srcStages,
                                VkPipelineStageFlags destStages);
 
-    VkResult loadTexture(uint8_t *buffer, TextureType type, size_t width, size_t height,
+    VkResult loadTexture(TextureType type, size_t width, size_t height,
                          VulkanTexture *texture, VkImageUsageFlags usage, VkFlags required_props);
 };
 
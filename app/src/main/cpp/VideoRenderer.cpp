@@ -18,6 +18,20 @@ VideoRenderer::VideoRenderer()
 
 VideoRenderer::~VideoRenderer() = default;
 
+video_frame VideoRenderer::packedFrame(uint8_t *buffer, size_t width, size_t height) {
+    video_frame frame;
+    frame.width = width;
+    frame.height = height;
+    frame.stride_y = width;
+    frame.stride_uv = width / 2;
+    frame.pixel_stride_uv = 1;
+    frame.y = buffer;
+    frame.u = buffer + width * height;
+    frame.v = buffer + width * height * 5 / 4;
+
+    return frame;
+}
+
 std::unique_ptr<VideoRenderer> VideoRenderer::create(int type) {
     switch (type) {
         case tYUV420_FILTER:
@@ -1,6 +1,8 @@
 #ifndef _H_VIDEO_RENDERER_
 #define _H_VIDEO_RENDERER_
 
+#include "PipelineStats.h"
+
 #include <memory>
 #include <android/native_window.h>
 #include <android/asset_manager.h>
@@ -14,6 +16,7 @@ struct video_frame {
     size_t height;
     size_t stride_y;
     size_t stride_uv;
+    size_t pixel_stride_uv; // 1 for planar U/V, 2 for interleaved (NV12/NV21) chroma
     uint8_t *y;
     uint8_t *u;
     uint8_t *v;
@@ -34,6 +37,9 @@ public:
     virtual void
     draw(uint8_t *buffer, size_t length, size_t width, size_t height, float rotation, bool mirror) = 0;
 
+    // Draws a frame whose planes are read in place, respecting their row and pixel strides.
+    virtual void draw(const video_frame &frame, float rotation, bool mirror) = 0;
+
     virtual void setParameters(uint32_t params) = 0;
 
     virtual uint32_t getParameters() = 0;
@@ -43,10 +49,17 @@ public:
     virtual void setFilter(int filterId) {}
     virtual void updateDepthData(uint8_t *data, size_t width, size_t height) {}
     virtual void setQualityParams(int samples) {}
+    // Directory for caches the renderer keeps across launches, set before init()
+    virtual void setCacheDir(const char *path) {}
 
     virtual int createProgram(const char *pVertexSource, const char *pFragmentSource) = 0;
 
+    // Stage latencies, recorded on the render thread and read from any thread.
+    PipelineStats &stats() { return m_stats; }
+
 protected:
+    PipelineStats m_stats;
+
     size_t m_frameWidth;
     size_t m_frameHeight;
     size_t m_surfaceWidth;
@@ -57,6 +70,9 @@ protected:
 
     bool isDirty;
     bool isProgramChanged;
+
+    // Describes a tightly packed I420 buffer as a video_frame.
+    static video_frame packedFrame(uint8_t *buffer, size_t width, size_t height);
 };
 
 #endif // _H_VIDEO_RENDERER_
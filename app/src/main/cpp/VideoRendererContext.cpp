@@ -19,9 +19,15 @@ void VideoRendererContext::render() {
 
 void VideoRendererContext::draw(uint8_t *buffer, size_t length, size_t width, size_t height,
                                 float rotation, bool mirror) {
+    stage_timer timer(m_pVideoRenderer->stats(), kStageDraw);
     m_pVideoRenderer->draw(buffer, length, width, height, rotation, mirror);
 }
 
+void VideoRendererContext::draw(const video_frame &frame, float rotation, bool mirror) {
+    stage_timer timer(m_pVideoRenderer->stats(), kStageDraw);
+    m_pVideoRenderer->draw(frame, rotation, mirror);
+}
+
 void VideoRendererContext::setParameters(uint32_t params) {
     m_pVideoRenderer->setParameters(params);
 }
@@ -50,6 +56,18 @@ void VideoRendererContext::setQualityParams(int samples) {
     m_pVideoRenderer->setQualityParams(samples);
 }
 
+void VideoRendererContext::setCacheDir(const char *path) {
+    m_pVideoRenderer->setCacheDir(path);
+}
+
+void VideoRendererContext::recordDrop(int stage) {
+    m_pVideoRenderer->stats().recordDrop(stage);
+}
+
+bool VideoRendererContext::readStageStats(int stage, uint64_t *counts, uint64_t *totals, bool reset) {
+    return m_pVideoRenderer->stats().read(stage, counts, totals, reset);
+}
+
 void VideoRendererContext::createContext(JNIEnv *env, jobject obj, jint type) {
     auto *context = new VideoRendererContext(type);
 
@@ -23,6 +23,8 @@ public:
 
     void draw(uint8_t *buffer, size_t length, size_t width, size_t height, float rotation, bool mirror);
 
+    void draw(const video_frame &frame, float rotation, bool mirror);
+
     void setParameters(uint32_t params);
 
     uint32_t getParameters();
@@ -32,6 +34,10 @@ public:
     void setFilter(int filterId);
     void updateDepthData(uint8_t *data, size_t width, size_t height);
     void setQualityParams(int samples);
+    void setCacheDir(const char *path);
+
+    void recordDrop(int stage);
+    bool readStageStats(int stage, uint64_t *counts, uint64_t *totals, bool reset);
 
     static void createContext(JNIEnv *env, jobject obj, jint type);
 
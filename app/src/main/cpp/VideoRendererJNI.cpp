@@ -1,5 +1,6 @@
 #include "VideoRendererJNI.h"
 #include "VideoRendererContext.h"
+#include "Log.h"
 
 #include <android/native_window_jni.h>
 #include <android/asset_manager_jni.h>
@@ -38,7 +39,35 @@ JCMCPRV(void, draw)(JNIEnv *env, jobject obj, jbyteArray data, jint width, jint
 
     if (context) context->draw((uint8_t *) bufferPtr, (size_t) arrayLength, (size_t) width, (size_t) height, rotation, mirror);
 
-    env->ReleaseByteArrayElements(data, bufferPtr, 0);
+    env->ReleaseByteArrayElements(data, bufferPtr, JNI_ABORT);
+}
+
+JCMCPRV(void, drawPlanes)(JNIEnv *env, jobject obj, jobject bufferY, jobject bufferU, jobject bufferV,
+                          jint rowStrideY, jint rowStrideUV, jint pixelStrideUV, jint width, jint height,
+                          jint rotation, jboolean mirror) {
+    auto *y = (uint8_t *) env->GetDirectBufferAddress(bufferY);
+    auto *u = (uint8_t *) env->GetDirectBufferAddress(bufferU);
+    auto *v = (uint8_t *) env->GetDirectBufferAddress(bufferV);
+
+    VideoRendererContext *context = VideoRendererContext::getContext(env, obj);
+
+    if (!y || !u || !v) {
+        LOGE("drawPlanes requires direct buffers.");
+        if (context) context->recordDrop(kStageDraw);
+        return;
+    }
+
+    video_frame frame;
+    frame.width = (size_t) width;
+    frame.height = (size_t) height;
+    frame.stride_y = (size_t) rowStrideY;
+    frame.stride_uv = (size_t) rowStrideUV;
+    frame.pixel_stride_uv = (size_t) pixelStrideUV;
+    frame.y = y;
+    frame.u = u;
+    frame.v = v;
+
+    if (context) context->draw(frame, rotation, mirror);
 }
 
 JCMCPRV(void, setParameters)(JNIEnv *env, jobject obj, jint params) {
@@ -79,7 +108,7 @@ JCMCPRV(void, updateDepthData)(JNIEnv *env, jobject obj, jbyteArray data, jint w
 
     if (context) context->updateDepthData((uint8_t *) bufferPtr, (size_t) width, (size_t) height);
 
-    env->ReleaseByteArrayElements(data, bufferPtr, 0);
+    env->ReleaseByteArrayElements(data, bufferPtr, JNI_ABORT);
 }
 
 JCMCPRV(void, setQualityParams)(JNIEnv *env, jobject obj, jint samples) {
@@ -87,3 +116,36 @@ JCMCPRV(void, setQualityParams)(JNIEnv *env, jobject obj, jint samples) {
 
     if (context) context->setQualityParams(samples);
 }
+
+JCMCPRV(void, setCacheDir)(JNIEnv *env, jobject obj, jstring path) {
+    VideoRendererContext *context = VideoRendererContext::getContext(env, obj);
+
+    if (!context || !path) return;
+
+    const char *chars = env->GetStringUTFChars(path, nullptr);
+    context->setCacheDir(chars);
+    env->ReleaseStringUTFChars(path, chars);
+}
+
+JCMCPRV(jboolean, readStageStats)(JNIEnv *env, jobject obj, jint stage, jlongArray counts,
+                                  jlongArray totals, jboolean reset) {
+    VideoRendererContext *context = VideoRendererContext::getContext(env, obj);
+
+    if (!context) return JNI_FALSE;
+
+    if (env->GetArrayLength(counts) < stage_histogram::kBucketCount ||
+        env->GetArrayLength(totals) < 4) {
+        LOGE("readStageStats arrays are too small.");
+        return JNI_FALSE;
+    }
+
+    // Read on the caller's thread, the render thread only ever does atomic adds
+    uint64_t bucketValues[stage_histogram::kBucketCount];
+    uint64_t totalValues[4];
+    if (!context->readStageStats(stage, bucketValues, totalValues, reset)) return JNI_FALSE;
+
+    env->SetLongArrayRegion(counts, 0, stage_histogram::kBucketCount, (const jlong *) bucketValues);
+    env->SetLongArrayRegion(totals, 0, 4, (const jlong *) totalValues);
+
+    return JNI_TRUE;
+}
@@ -15,6 +15,9 @@ JCMCPRV(void, destroy)(JNIEnv *env, jobject obj);
 JCMCPRV(void, init)(JNIEnv *env, jobject obj, jobject surface, jobject assetManager, jint width, jint height);
 JCMCPRV(void, render)(JNIEnv *env, jobject obj);
 JCMCPRV(void, draw)(JNIEnv *env, jobject obj, jbyteArray data, jint width, jint height, jint rotation, jboolean mirror);
+JCMCPRV(void, drawPlanes)(JNIEnv *env, jobject obj, jobject bufferY, jobject bufferU, jobject bufferV,
+                          jint rowStrideY, jint rowStrideUV, jint pixelStrideUV, jint width, jint height,
+                          jint rotation, jboolean mirror);
 JCMCPRV(void, setParameters)(JNIEnv *env, jobject obj, jint params);
 JCMCPRV(jint, getParameters)(JNIEnv *env, jobject obj);
 JCMCPRV(void, setPortraitMode)(JNIEnv *env, jobject obj, jboolean enabled);
@@ -22,6 +25,9 @@ JCMCPRV(void, setBlurStrength)(JNIEnv *env, jobject obj, jfloat strength);
 JCMCPRV(void, setFilter)(JNIEnv *env, jobject obj, jint filterId);
 JCMCPRV(void, updateDepthData)(JNIEnv *env, jobject obj, jbyteArray data, jint width, jint height);
 JCMCPRV(void, setQualityParams)(JNIEnv *env, jobject obj, jint samples);
+JCMCPRV(void, setCacheDir)(JNIEnv *env, jobject obj, jstring path);
+JCMCPRV(jboolean, readStageStats)(JNIEnv *env, jobject obj, jint stage, jlongArray counts,
+                                  jlongArray totals, jboolean reset);
 
 #ifdef __cplusplus
 }
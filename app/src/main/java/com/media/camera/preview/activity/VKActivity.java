@@ -24,6 +24,7 @@ import com.google.android.material.button.MaterialButton;
 import com.google.android.material.slider.Slider;
 import com.media.camera.preview.R;
 import com.media.camera.preview.adapter.FilterAdapter;
+import com.media.camera.preview.ai.SegmentationEngine;
 import com.media.camera.preview.controller.CameraController;
 import com.media.camera.preview.gesture.SimpleGestureFilter.SwipeDirection;
 import com.media.camera.preview.render.VKVideoRenderer;
@@ -80,10 +81,16 @@ public class VKActivity extends BaseActivity implements ActivityCompat.OnRequest
         ImageButton btnSettingsToggle = findViewById(R.id.btn_settings_toggle);
         LinearLayout settingsExpanded = findViewById(R.id.settings_expanded);
 
-        // Portrait
+        // Portrait, dimmed until the segmentation model is warm
+        mVideoRenderer.setSegmentationStateListener(state -> runOnUiThread(() ->
+                btnPortrait.setAlpha(state == SegmentationEngine.State.READY ? 1.0f : 0.5f)));
         btnPortrait.setOnClickListener(v -> {
             isPortraitMode = !isPortraitMode;
             mVideoRenderer.updatePortraitMode(isPortraitMode);
+            if (isPortraitMode
+                    && mVideoRenderer.getSegmentationState() == SegmentationEngine.State.WARMING) {
+                Toast.makeText(this, "Portrait is warming up", Toast.LENGTH_SHORT).show();
+            }
 
             layoutAperture.setVisibility(isPortraitMode ? View.VISIBLE : View.GONE);
             btnPortrait.setColorFilter(isPortraitMode ? 0xFFFFD700 : 0xFFFFFFFF); // Yellow if active
@@ -0,0 +1,88 @@
+package com.media.camera.preview.ai;
+
+/**
+ * Segmentation mask owned by a {@link DepthMapPool}, one byte per pixel in frame orientation,
+ * 255 being the subject. It may carry the frame luma at the same resolution, used as guide for
+ * edge aware refinement.
+ * <p>
+ * Whoever receives a map owns it and has to {@link #release()} it once the data has been
+ * consumed; only then can the producer write into it again.
+ */
+public final class DepthMap {
+
+    private final DepthMapPool mPool;
+    private final byte[] mData;
+    private final byte[] mGuide;
+    private int mWidth;
+    private int mHeight;
+    private boolean mHasGuide;
+    private boolean mFallback;
+    private float mMotion;
+
+    DepthMap(DepthMapPool pool, int capacity) {
+        mPool = pool;
+        mData = new byte[capacity];
+        mGuide = new byte[capacity];
+    }
+
+    /** Mask values, only the first {@code width * height} bytes are meaningful. */
+    public byte[] getData() {
+        return mData;
+    }
+
+    /** Luma of the frame the mask was inferred from, valid if {@link #hasGuide()}. */
+    public byte[] getGuide() {
+        return mGuide;
+    }
+
+    public boolean hasGuide() {
+        return mHasGuide;
+    }
+
+    public void setHasGuide(boolean hasGuide) {
+        mHasGuide = hasGuide;
+    }
+
+    /**
+     * Whether the map holds the placeholder mask published when no model is loaded or inference
+     * failed, rather than a segmentation of the frame.
+     */
+    public boolean isFallback() {
+        return mFallback;
+    }
+
+    public void setFallback(boolean fallback) {
+        mFallback = fallback;
+    }
+
+    /** Scene motion of the frame against the previous inferred one, see {@link MotionScheduler}. */
+    public float getMotion() {
+        return mMotion;
+    }
+
+    public void setMotion(float motion) {
+        mMotion = motion;
+    }
+
+    public int getWidth() {
+        return mWidth;
+    }
+
+    public int getHeight() {
+        return mHeight;
+    }
+
+    public void release() {
+        mPool.recycle(this);
+    }
+
+    /** Sets the size of the mask written by the producer, within the pool capacity. */
+    public void setSize(int width, int height) {
+        if (width * height > mData.length) {
+            throw new IllegalArgumentException("Map of " + width + "x" + height
+                    + " exceeds its capacity of " + mData.length);
+        }
+        mWidth = width;
+        mHeight = height;
+    }
+}
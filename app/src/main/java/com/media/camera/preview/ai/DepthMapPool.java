@@ -0,0 +1,62 @@
+package com.media.camera.preview.ai;
+
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * Fixed set of {@link DepthMap}s allocated up front.
+ * <p>
+ * With the default of two maps the producer fills one while the consumer still holds the
+ * other. When every map is held {@link #acquire} returns {@code null} and the producer drops its
+ * result instead of allocating.
+ */
+public class DepthMapPool {
+
+    public static final int DEFAULT_CAPACITY = 2;
+
+    private final int mMapCapacity;
+    private final ArrayBlockingQueue<DepthMap> mFreeMaps;
+    private final AtomicLong mExhausted = new AtomicLong();
+
+    /** @param mapCapacity bytes of every map, the largest {@code width * height} it will hold */
+    public DepthMapPool(int mapCapacity) {
+        this(mapCapacity, DEFAULT_CAPACITY);
+    }
+
+    public DepthMapPool(int mapCapacity, int count) {
+        mMapCapacity = mapCapacity;
+        mFreeMaps = new ArrayBlockingQueue<>(count);
+        for (int i = 0; i < count; i++) {
+            mFreeMaps.offer(new DepthMap(this, mapCapacity));
+        }
+    }
+
+    /** Returns a free map sized {@code width x height}, or {@code null} if every map is held. */
+    public DepthMap acquire(int width, int height) {
+        DepthMap map = mFreeMaps.poll();
+        if (map == null) {
+            mExhausted.incrementAndGet();
+            return null;
+        }
+        map.setSize(width, height);
+        map.setHasGuide(false);
+        map.setFallback(false);
+        map.setMotion(0.0f);
+        return map;
+    }
+
+    void recycle(DepthMap map) {
+        if (!mFreeMaps.offer(map)) {
+            throw new IllegalStateException("release() on a map that is not held");
+        }
+    }
+
+    public int getMapCapacity() {
+        return mMapCapacity;
+    }
+
+    /** Number of acquisitions refused because every map was held. */
+    public long getExhaustedCount() {
+        return mExhausted.get();
+    }
+}
@@ -0,0 +1,505 @@
+package com.media.camera.preview.ai;
+
+import java.nio.ByteBuffer;
+import java.nio.FloatBuffer;
+
+/**
+ * Converts a YUV 420 frame into the RGB input tensor of the segmentation model.
+ * <p>
+ * Resampling, the sensor rotation, mirroring, color conversion and normalization all happen
+ * in a single pass that writes straight into the tensor, either as normalized floats or, for
+ * quantized models, as uint8/int8 values looked up in a table. Planes are read through their
+ * row and pixel strides, so planar (I420) and semi-planar (NV12/NV21) chroma are handled alike.
+ * <p>
+ * The tensor holds the upright image while the renderer samples the mask in frame texture
+ * space. {@link #getMaskIndex()} maps every tensor pixel back to its frame position so the
+ * model output can be written in frame orientation without another pass.
+ * <p>
+ * With a {@link TileExecutor} the rows of the tensor are split across its threads. Instances
+ * are not thread safe.
+ */
+public final class FramePreprocessor {
+
+    public enum Resampling {
+        /** Interpolates the four nearest source samples, cheap but aliases on large downscales. */
+        BILINEAR,
+        /** Averages every source sample covered by a tensor pixel. */
+        AREA
+    }
+
+    private static final int CHANNELS = 3;
+
+    private final int mWidth;
+    private final int mHeight;
+    private final TileExecutor mExecutor;
+    private final TileExecutor.TileTask mRowsTask = this::processRows;
+    private final float[][] mRows;
+    private final byte[][] mQuantizedRows;
+    private final FloatBuffer[] mFloatViews;
+    private final ByteBuffer[] mQuantizedViews;
+    private FloatBuffer mFloatOutput;
+    private ByteBuffer mQuantizedOutput;
+    private final byte[] mQuantizeTable = new byte[256];
+
+    private Resampling mResampling = Resampling.BILINEAR;
+    private float mScale = 1.0f / 255.0f;
+    private float mBias = 0.0f;
+
+    // Per tensor column / row: the sample range on the source axis it maps to. For bilinear
+    // resampling these are the two neighbours and the 8 bit weight of the second one, for area
+    // resampling the [start, end) range of samples to average.
+    private final int[] mColLuma0;
+    private final int[] mColLuma1;
+    private final int[] mColLumaW;
+    private final int[] mColChroma0;
+    private final int[] mColChroma1;
+    private final int[] mColChromaW;
+    private final int[] mRowLuma0;
+    private final int[] mRowLuma1;
+    private final int[] mRowLumaW;
+    private final int[] mRowChroma0;
+    private final int[] mRowChroma1;
+    private final int[] mRowChromaW;
+    private final int[] mMaskIndex;
+
+    private int mSrcWidth;
+    private int mSrcHeight;
+    private int mRotation = -1;
+    private boolean mMirror;
+    private Resampling mTableResampling;
+
+    // Current job, read by the tile workers.
+    private ByteBuffer mY;
+    private ByteBuffer mU;
+    private ByteBuffer mV;
+    private int mRowStrideY;
+    private int mRowStrideUV;
+    private int mPixelStrideUV;
+    private byte[] mGuide;
+
+    private byte[] mWrappedData;
+    private final ByteBuffer[] mWrappedPlanes = new ByteBuffer[3];
+
+    public FramePreprocessor(int width, int height) {
+        this(width, height, null);
+    }
+
+    /** @param executor splits the rows across threads, {@code null} to run on the caller */
+    public FramePreprocessor(int width, int height, TileExecutor executor) {
+        mWidth = width;
+        mHeight = height;
+        mExecutor = executor;
+        int workers = executor != null ? executor.getParallelism() : 1;
+        mRows = new float[workers][width * CHANNELS];
+        mQuantizedRows = new byte[workers][];
+        mFloatViews = new FloatBuffer[workers];
+        mQuantizedViews = new ByteBuffer[workers];
+
+        mColLuma0 = new int[width];
+        mColLuma1 = new int[width];
+        mColLumaW = new int[width];
+        mColChroma0 = new int[width];
+        mColChroma1 = new int[width];
+        mColChromaW = new int[width];
+        mRowLuma0 = new int[height];
+        mRowLuma1 = new int[height];
+        mRowLumaW = new int[height];
+        mRowChroma0 = new int[height];
+        mRowChroma1 = new int[height];
+        mRowChromaW = new int[height];
+        mMaskIndex = new int[width * height];
+    }
+
+    public int getWidth() {
+        return mWidth;
+    }
+
+    public int getHeight() {
+        return mHeight;
+    }
+
+    public void setResampling(Resampling resampling) {
+        mResampling = resampling;
+    }
+
+    public Resampling getResampling() {
+        return mResampling;
+    }
+
+    /** Tensor values are {@code channel * scale + bias} with channels in [0, 255]. */
+    public void setNormalization(float scale, float bias) {
+        mScale = scale;
+        mBias = bias;
+    }
+
+    /** Writes the tensor as floats into {@code out}. */
+    public void setOutput(FloatBuffer out) {
+        mFloatOutput = out;
+        mQuantizedOutput = null;
+        // Every thread writes its rows through its own view of the tensor.
+        for (int i = 0; i < mFloatViews.length; i++) {
+            mFloatViews[i] = out.duplicate();
+        }
+    }
+
+    /**
+     * Writes the tensor as quantized bytes into {@code out}, each normalized value {@code x}
+     * stored as {@code round(x / scale) + zeroPoint}. Call after
+     * {@link #setNormalization(float, float)}.
+     *
+     * @param signed int8 when set, uint8 otherwise
+     */
+    public void setOutput(ByteBuffer out, float scale, int zeroPoint, boolean signed) {
+        mQuantizedOutput = out;
+        mFloatOutput = null;
+        for (int i = 0; i < mQuantizedViews.length; i++) {
+            mQuantizedViews[i] = out.duplicate();
+            if (mQuantizedRows[i] == null) {
+                mQuantizedRows[i] = new byte[mWidth * CHANNELS];
+            }
+        }
+
+        int min = signed ? Byte.MIN_VALUE : 0;
+        int max = signed ? Byte.MAX_VALUE : 255;
+        for (int c = 0; c < mQuantizeTable.length; c++) {
+            int q = Math.round((c * mScale + mBias) / scale) + zeroPoint;
+            mQuantizeTable[c] = (byte) Math.max(min, Math.min(max, q));
+        }
+    }
+
+    /** Width of the mask in frame orientation for the last processed frame. */
+    public int getMaskWidth() {
+        return isSwapped(mRotation) ? mHeight : mWidth;
+    }
+
+    /** Height of the mask in frame orientation for the last processed frame. */
+    public int getMaskHeight() {
+        return isSwapped(mRotation) ? mWidth : mHeight;
+    }
+
+    /**
+     * Returns, for every tensor pixel in row major order, its index in a mask of
+     * {@link #getMaskWidth()} x {@link #getMaskHeight()} laid out like the source frame.
+     */
+    public int[] getMaskIndex() {
+        return mMaskIndex;
+    }
+
+    /**
+     * Also writes the luma of every tensor pixel into {@code guide}, in frame orientation like
+     * the mask, for edge aware refinement. {@code null} turns it off.
+     */
+    public void setGuideOutput(byte[] guide) {
+        mGuide = guide;
+    }
+
+    /** Same as {@link #process(ByteBuffer, ByteBuffer, ByteBuffer, int, int, int, int, int, int, boolean)} for a packed I420 frame. */
+    public void processI420(byte[] data, int width, int height, int rotation, boolean mirror) {
+        if (mWrappedData != data) {
+            int sizeY = width * height;
+            int sizeUV = sizeY / 4;
+            mWrappedPlanes[0] = ByteBuffer.wrap(data, 0, sizeY).slice();
+            mWrappedPlanes[1] = ByteBuffer.wrap(data, sizeY, sizeUV).slice();
+            mWrappedPlanes[2] = ByteBuffer.wrap(data, sizeY + sizeUV, sizeUV).slice();
+            mWrappedData = data;
+        }
+        process(mWrappedPlanes[0], mWrappedPlanes[1], mWrappedPlanes[2], width, width / 2, 1,
+                width, height, rotation, mirror);
+    }
+
+    /**
+     * Fills the output from its position 0 with the {@code width x height x 3} RGB tensor.
+     *
+     * @param rotation clockwise degrees that turn the frame upright, a multiple of 90
+     * @param mirror   whether the upright image is flipped horizontally
+     */
+    public void process(ByteBuffer y, ByteBuffer u, ByteBuffer v, int rowStrideY,
+                        int rowStrideUV, int pixelStrideUV, int width, int height,
+                        int rotation, boolean mirror) {
+        rotation = normalizeRotation(rotation);
+        if (width != mSrcWidth || height != mSrcHeight || rotation != mRotation
+                || mirror != mMirror || mResampling != mTableResampling) {
+            configure(width, height, rotation, mirror);
+        }
+
+        mY = y;
+        mU = u;
+        mV = v;
+        mRowStrideY = rowStrideY;
+        mRowStrideUV = rowStrideUV;
+        mPixelStrideUV = pixelStrideUV;
+        try {
+            if (mExecutor != null) {
+                mExecutor.execute(mHeight, mRowsTask);
+            } else {
+                processRows(0, mHeight, 0);
+            }
+        } finally {
+            mY = null;
+            mU = null;
+            mV = null;
+        }
+    }
+
+    private void processRows(int start, int end, int worker) {
+        if (mResampling == Resampling.AREA) {
+            processArea(start, end, worker);
+        } else {
+            processBilinear(start, end, worker);
+        }
+    }
+
+    // Scales the row of channel values into the tensor, rows are written in order.
+    private void emitRow(float[] row, int worker) {
+        if (mQuantizedOutput != null) {
+            byte[] quantized = mQuantizedRows[worker];
+            for (int i = 0; i < row.length; i++) {
+                quantized[i] = mQuantizeTable[(int) (row[i] + 0.5f)];
+            }
+            mQuantizedViews[worker].put(quantized);
+        } else {
+            for (int i = 0; i < row.length; i++) {
+                row[i] = row[i] * mScale + mBias;
+            }
+            mFloatViews[worker].put(row);
+        }
+    }
+
+    private void seekRow(int row, int worker) {
+        int position = row * mWidth * CHANNELS;
+        if (mQuantizedOutput != null) {
+            mQuantizedViews[worker].position(position);
+        } else {
+            mFloatViews[worker].position(position);
+        }
+    }
+
+    private void processBilinear(int start, int end, int worker) {
+        final float[] row = mRows[worker];
+        final ByteBuffer y = mY;
+        final ByteBuffer u = mU;
+        final ByteBuffer v = mV;
+        final int rowStrideY = mRowStrideY;
+        final int rowStrideUV = mRowStrideUV;
+        final int pixelStrideUV = mPixelStrideUV;
+        boolean swap = isSwapped(mRotation);
+        final float fixedToFloat = 1.0f / 65536.0f;
+        int[] x0 = swap ? mRowLuma0 : mColLuma0;
+        int[] x1 = swap ? mRowLuma1 : mColLuma1;
+        int[] xw = swap ? mRowLumaW : mColLumaW;
+        int[] y0 = swap ? mColLuma0 : mRowLuma0;
+        int[] y1 = swap ? mColLuma1 : mRowLuma1;
+        int[] yw = swap ? mColLumaW : mRowLumaW;
+        int[] cx0 = swap ? mRowChroma0 : mColChroma0;
+        int[] cx1 = swap ? mRowChroma1 : mColChroma1;
+        int[] cxw = swap ? mRowChromaW : mColChromaW;
+        int[] cy0 = swap ? mColChroma0 : mRowChroma0;
+        int[] cy1 = swap ? mColChroma1 : mRowChroma1;
+        int[] cyw = swap ? mColChromaW : mRowChromaW;
+
+        seekRow(start, worker);
+        final byte[] guide = mGuide;
+        final int[] maskIndex = mMaskIndex;
+        for (int dy = start; dy < end; dy++) {
+            int p = 0;
+            int base = dy * mWidth;
+            for (int dx = 0; dx < mWidth; dx++) {
+                int xk = swap ? dy : dx;
+                int yk = swap ? dx : dy;
+
+                float luma = bilinear(y, rowStrideY, x0[xk], x1[xk], xw[xk],
+                        y0[yk], y1[yk], yw[yk]) * fixedToFloat;
+                int cxa = cx0[xk] * pixelStrideUV;
+                int cxb = cx1[xk] * pixelStrideUV;
+                float cb = bilinear(u, rowStrideUV, cxa, cxb, cxw[xk],
+                        cy0[yk], cy1[yk], cyw[yk]) * fixedToFloat;
+                float cr = bilinear(v, rowStrideUV, cxa, cxb, cxw[xk],
+                        cy0[yk], cy1[yk], cyw[yk]) * fixedToFloat;
+
+                if (guide != null) {
+                    guide[maskIndex[base + dx]] = (byte) (luma + 0.5f);
+                }
+                p = putRgb(row, luma, cb, cr, p);
+            }
+            emitRow(row, worker);
+        }
+    }
+
+    private void processArea(int start, int end, int worker) {
+        final float[] row = mRows[worker];
+        final ByteBuffer y = mY;
+        final ByteBuffer u = mU;
+        final ByteBuffer v = mV;
+        final int rowStrideY = mRowStrideY;
+        final int rowStrideUV = mRowStrideUV;
+        final int pixelStrideUV = mPixelStrideUV;
+        boolean swap = isSwapped(mRotation);
+        int[] x0 = swap ? mRowLuma0 : mColLuma0;
+        int[] x1 = swap ? mRowLuma1 : mColLuma1;
+        int[] y0 = swap ? mColLuma0 : mRowLuma0;
+        int[] y1 = swap ? mColLuma1 : mRowLuma1;
+        int[] cx0 = swap ? mRowChroma0 : mColChroma0;
+        int[] cx1 = swap ? mRowChroma1 : mColChroma1;
+        int[] cy0 = swap ? mColChroma0 : mRowChroma0;
+        int[] cy1 = swap ? mColChroma1 : mRowChroma1;
+
+        seekRow(start, worker);
+        final byte[] guide = mGuide;
+        final int[] maskIndex = mMaskIndex;
+        for (int dy = start; dy < end; dy++) {
+            int p = 0;
+            int base = dy * mWidth;
+            for (int dx = 0; dx < mWidth; dx++) {
+                int xk = swap ? dy : dx;
+                int yk = swap ? dx : dy;
+
+                float luma = boxAverage(y, rowStrideY, 1, x0[xk], x1[xk], y0[yk], y1[yk]);
+                float cb = boxAverage(u, rowStrideUV, pixelStrideUV, cx0[xk], cx1[xk],
+                        cy0[yk], cy1[yk]);
+                float cr = boxAverage(v, rowStrideUV, pixelStrideUV, cx0[xk], cx1[xk],
+                        cy0[yk], cy1[yk]);
+
+                if (guide != null) {
+                    guide[maskIndex[base + dx]] = (byte) (luma + 0.5f);
+                }
+                p = putRgb(row, luma, cb, cr, p);
+            }
+            emitRow(row, worker);
+        }
+    }
+
+    private int putRgb(float[] row, float luma, float cb, float cr, int p) {
+        // BT.601 full range like camera YUV, same coefficients as the shaders and the Vulkan
+        // YCbCr conversion, so the model sees the colors that are displayed.
+        cb -= 128.0f;
+        cr -= 128.0f;
+        float r = luma + 1.403f * cr;
+        float g = luma - 0.344f * cb - 0.714f * cr;
+        float b = luma + 1.770f * cb;
+
+        row[p++] = clamp(r);
+        row[p++] = clamp(g);
+        row[p++] = clamp(b);
+        return p;
+    }
+
+    private static float clamp(float c) {
+        return c < 0.0f ? 0.0f : (c > 255.0f ? 255.0f : c);
+    }
+
+    // Returns the interpolated sample in 16.16 fixed point, x0 and x1 are byte offsets.
+    private static int bilinear(ByteBuffer plane, int rowStride, int x0, int x1, int wx,
+                                int y0, int y1, int wy) {
+        int r0 = y0 * rowStride;
+        int r1 = y1 * rowStride;
+        int a = plane.get(r0 + x0) & 0xff;
+        int b = plane.get(r0 + x1) & 0xff;
+        int c = plane.get(r1 + x0) & 0xff;
+        int d = plane.get(r1 + x1) & 0xff;
+        int top = (a << 8) + (b - a) * wx;
+        int bottom = (c << 8) + (d - c) * wx;
+        return (top << 8) + (bottom - top) * wy;
+    }
+
+    private static float boxAverage(ByteBuffer plane, int rowStride, int pixelStride,
+                                    int x0, int x1, int y0, int y1) {
+        int sum = 0;
+        for (int row = y0; row < y1; row++) {
+            int offset = row * rowStride + x0 * pixelStride;
+            for (int col = x0; col < x1; col++) {
+                sum += plane.get(offset) & 0xff;
+                offset += pixelStride;
+            }
+        }
+        return sum / (float) ((x1 - x0) * (y1 - y0));
+    }
+
+    private void configure(int srcWidth, int srcHeight, int rotation, boolean mirror) {
+        mSrcWidth = srcWidth;
+        mSrcHeight = srcHeight;
+        mRotation = rotation;
+        mMirror = mirror;
+        mTableResampling = mResampling;
+
+        // Upright (u, v) comes from frame (u, v), (v, 1 - u), (1 - u, 1 - v) or (1 - v, u)
+        // for 0, 90, 180 and 270 degrees, with u flipped first when mirrored.
+        boolean swap = isSwapped(rotation);
+        boolean colReversed = (rotation == 0 || rotation == 270) == mirror;
+        boolean rowReversed = rotation == 180 || rotation == 270;
+        int colAxis = swap ? srcHeight : srcWidth;
+        int rowAxis = swap ? srcWidth : srcHeight;
+        boolean area = mResampling == Resampling.AREA;
+
+        buildAxis(colAxis, mWidth, colReversed, area, mColLuma0, mColLuma1, mColLumaW);
+        buildAxis((colAxis + 1) / 2, mWidth, colReversed, area,
+                mColChroma0, mColChroma1, mColChromaW);
+        buildAxis(rowAxis, mHeight, rowReversed, area, mRowLuma0, mRowLuma1, mRowLumaW);
+        buildAxis((rowAxis + 1) / 2, mHeight, rowReversed, area,
+                mRowChroma0, mRowChroma1, mRowChromaW);
+
+        int maskWidth = getMaskWidth();
+        for (int dy = 0; dy < mHeight; dy++) {
+            for (int dx = 0; dx < mWidth; dx++) {
+                int mx = mirror ? mWidth - 1 - dx : dx;
+                int fx;
+                int fy;
+                switch (rotation) {
+                    case 90:
+                        fx = dy;
+                        fy = mWidth - 1 - mx;
+                        break;
+                    case 180:
+                        fx = mWidth - 1 - mx;
+                        fy = mHeight - 1 - dy;
+                        break;
+                    case 270:
+                        fx = mHeight - 1 - dy;
+                        fy = mx;
+                        break;
+                    default:
+                        fx = mx;
+                        fy = dy;
+                        break;
+                }
+                mMaskIndex[dy * mWidth + dx] = fy * maskWidth + fx;
+            }
+        }
+    }
+
+    /**
+     * Maps {@code dst} evenly spaced samples onto an axis of {@code src} samples, optionally
+     * running backwards.
+     */
+    private static void buildAxis(int src, int dst, boolean reversed, boolean area,
+                                  int[] i0, int[] i1, int[] weight) {
+        float step = (float) src / dst;
+        for (int d = 0; d < dst; d++) {
+            int k = reversed ? dst - 1 - d : d;
+            if (area) {
+                int start = (int) (k * step);
+                int end = (int) Math.ceil((k + 1) * step);
+                start = Math.min(start, src - 1);
+                end = Math.max(start + 1, Math.min(end, src));
+                i0[d] = start;
+                i1[d] = end;
+                weight[d] = 0;
+            } else {
+                float pos = (k + 0.5f) * step - 0.5f;
+                pos = Math.max(0.0f, Math.min(pos, src - 1));
+                int first = (int) pos;
+                i0[d] = first;
+                i1[d] = Math.min(first + 1, src - 1);
+                weight[d] = Math.round((pos - first) * 256.0f);
+            }
+        }
+    }
+
+    private static boolean isSwapped(int rotation) {
+        return rotation == 90 || rotation == 270;
+    }
+
+    private static int normalizeRotation(int rotation) {
+        rotation = ((rotation % 360) + 360) % 360;
+        return ((rotation + 45) / 90 % 4) * 90;
+    }
+}
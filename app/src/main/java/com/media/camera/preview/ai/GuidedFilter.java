@@ -0,0 +1,165 @@
+package com.media.camera.preview.ai;
+
+import java.util.Arrays;
+
+/**
+ * Edge aware mask refinement with a guided filter (He et al.), using the frame luma as guide.
+ * <p>
+ * Inside a window the refined mask is fitted as a linear function of the guide, so mask edges
+ * snap to luma edges while flat regions are smoothed. All the means are box filters computed
+ * with running sums, which keeps the cost per pixel independent of the radius.
+ * <p>
+ * Scratch buffers grow to the largest mask seen and are reused afterwards. Instances are not
+ * thread safe.
+ */
+public final class GuidedFilter {
+
+    public static final int DEFAULT_RADIUS = 4;
+    public static final float DEFAULT_EPSILON = 1e-3f;
+
+    private int mRadius = DEFAULT_RADIUS;
+    private float mEpsilon = DEFAULT_EPSILON;
+
+    private float[] mGuide = new float[0];
+    private float[] mMask = new float[0];
+    private float[] mMeanGuide = new float[0];
+    private float[] mMeanMask = new float[0];
+    private float[] mCorrGuide = new float[0];
+    private float[] mCorrGuideMask = new float[0];
+    private float[] mProduct = new float[0];
+    private float[] mTemp = new float[0];
+    private float[] mColumnSums = new float[0];
+
+    public void setRadius(int radius) {
+        mRadius = Math.max(1, radius);
+    }
+
+    public int getRadius() {
+        return mRadius;
+    }
+
+    /** Regularization on the normalized guide variance, larger values smooth across edges. */
+    public void setEpsilon(float epsilon) {
+        mEpsilon = epsilon;
+    }
+
+    public float getEpsilon() {
+        return mEpsilon;
+    }
+
+    /** Refines {@code mask} in place, {@code guide} holds the luma of the same pixels. */
+    public void apply(byte[] mask, byte[] guide, int width, int height) {
+        int size = width * height;
+        ensureCapacity(size);
+        ensureColumns(width);
+
+        final float norm = 1.0f / 255.0f;
+        for (int i = 0; i < size; i++) {
+            float g = (guide[i] & 0xff) * norm;
+            float m = (mask[i] & 0xff) * norm;
+            mGuide[i] = g;
+            mMask[i] = m;
+        }
+
+        boxFilter(mGuide, mMeanGuide, width, height);
+        boxFilter(mMask, mMeanMask, width, height);
+        for (int i = 0; i < size; i++) {
+            mProduct[i] = mGuide[i] * mGuide[i];
+        }
+        boxFilter(mProduct, mCorrGuide, width, height);
+        for (int i = 0; i < size; i++) {
+            mProduct[i] = mGuide[i] * mMask[i];
+        }
+        boxFilter(mProduct, mCorrGuideMask, width, height);
+
+        // Linear coefficients per window, a into mCorrGuide and b into mCorrGuideMask.
+        for (int i = 0; i < size; i++) {
+            float meanGuide = mMeanGuide[i];
+            float meanMask = mMeanMask[i];
+            float variance = mCorrGuide[i] - meanGuide * meanGuide;
+            float covariance = mCorrGuideMask[i] - meanGuide * meanMask;
+            float a = covariance / (variance + mEpsilon);
+            mCorrGuide[i] = a;
+            mCorrGuideMask[i] = meanMask - a * meanGuide;
+        }
+
+        boxFilter(mCorrGuide, mMeanGuide, width, height);
+        boxFilter(mCorrGuideMask, mMeanMask, width, height);
+        for (int i = 0; i < size; i++) {
+            float q = mMeanGuide[i] * mGuide[i] + mMeanMask[i];
+            int value = (int) (q * 255.0f + 0.5f);
+            mask[i] = (byte) (value < 0 ? 0 : (value > 255 ? 255 : value));
+        }
+    }
+
+    // Mean over the (2r+1)^2 window clipped to the image, separable running sums.
+    private void boxFilter(float[] src, float[] dst, int width, int height) {
+        final int r = mRadius;
+        final float[] temp = mTemp;
+
+        for (int y = 0; y < height; y++) {
+            int row = y * width;
+            float sum = 0.0f;
+            for (int x = 0; x < Math.min(r, width); x++) {
+                sum += src[row + x];
+            }
+            for (int x = 0; x < width; x++) {
+                int add = x + r;
+                int remove = x - r - 1;
+                if (add < width) sum += src[row + add];
+                if (remove >= 0) sum -= src[row + remove];
+                int count = Math.min(add, width - 1) - Math.max(x - r, 0) + 1;
+                temp[row + x] = sum / count;
+            }
+        }
+
+        // Vertical pass row by row, keeping a running sum per column.
+        final float[] sums = mColumnSums;
+        Arrays.fill(sums, 0, width, 0.0f);
+        for (int y = 0; y < Math.min(r, height); y++) {
+            int row = y * width;
+            for (int x = 0; x < width; x++) {
+                sums[x] += temp[row + x];
+            }
+        }
+        for (int y = 0; y < height; y++) {
+            int add = y + r;
+            int remove = y - r - 1;
+            if (add < height) {
+                int row = add * width;
+                for (int x = 0; x < width; x++) {
+                    sums[x] += temp[row + x];
+                }
+            }
+            if (remove >= 0) {
+                int row = remove * width;
+                for (int x = 0; x < width; x++) {
+                    sums[x] -= temp[row + x];
+                }
+            }
+            float scale = 1.0f / (Math.min(add, height - 1) - Math.max(y - r, 0) + 1);
+            int row = y * width;
+            for (int x = 0; x < width; x++) {
+                dst[row + x] = sums[x] * scale;
+            }
+        }
+    }
+
+    private void ensureCapacity(int size) {
+        if (mGuide.length >= size) return;
+        mGuide = new float[size];
+        mMask = new float[size];
+        mMeanGuide = new float[size];
+        mMeanMask = new float[size];
+        mCorrGuide = new float[size];
+        mCorrGuideMask = new float[size];
+        mProduct = new float[size];
+        mTemp = new float[size];
+    }
+
+    private void ensureColumns(int width) {
+        if (mColumnSums.length < width) {
+            mColumnSums = new float[width];
+        }
+    }
+}
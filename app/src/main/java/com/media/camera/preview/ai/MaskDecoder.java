@@ -0,0 +1,154 @@
+package com.media.camera.preview.ai;
+
+import java.nio.ByteBuffer;
+import java.nio.FloatBuffer;
+
+/**
+ * Turns the output tensor of the segmentation model into an 8 bit mask.
+ * <p>
+ * Two channel outputs are background and foreground logits, the mask is the sigmoid of their
+ * difference; single channel outputs are already a probability. Quantized outputs are mapped
+ * through a table built from the tensor's scale and zero point, float logits through a sampled
+ * sigmoid, so no exponential is evaluated per pixel.
+ * <p>
+ * Each tensor pixel {@code i} is written to {@code mask[maskIndex[i]]}, which lets the mask be
+ * produced in frame orientation, see {@link FramePreprocessor#getMaskIndex()}. Decoding
+ * distinct row ranges from several threads is safe.
+ */
+public final class MaskDecoder {
+
+    // Sigmoid over fg - bg logits sampled every 1/32 in [-8, 8]. Its slope never exceeds 1/4, so
+    // the nearest entry is within 1/256 of the exact value and the mask within one 8 bit step;
+    // beyond the range the sigmoid is within 1/2980 of 0 or 1.
+    private static final int SIGMOID_STEPS = 32;
+    private static final float SIGMOID_RANGE = 8.0f;
+    private static final byte[] SIGMOID_TABLE = buildSigmoidTable();
+
+    private final int mChannels;
+    private final boolean mSigned;
+    // Mask value per quantized output: indexed by fg - bg + 255 for two channel logits, by the
+    // raw byte for a single probability channel
+    private final byte[] mTable;
+
+    private MaskDecoder(int channels, boolean signed, byte[] table) {
+        mChannels = channels;
+        mSigned = signed;
+        mTable = table;
+    }
+
+    /** Decoder for a float32 output of {@code channels} values per pixel. */
+    public static MaskDecoder forFloat(int channels) {
+        return new MaskDecoder(channels, false, null);
+    }
+
+    /** Decoder for a uint8, or int8 when {@code signed}, output with the given quantization. */
+    public static MaskDecoder forQuantized(float scale, int zeroPoint, boolean signed,
+                                           int channels) {
+        return new MaskDecoder(channels, signed, buildTable(scale, zeroPoint, signed, channels));
+    }
+
+    public boolean isQuantized() {
+        return mTable != null;
+    }
+
+    public int getChannels() {
+        return mChannels;
+    }
+
+    /** Decodes tensor pixels {@code [first, last)} of a float output. */
+    public void decode(FloatBuffer output, int first, int last, int[] maskIndex, byte[] mask) {
+        final int channels = mChannels;
+        if (channels == 1) {
+            for (int i = first; i < last; i++) {
+                float prob = Math.max(0.0f, Math.min(1.0f, output.get(i)));
+                mask[maskIndex[i]] = (byte) (prob * 255);
+            }
+            return;
+        }
+
+        for (int i = first; i < last; i++) {
+            // Assuming [BG_logit, FG_logit]
+            float bg = output.get(channels * i);
+            float fg = output.get(channels * i + 1);
+
+            // Sigmoid of difference: 1 / (1 + exp(bg - fg)), looked up rather than computed.
+            // We need the smooth gradient for antialiasing, not just fg > bg
+            float steps = (fg - bg + SIGMOID_RANGE) * SIGMOID_STEPS + 0.5f;
+            int index = steps <= 0.0f ? 0 : Math.min((int) steps, SIGMOID_TABLE.length - 1);
+            mask[maskIndex[i]] = SIGMOID_TABLE[index];
+        }
+    }
+
+    /** Decodes tensor pixels {@code [first, last)} of a quantized output. */
+    public void decode(ByteBuffer output, int first, int last, int[] maskIndex, byte[] mask) {
+        final byte[] table = mTable;
+        final int channels = mChannels;
+        if (channels == 1) {
+            for (int i = first; i < last; i++) {
+                mask[maskIndex[i]] = table[output.get(i) & 0xff];
+            }
+            return;
+        }
+
+        for (int i = first; i < last; i++) {
+            int bg = output.get(channels * i);
+            int fg = output.get(channels * i + 1);
+            if (!mSigned) {
+                bg &= 0xff;
+                fg &= 0xff;
+            }
+            mask[maskIndex[i]] = table[fg - bg + 255];
+        }
+    }
+
+    /**
+     * Stand-in mask used while there is no model: a centered disc covering a third of a
+     * {@code size x size} mask.
+     */
+    public static byte[] placeholderMask(int size) {
+        byte[] mask = new byte[size * size];
+        float center = size / 2.0f;
+        float radius = size / 3.0f;
+        float radiusSquared = radius * radius;
+
+        for (int y = 0; y < size; y++) {
+            float dy = y - center;
+            for (int x = 0; x < size; x++) {
+                float dx = x - center;
+                // 1.0 (255) = Sharp (Subject), 0.0 (0) = Blur (BG)
+                mask[y * size + x] = dx * dx + dy * dy < radiusSquared ? (byte) 255 : 0;
+            }
+        }
+        return mask;
+    }
+
+    private static byte[] buildSigmoidTable() {
+        int half = (int) (SIGMOID_RANGE * SIGMOID_STEPS);
+        byte[] table = new byte[2 * half + 1];
+        for (int i = 0; i < table.length; i++) {
+            double logit = (double) (i - half) / SIGMOID_STEPS;
+            table[i] = (byte) Math.round(255.0 / (1.0 + Math.exp(-logit)));
+        }
+        return table;
+    }
+
+    private static byte[] buildTable(float scale, int zeroPoint, boolean signed, int channels) {
+        byte[] table;
+        if (channels >= 2) {
+            // Both logits share scale and zero point, so only their difference matters
+            table = new byte[511];
+            for (int i = 0; i < table.length; i++) {
+                float logit = (i - 255) * scale;
+                table[i] = (byte) (255.0 / (1.0 + Math.exp(-logit)));
+            }
+        } else {
+            table = new byte[256];
+            for (int i = 0; i < table.length; i++) {
+                int q = signed ? (byte) i : i;
+                float prob = Math.max(0.0f, Math.min(1.0f, (q - zeroPoint) * scale));
+                table[i] = (byte) (prob * 255);
+            }
+        }
+        return table;
+    }
+}
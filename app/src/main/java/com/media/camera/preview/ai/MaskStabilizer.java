@@ -0,0 +1,91 @@
+package com.media.camera.preview.ai;
+
+/**
+ * Blends each new mask with the previous output to keep low resolution masks from flickering.
+ * <p>
+ * The blend is an exponential moving average whose weight follows the confidence of the new
+ * value: a pixel the model is sure about is taken almost as is, one close to 0.5 only nudges
+ * the history. A pixel also keeps its side of 0.5 until the new value crosses the hysteresis
+ * margin, so uncertain edges do not toggle from one inference to the next. Large scene motion
+ * drops the history since it no longer lines up with the frame.
+ * <p>
+ * Instances are not thread safe.
+ */
+public final class MaskStabilizer {
+
+    public static final float DEFAULT_MIN_ALPHA = 0.25f;
+    public static final float DEFAULT_MAX_ALPHA = 0.9f;
+    public static final float DEFAULT_MARGIN = 0.15f;
+    public static final float DEFAULT_RESET_MOTION = 12.0f;
+
+    // Blend weight of the new value in 1/256, per 8 bit mask value
+    private final int[] mAlphaTable = new int[256];
+    private int mLow;
+    private int mHigh;
+    private float mResetMotion = DEFAULT_RESET_MOTION;
+
+    private byte[] mHistory = new byte[0];
+    private int mWidth;
+    private int mHeight;
+    private boolean mHasHistory;
+
+    public MaskStabilizer() {
+        configure(DEFAULT_MIN_ALPHA, DEFAULT_MAX_ALPHA, DEFAULT_MARGIN);
+    }
+
+    /**
+     * @param minAlpha weight of a new value of 0.5
+     * @param maxAlpha weight of a new value of 0 or 1
+     * @param margin   distance from 0.5 a new value needs to flip a pixel to the other side
+     */
+    public void configure(float minAlpha, float maxAlpha, float margin) {
+        for (int v = 0; v < mAlphaTable.length; v++) {
+            float confidence = Math.abs(v - 127.5f) / 127.5f;
+            float alpha = minAlpha + (maxAlpha - minAlpha) * confidence;
+            mAlphaTable[v] = Math.round(alpha * 256.0f);
+        }
+        mLow = Math.round((0.5f - margin) * 255.0f);
+        mHigh = Math.round((0.5f + margin) * 255.0f);
+    }
+
+    /** Scene motion, as measured by {@link MotionScheduler}, above which history is dropped. */
+    public void setResetMotion(float motion) {
+        mResetMotion = motion;
+    }
+
+    public void reset() {
+        mHasHistory = false;
+    }
+
+    /** Stabilizes {@code mask} in place and keeps the result as history for the next one. */
+    public void apply(byte[] mask, int width, int height, float motion) {
+        int size = width * height;
+        if (!mHasHistory || width != mWidth || height != mHeight || motion >= mResetMotion) {
+            if (mHistory.length < size) {
+                mHistory = new byte[size];
+            }
+            System.arraycopy(mask, 0, mHistory, 0, size);
+            mWidth = width;
+            mHeight = height;
+            mHasHistory = true;
+            return;
+        }
+
+        final byte[] history = mHistory;
+        for (int i = 0; i < size; i++) {
+            int current = mask[i] & 0xff;
+            int previous = history[i] & 0xff;
+            int value = previous + (((current - previous) * mAlphaTable[current]) >> 8);
+
+            // Hysteresis around 0.5, stay on the previous side unless clearly past it
+            if (previous >= 128 && current > mLow) {
+                value = Math.max(value, 128);
+            } else if (previous < 128 && current < mHigh) {
+                value = Math.min(value, 127);
+            }
+
+            history[i] = (byte) value;
+            mask[i] = (byte) value;
+        }
+    }
+}
@@ -0,0 +1,104 @@
+package com.media.camera.preview.ai;
+
+import java.nio.ByteBuffer;
+
+/**
+ * Decides which frames are worth running segmentation on.
+ * <p>
+ * Every frame is reduced to a small luma thumbnail and compared, as a mean absolute difference,
+ * against the thumbnail of the last frame that went to inference. A still scene is only
+ * refreshed at the minimum rate, motion above the threshold triggers inference right away, and
+ * inference never runs faster than the maximum rate.
+ * <p>
+ * Instances are not thread safe, frames are expected from the camera thread.
+ */
+public final class MotionScheduler {
+
+    public static final float DEFAULT_THRESHOLD = 3.0f;
+
+    private static final int THUMB_WIDTH = 32;
+    private static final int THUMB_HEIGHT = 24;
+
+    private final int[] mCurrent = new int[THUMB_WIDTH * THUMB_HEIGHT];
+    private final int[] mReference = new int[THUMB_WIDTH * THUMB_HEIGHT];
+    private boolean mHasReference;
+
+    private long mMinIntervalNs;
+    private long mMaxIntervalNs;
+    private float mThreshold = DEFAULT_THRESHOLD;
+
+    private long mLastRunNs;
+    private float mLastMotion;
+
+    /**
+     * @param minRate inferences per second while the scene is still
+     * @param maxRate inferences per second at most
+     */
+    public MotionScheduler(float minRate, float maxRate) {
+        setRates(minRate, maxRate);
+    }
+
+    public void setRates(float minRate, float maxRate) {
+        mMaxIntervalNs = (long) (1e9 / Math.max(minRate, 0.01f));
+        // Some slack so a maximum rate equal to the camera rate does not skip every other frame
+        // on timestamp jitter.
+        mMinIntervalNs = (long) (0.9e9 / Math.max(maxRate, minRate));
+    }
+
+    /** Mean absolute luma difference, in 8 bit levels, that counts as motion. */
+    public void setThreshold(float threshold) {
+        mThreshold = threshold;
+    }
+
+    /** Motion of the last measured frame against the last scheduled one. */
+    public float getLastMotion() {
+        return mLastMotion;
+    }
+
+    /**
+     * Measures the frame and returns whether inference should run on it. If it does, the caller
+     * has to {@link #commit(long)} once the frame was actually handed to inference.
+     */
+    public boolean shouldRun(ByteBuffer luma, int rowStride, int width, int height, long nowNs) {
+        long elapsed = nowNs - mLastRunNs;
+        if (mHasReference && elapsed < mMinIntervalNs) {
+            return false;
+        }
+
+        mLastMotion = measure(luma, rowStride, width, height);
+        return !mHasReference || elapsed >= mMaxIntervalNs || mLastMotion >= mThreshold;
+    }
+
+    /** Makes the last measured frame the reference for the following ones. */
+    public void commit(long nowNs) {
+        System.arraycopy(mCurrent, 0, mReference, 0, mCurrent.length);
+        mHasReference = true;
+        mLastRunNs = nowNs;
+    }
+
+    public void reset() {
+        mHasReference = false;
+        mLastMotion = 0.0f;
+    }
+
+    private float measure(ByteBuffer luma, int rowStride, int width, int height) {
+        long sad = 0;
+        for (int ty = 0; ty < THUMB_HEIGHT; ty++) {
+            // Two rows and two columns per cell, at a quarter and three quarters of it.
+            int row0 = ((4 * ty + 1) * height / (4 * THUMB_HEIGHT)) * rowStride;
+            int row1 = ((4 * ty + 3) * height / (4 * THUMB_HEIGHT)) * rowStride;
+            for (int tx = 0; tx < THUMB_WIDTH; tx++) {
+                int col0 = (4 * tx + 1) * width / (4 * THUMB_WIDTH);
+                int col1 = (4 * tx + 3) * width / (4 * THUMB_WIDTH);
+                int value = (luma.get(row0 + col0) & 0xff) + (luma.get(row0 + col1) & 0xff)
+                        + (luma.get(row1 + col0) & 0xff) + (luma.get(row1 + col1) & 0xff);
+
+                int i = ty * THUMB_WIDTH + tx;
+                mCurrent[i] = value;
+                sad += Math.abs(value - mReference[i]);
+            }
+        }
+        // Cells hold the sum of four samples.
+        return mHasReference ? sad / (4.0f * mCurrent.length) : 0.0f;
+    }
+}
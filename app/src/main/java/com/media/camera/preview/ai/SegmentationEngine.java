@@ -1,55 +1,242 @@
 package com.media.camera.preview.ai;
 
 import android.content.Context;
-import android.graphics.Bitmap;
-import android.graphics.Matrix;
 import android.util.Log;
 
+import com.media.camera.preview.capture.VideoFrame;
 import com.media.camera.preview.render.AIDepthProcessor;
 
-import java.nio.ByteBuffer;
-
 /**
  * SegmentationEngine handles the intelligence behind the Bokeh effect.
  * It encapsulates the TFLite processing and adds post-processing smoothing.
+ * <p>
+ * The model and interpreters are created and warmed up on a background thread, on the first
+ * launch after the device was calibrated, frames handed in before that are skipped. The engine
+ * reports {@link State#WARMING} until the first mask was delivered.
  */
 public class SegmentationEngine {
     private static final String TAG = "SegmentationEngine";
-    private AIDepthProcessor mProcessor;
+
+    public enum State {
+        /** Interpreters are being created or no mask was produced yet. */
+        WARMING,
+        /** Masks are being delivered. */
+        READY,
+        /** The model could not be loaded, no masks will come. */
+        FAILED,
+        STOPPED
+    }
+
+    public interface StateListener {
+        /** Called on the thread that caused the change. */
+        void onStateChanged(State state);
+    }
+
+    private volatile AIDepthProcessor mProcessor;
     private SegmentationCallback mCallback;
+    private final Object mLock = new Object();
+    private volatile State mState = State.WARMING;
+    private volatile StateListener mStateListener;
+    private volatile float mMinRate;
+    private volatile float mMaxRate;
+
+    // Startup timing, from construction
+    private final long mCreatedNs = System.nanoTime();
+    private volatile long mReadyNs;
+    private volatile long mFirstMaskNs;
+
+    // Refinement runs on the inference thread, settings may change from any thread
+    private final GuidedFilter mGuidedFilter = new GuidedFilter();
+    private volatile boolean mRefineEnabled = true;
+    private volatile int mRefineRadius = GuidedFilter.DEFAULT_RADIUS;
+    private volatile float mRefineEpsilon = GuidedFilter.DEFAULT_EPSILON;
+
+    // Temporal blending, also on the inference thread
+    private final MaskStabilizer mStabilizer = new MaskStabilizer();
+    private volatile boolean mStabilizeEnabled = true;
+    private volatile float mStabilizeResetMotion = MaskStabilizer.DEFAULT_RESET_MOTION;
 
     public interface SegmentationCallback {
-        void onMaskReady(byte[] maskData, int width, int height);
+        /** Takes ownership of {@code mask}, which has to be released once consumed. */
+        void onMaskReady(DepthMap mask);
     }
 
-    public SegmentationEngine(Context context, int resolution, int divisor, SegmentationCallback callback) {
+    public SegmentationEngine(Context context, int resolution, float minRate, float maxRate,
+                              int threads, AIDepthProcessor.PipelineMode pipeline,
+                              SegmentationCallback callback) {
         mCallback = callback;
+        mMinRate = minRate;
+        mMaxRate = maxRate;
+        Context appContext = context.getApplicationContext();
+        // Delegate compilation can take hundreds of milliseconds, keep it off the caller
+        Thread init = new Thread(() -> create(appContext, resolution, threads, pipeline),
+                "SegmentationInit");
+        init.start();
+    }
+
+    private void create(Context context, int resolution, int threads,
+                        AIDepthProcessor.PipelineMode pipeline) {
         // Delegate to AIDepthProcessor which handles the raw TFLite interactions
-        // We wrap it here to allow future expansion (e.g., Bilateral filtering)
-        mProcessor = new AIDepthProcessor(context, resolution, divisor, (depthData, width, height) -> {
-            // Future Optimization: Apply smoothing here
-            // byte[] smoothed = applyBilateralFilter(depthData, width, height);
-            if (mCallback != null) {
-                mCallback.onMaskReady(depthData, width, height);
+        // We wrap it here to refine and stabilize the masks before they reach the renderer
+        // Masks arrive one at a time and in order, which the filter and stabilizer state rely on
+        AIDepthProcessor processor = new AIDepthProcessor(context, resolution, mMinRate, mMaxRate,
+                threads, pipeline, this::onMask);
+        boolean warm = processor.warmUp();
+
+        synchronized (mLock) {
+            if (mState == State.STOPPED) {
+                processor.stop();
+                return;
             }
-        });
+            // Rates may have changed while the interpreters were being built
+            processor.setRates(mMinRate, mMaxRate);
+            if (!warm) {
+                // Before frames go in, the processor still publishes its fallback mask
+                mState = State.FAILED;
+            }
+            mProcessor = processor;
+            mReadyNs = System.nanoTime();
+        }
+        Log.i(TAG, "Engine ready in " + (mReadyNs - mCreatedNs) / 1000000 + " ms"
+                + (warm ? "" : ", running without a model"));
+        StateListener listener = mStateListener;
+        if (!warm && listener != null) {
+            listener.onStateChanged(State.FAILED);
+        }
+    }
+
+    private void onMask(DepthMap depthMap) {
+        // The placeholder mask is passed on as is, it neither means the model works nor should it
+        // blend into the masks around it
+        boolean fallback = depthMap.isFallback();
+        if (mFirstMaskNs == 0 && !fallback) {
+            mFirstMaskNs = System.nanoTime();
+            Log.i(TAG, "First mask " + (mFirstMaskNs - mCreatedNs) / 1000000
+                    + " ms after creation");
+        }
+        if (mState == State.WARMING && !fallback) {
+            setReady();
+        }
+
+        if (mRefineEnabled && depthMap.hasGuide()) {
+            refine(depthMap);
+        }
+        if (!mStabilizeEnabled) {
+            mStabilizer.reset();
+        } else if (!fallback) {
+            // The stabilizer keeps the last real mask to blend the next one with
+            mStabilizer.setResetMotion(mStabilizeResetMotion);
+            mStabilizer.apply(depthMap.getData(), depthMap.getWidth(), depthMap.getHeight(),
+                    depthMap.getMotion());
+        }
+        if (mCallback != null) {
+            mCallback.onMaskReady(depthMap);
+        } else {
+            depthMap.release();
+        }
     }
 
-    public void processFrame(byte[] yuvData, int width, int height, int rotation) {
-        if (mProcessor != null) {
-            mProcessor.processFrame(yuvData, width, height, rotation);
+    // Moves from WARMING to READY, once
+    private void setReady() {
+        synchronized (mLock) {
+            if (mState != State.WARMING) return;
+            mState = State.READY;
+        }
+        StateListener listener = mStateListener;
+        if (listener != null) {
+            listener.onStateChanged(State.READY);
         }
     }
 
+    public State getState() {
+        return mState;
+    }
+
+    /** Sets the listener and reports the current state to it right away. */
+    public void setStateListener(StateListener listener) {
+        mStateListener = listener;
+        if (listener != null) {
+            listener.onStateChanged(mState);
+        }
+    }
+
+    /** Time from construction until the interpreters were warm, -1 while warming. */
+    public long getReadyTimeMs() {
+        long ready = mReadyNs;
+        return ready != 0 ? (ready - mCreatedNs) / 1000000 : -1;
+    }
+
+    /** Time from construction until the first mask was delivered, -1 before it. */
+    public long getFirstMaskTimeMs() {
+        long first = mFirstMaskNs;
+        return first != 0 ? (first - mCreatedNs) / 1000000 : -1;
+    }
+
+    public void processFrame(VideoFrame frame, int rotation, boolean mirror) {
+        AIDepthProcessor processor = mProcessor;
+        if (processor != null) {
+            processor.processFrame(frame, rotation, mirror);
+        }
+    }
+
+    /** Changes the inference rates without restarting the pipeline. */
+    public void setRates(float minRate, float maxRate) {
+        synchronized (mLock) {
+            mMinRate = minRate;
+            mMaxRate = maxRate;
+            if (mProcessor != null) {
+                mProcessor.setRates(minRate, maxRate);
+            }
+        }
+    }
+
+    /** Throughput and latency of the inference pipeline, {@code null} while warming. */
+    public AIDepthProcessor.Stats getStats() {
+        AIDepthProcessor processor = mProcessor;
+        return processor != null ? processor.getStats() : null;
+    }
+
+    /**
+     * Configures the luma guided refinement of mask edges.
+     *
+     * @param radius  window radius in mask pixels
+     * @param epsilon regularization, larger values smooth more across luma edges
+     */
+    public void setRefinement(boolean enabled, int radius, float epsilon) {
+        mRefineRadius = radius;
+        mRefineEpsilon = epsilon;
+        mRefineEnabled = enabled;
+    }
+
+    /**
+     * Configures the blending of each mask with the previous ones.
+     *
+     * @param resetMotion mean luma difference against the previous inferred frame above which
+     *                    the history is dropped
+     */
+    public void setStabilization(boolean enabled, float resetMotion) {
+        mStabilizeResetMotion = resetMotion;
+        mStabilizeEnabled = enabled;
+    }
+
     public void stop() {
-        if (mProcessor != null) {
-            mProcessor.stop();
+        AIDepthProcessor processor;
+        synchronized (mLock) {
+            mState = State.STOPPED;
+            processor = mProcessor;
+            mProcessor = null;
+        }
+        // Still warming, the init thread stops it once built
+        if (processor != null) {
+            Log.i(TAG, "Inference " + processor.getStats());
+            processor.stop();
         }
     }
 
-    // Placeholder for future bilateral filter implementation to smooth jagged edges
-    private byte[] applyBilateralFilter(byte[] mask, int w, int h) {
-        // Implementation of a fast smoothing filter would go here
-        return mask;
+    // Snaps the mask edges to the luma edges of the frame it was inferred from
+    private void refine(DepthMap mask) {
+        mGuidedFilter.setRadius(mRefineRadius);
+        mGuidedFilter.setEpsilon(mRefineEpsilon);
+        mGuidedFilter.apply(mask.getData(), mask.getGuide(), mask.getWidth(), mask.getHeight());
     }
 }
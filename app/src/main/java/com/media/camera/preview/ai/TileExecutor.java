@@ -0,0 +1,171 @@
+package com.media.camera.preview.ai;
+
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.locks.LockSupport;
+
+/**
+ * Runs a range of rows split into tiles on a fixed set of worker threads.
+ * <p>
+ * The calling thread takes part in the work, so a parallelism of {@code n} starts
+ * {@code n - 1} long lived threads; a parallelism of 1 runs everything on the caller. Tiles are
+ * claimed with a single compare-and-set, so dispatching a job does not allocate and a worker
+ * that is descheduled simply claims fewer tiles.
+ * <p>
+ * {@link #execute} blocks until every tile has run. It may be called from several threads, the
+ * workers only serve one of them at a time: a caller that finds them busy runs all its rows
+ * itself instead of waiting, so stages sharing an executor never block each other. Tasks must
+ * therefore not share per worker scratch state between callers. An exception thrown by a tile
+ * is rethrown on the calling thread.
+ */
+public final class TileExecutor {
+
+    public static final int DEFAULT_TILE_ROWS = 16;
+
+    public interface TileTask {
+        /**
+         * Processes rows {@code [start, end)}. {@code worker} is in
+         * {@code [0, getParallelism())}, 0 being the calling thread, and identifies scratch
+         * state the task may keep per thread.
+         */
+        void run(int start, int end, int worker);
+    }
+
+    // State packs the job generation, its tile count and the next unclaimed tile.
+    private static final int TILE_BITS = 20;
+    private static final long TILE_MASK = (1L << TILE_BITS) - 1;
+    private static final long GENERATION_ONE = 1L << (2 * TILE_BITS);
+
+    private final Thread[] mWorkers;
+    private final AtomicLong mState = new AtomicLong();
+    private final AtomicInteger mDone = new AtomicInteger();
+    private final AtomicBoolean mBusy = new AtomicBoolean();
+
+    private volatile int mTileRows = DEFAULT_TILE_ROWS;
+    private volatile boolean mRunning = true;
+    private volatile Thread mCaller;
+    private volatile RuntimeException mFailure;
+
+    private TileTask mTask;
+    private int mCount;
+    private int mTileSize;
+
+    public TileExecutor(int parallelism, String name) {
+        mWorkers = new Thread[Math.max(0, parallelism - 1)];
+        for (int i = 0; i < mWorkers.length; i++) {
+            final int worker = i + 1;
+            mWorkers[i] = new Thread(() -> workerLoop(worker), name + "-" + worker);
+            mWorkers[i].setDaemon(true);
+            mWorkers[i].start();
+        }
+    }
+
+    /** Half the cores, between 1 and 4, leaving room for the camera and render threads. */
+    public static int defaultParallelism() {
+        int cores = Runtime.getRuntime().availableProcessors();
+        return Math.max(1, Math.min(4, cores / 2));
+    }
+
+    public int getParallelism() {
+        return mWorkers.length + 1;
+    }
+
+    public void setTileRows(int rows) {
+        mTileRows = Math.max(1, rows);
+    }
+
+    public int getTileRows() {
+        return mTileRows;
+    }
+
+    public void execute(int count, TileTask task) {
+        int tileSize = mTileRows;
+        int tiles = (count + tileSize - 1) / tileSize;
+        if (mWorkers.length == 0 || tiles <= 1 || !mRunning) {
+            task.run(0, count, 0);
+            return;
+        }
+        if (!mBusy.compareAndSet(false, true)) {
+            // Another caller has the workers, waiting for them would take longer
+            task.run(0, count, 0);
+            return;
+        }
+
+        try {
+            mTask = task;
+            mCount = count;
+            mTileSize = tileSize;
+            mCaller = Thread.currentThread();
+            mFailure = null;
+            mDone.set(0);
+
+            // Publishing the new generation also publishes the job fields above.
+            long generation = (mState.get() & ~(GENERATION_ONE - 1)) + GENERATION_ONE;
+            mState.set(generation | ((long) tiles << TILE_BITS));
+            for (Thread worker : mWorkers) {
+                LockSupport.unpark(worker);
+            }
+
+            runTiles(0);
+
+            while (mDone.get() < tiles) {
+                LockSupport.park(this);
+            }
+            mTask = null;
+
+            RuntimeException failure = mFailure;
+            if (failure != null) {
+                mFailure = null;
+                throw failure;
+            }
+        } finally {
+            mBusy.set(false);
+        }
+    }
+
+    public void shutdown() {
+        mRunning = false;
+        for (Thread worker : mWorkers) {
+            LockSupport.unpark(worker);
+        }
+    }
+
+    private void workerLoop(int worker) {
+        while (mRunning) {
+            if (!runTiles(worker)) {
+                LockSupport.park(this);
+            }
+        }
+    }
+
+    // Claims and runs tiles of the current job until none is left, returns whether it ran any.
+    private boolean runTiles(int worker) {
+        boolean ranAny = false;
+        while (true) {
+            long state = mState.get();
+            int tiles = (int) ((state >>> TILE_BITS) & TILE_MASK);
+            int tile = (int) (state & TILE_MASK);
+            if (tile >= tiles) {
+                return ranAny;
+            }
+            if (!mState.compareAndSet(state, state + 1)) {
+                continue;
+            }
+
+            // The job cannot change before this tile is reported done.
+            int start = tile * mTileSize;
+            int end = Math.min(start + mTileSize, mCount);
+            try {
+                mTask.run(start, end, worker);
+            } catch (RuntimeException e) {
+                mFailure = e;
+            } finally {
+                if (mDone.incrementAndGet() == tiles) {
+                    LockSupport.unpark(mCaller);
+                }
+            }
+            ranAny = true;
+        }
+    }
+}
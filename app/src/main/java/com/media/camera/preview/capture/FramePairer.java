@@ -0,0 +1,96 @@
+package com.media.camera.preview.capture;
+
+/**
+ * Pairs frames of the low resolution analysis stream with the preview frames captured by the
+ * same request.
+ * <p>
+ * Both streams are targets of one repeating request, so a pair shares its sensor timestamp, but
+ * the two images may arrive in either order. Analysis frames that arrive first are retained
+ * until their preview frame shows up; those whose preview frame was dropped are released once
+ * {@link #CAPACITY} newer ones are waiting. Preview frames are never held back, only their
+ * timestamps are remembered for analysis frames that arrive later.
+ * <p>
+ * Not thread safe, both streams are expected on the camera thread.
+ */
+public final class FramePairer {
+
+    public static final int CAPACITY = 2;
+    private static final int PREVIEW_HISTORY = 4;
+
+    private final VideoFrame[] mWaiting = new VideoFrame[CAPACITY];
+    private final long[] mPreviews = new long[PREVIEW_HISTORY];
+    private int mPreviewNext;
+    private long mUnpaired;
+
+    /**
+     * Records a preview frame and returns its analysis frame if that arrived first, or
+     * {@code null}. The caller owns the returned reference and has to release it.
+     */
+    public VideoFrame onPreview(long sensorTimestampNs) {
+        mPreviews[mPreviewNext] = sensorTimestampNs;
+        mPreviewNext = (mPreviewNext + 1) % PREVIEW_HISTORY;
+
+        VideoFrame match = null;
+        for (int i = 0; i < CAPACITY; i++) {
+            VideoFrame frame = mWaiting[i];
+            if (frame == null) continue;
+            if (frame.getSensorTimestampNs() == sensorTimestampNs) {
+                match = frame;
+                mWaiting[i] = null;
+            } else if (frame.getSensorTimestampNs() < sensorTimestampNs) {
+                // Its preview frame was dropped, it will not be paired any more
+                mWaiting[i] = null;
+                frame.release();
+                mUnpaired++;
+            }
+        }
+        return match;
+    }
+
+    /**
+     * Offers an analysis frame. Returns {@code true} if its preview frame already arrived, in
+     * which case the caller processes it right away; otherwise the frame is retained until
+     * {@link #onPreview} pairs it.
+     */
+    public boolean onAnalysis(VideoFrame frame) {
+        long timestamp = frame.getSensorTimestampNs();
+        for (long preview : mPreviews) {
+            if (preview == timestamp) return true;
+        }
+
+        int slot = 0;
+        for (int i = 0; i < CAPACITY; i++) {
+            if (mWaiting[i] == null) {
+                slot = i;
+                break;
+            }
+            if (mWaiting[i].getSensorTimestampNs() < mWaiting[slot].getSensorTimestampNs()) {
+                slot = i;
+            }
+        }
+        if (mWaiting[slot] != null) {
+            mWaiting[slot].release();
+            mUnpaired++;
+        }
+        mWaiting[slot] = frame.retain();
+        return false;
+    }
+
+    /** Number of analysis frames released without a preview frame. */
+    public long getUnpairedCount() {
+        return mUnpaired;
+    }
+
+    /** Releases every waiting frame, when the streams stop. */
+    public void clear() {
+        for (int i = 0; i < CAPACITY; i++) {
+            if (mWaiting[i] != null) {
+                mWaiting[i].release();
+                mWaiting[i] = null;
+            }
+        }
+        for (int i = 0; i < PREVIEW_HISTORY; i++) {
+            mPreviews[i] = 0;
+        }
+    }
+}
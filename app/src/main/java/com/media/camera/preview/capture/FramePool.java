@@ -0,0 +1,103 @@
+package com.media.camera.preview.capture;
+
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * Bounded pool of {@link VideoFrame}s.
+ * <p>
+ * Frames are acquired on the camera thread and may be released from any thread. At most
+ * {@code capacity} frames exist at a time; when all of them are in use {@link #acquire} returns
+ * {@code null} and the caller is expected to drop the camera frame instead of allocating.
+ * Frames of a previous preview size are discarded as they come back.
+ */
+public class FramePool {
+
+    public static final int DEFAULT_CAPACITY = 4;
+
+    private final int mCapacity;
+    private final ArrayBlockingQueue<VideoFrame> mFreeFrames;
+    private final AtomicInteger mAllocated = new AtomicInteger();
+    private final AtomicInteger mOutstanding = new AtomicInteger();
+    private final AtomicLong mHits = new AtomicLong();
+    private final AtomicLong mMisses = new AtomicLong();
+    private final AtomicLong mExhausted = new AtomicLong();
+
+    private volatile int mWidth;
+    private volatile int mHeight;
+
+    public FramePool() {
+        this(DEFAULT_CAPACITY);
+    }
+
+    public FramePool(int capacity) {
+        mCapacity = capacity;
+        mFreeFrames = new ArrayBlockingQueue<>(capacity);
+    }
+
+    /**
+     * Returns a frame of the given size holding one reference, or {@code null} if every frame
+     * of the pool is still in use.
+     */
+    public VideoFrame acquire(int width, int height) {
+        mWidth = width;
+        mHeight = height;
+
+        VideoFrame frame = mFreeFrames.poll();
+        while (frame != null && !matches(frame)) {
+            mAllocated.decrementAndGet();
+            frame = mFreeFrames.poll();
+        }
+
+        if (frame != null) {
+            mHits.incrementAndGet();
+        } else if (mAllocated.incrementAndGet() <= mCapacity) {
+            frame = new VideoFrame(this, width, height);
+            mMisses.incrementAndGet();
+        } else {
+            mAllocated.decrementAndGet();
+            mExhausted.incrementAndGet();
+            return null;
+        }
+
+        frame.acquire();
+        mOutstanding.incrementAndGet();
+        return frame;
+    }
+
+    void recycle(VideoFrame frame) {
+        mOutstanding.decrementAndGet();
+        if (!matches(frame) || !mFreeFrames.offer(frame)) {
+            mAllocated.decrementAndGet();
+        }
+    }
+
+    private boolean matches(VideoFrame frame) {
+        return frame.getWidth() == mWidth && frame.getHeight() == mHeight;
+    }
+
+    public int getCapacity() {
+        return mCapacity;
+    }
+
+    /** Number of acquisitions served from a recycled frame. */
+    public long getHitCount() {
+        return mHits.get();
+    }
+
+    /** Number of acquisitions that had to allocate a new frame. */
+    public long getMissCount() {
+        return mMisses.get();
+    }
+
+    /** Number of acquisitions refused because every frame was in use. */
+    public long getExhaustedCount() {
+        return mExhausted.get();
+    }
+
+    /** Number of frames currently handed out and not yet released. */
+    public int getOutstandingCount() {
+        return mOutstanding.get();
+    }
+}
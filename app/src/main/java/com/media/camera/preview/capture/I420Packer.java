@@ -0,0 +1,52 @@
+package com.media.camera.preview.capture;
+
+import java.nio.ByteBuffer;
+
+/**
+ * Packs the three planes of a YUV_420_888 image into a contiguous I420 array, respecting the
+ * row and pixel strides reported by the camera.
+ */
+public final class I420Packer {
+
+    private byte[] mRowData = new byte[0];
+
+    public void pack(ByteBuffer[] planes, int[] rowStrides, int[] pixelStrides,
+                     int imageWidth, int imageHeight, byte[] data) {
+        int offset = 0;
+
+        for (int plane = 0; plane < planes.length; ++plane) {
+            final ByteBuffer buffer = planes[plane];
+            final int rowStride = rowStrides[plane];
+            // Experimentally, U and V planes have |pixelStride| = 2, which
+            // essentially means they are packed.
+            final int pixelStride = pixelStrides[plane];
+            final int planeWidth = (plane == 0) ? imageWidth : imageWidth / 2;
+            final int planeHeight = (plane == 0) ? imageHeight : imageHeight / 2;
+            buffer.position(0);
+            if (pixelStride == 1 && rowStride == planeWidth) {
+                // Copy whole plane from buffer into |data| at once.
+                buffer.get(data, offset, planeWidth * planeHeight);
+                offset += planeWidth * planeHeight;
+            } else {
+                // Copy pixels one by one respecting pixelStride and rowStride.
+                if (mRowData.length < rowStride) {
+                    mRowData = new byte[rowStride];
+                }
+                final byte[] rowData = mRowData;
+                for (int row = 0; row < planeHeight - 1; ++row) {
+                    buffer.get(rowData, 0, rowStride);
+                    for (int col = 0; col < planeWidth; ++col) {
+                        data[offset++] = rowData[col * pixelStride];
+                    }
+                }
+                // Last row is special in some devices and may not contain the full
+                // |rowStride| bytes of data.
+                // See http://developer.android.com/reference/android/media/Image.Plane.html#getBuffer()
+                buffer.get(rowData, 0, Math.min(rowStride, buffer.remaining()));
+                for (int col = 0; col < planeWidth; ++col) {
+                    data[offset++] = rowData[col * pixelStride];
+                }
+            }
+        }
+    }
+}
@@ -5,5 +5,9 @@ package com.media.camera.preview.capture;
  */
 
 public interface PreviewFrameHandler {
-    void onPreviewFrame(byte[] data, int width, int height);
+    /**
+     * Called on the camera thread for every captured frame. The frame is only valid for the
+     * duration of the call unless the handler {@link VideoFrame#retain() retains} it.
+     */
+    void onPreviewFrame(VideoFrame frame);
 }
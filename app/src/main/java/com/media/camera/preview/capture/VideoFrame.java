@@ -0,0 +1,151 @@
+package com.media.camera.preview.capture;
+
+import android.media.Image;
+
+import java.nio.ByteBuffer;
+import java.util.Arrays;
+import java.util.concurrent.atomic.AtomicInteger;
+
+/**
+ * Reference counted YUV 420 frame owned by a {@link FramePool}.
+ * <p>
+ * The producer holds the first reference. Every consumer that keeps the frame beyond the
+ * callback it was delivered in has to {@link #retain()} it and {@link #release()} it once done;
+ * the frame goes back to its pool when the last reference is dropped.
+ * <p>
+ * A frame wraps the camera {@link Image} it was captured into, so renderers can read the
+ * planes in place through {@link #getPlane(int)}. The packed I420 copy returned by
+ * {@link #getData()} is only produced for consumers that ask for it.
+ */
+public final class VideoFrame {
+
+    public static final int PLANE_Y = 0;
+    public static final int PLANE_U = 1;
+    public static final int PLANE_V = 2;
+
+    private final FramePool mPool;
+    private final AtomicInteger mRefCount = new AtomicInteger();
+    private final int mWidth;
+    private final int mHeight;
+
+    private final ByteBuffer[] mPlanes = new ByteBuffer[3];
+    private final int[] mRowStrides = new int[3];
+    private final int[] mPixelStrides = new int[3];
+    private final I420Packer mPacker = new I420Packer();
+    private Image mImage;
+
+    private byte[] mData;
+    private boolean mPacked;
+    private long mTimestampNs;
+    private long mSensorTimestampNs;
+
+    VideoFrame(FramePool pool, int width, int height) {
+        mPool = pool;
+        mWidth = width;
+        mHeight = height;
+    }
+
+    static int sizeOf(int width, int height) {
+        return width * height * 3 / 2;
+    }
+
+    public int getWidth() {
+        return mWidth;
+    }
+
+    public int getHeight() {
+        return mHeight;
+    }
+
+    /** Monotonic time the frame arrived, comparable with {@link System#nanoTime()}. */
+    public long getTimestampNs() {
+        return mTimestampNs;
+    }
+
+    /** Capture time from the camera, shared by every stream of the same request. */
+    public long getSensorTimestampNs() {
+        return mSensorTimestampNs;
+    }
+
+    public boolean hasPlanes() {
+        return mImage != null;
+    }
+
+    /** Returns the direct buffer of {@link #PLANE_Y}, {@link #PLANE_U} or {@link #PLANE_V}. */
+    public ByteBuffer getPlane(int plane) {
+        return mPlanes[plane];
+    }
+
+    public int getRowStride(int plane) {
+        return mRowStrides[plane];
+    }
+
+    public int getPixelStride(int plane) {
+        return mPixelStrides[plane];
+    }
+
+    /**
+     * Returns the frame packed as I420. The first call on a frame copies the planes, later
+     * calls return the same array.
+     */
+    public synchronized byte[] getData() {
+        if (mData == null) {
+            mData = new byte[sizeOf(mWidth, mHeight)];
+        }
+        if (!mPacked && mImage != null) {
+            mPacker.pack(mPlanes, mRowStrides, mPixelStrides, mWidth, mHeight, mData);
+            mPacked = true;
+        }
+        return mData;
+    }
+
+    public VideoFrame retain() {
+        // Only counts up from a live reference, a frame back in its pool stays released
+        for (;;) {
+            int refCount = mRefCount.get();
+            if (refCount <= 0) {
+                throw new IllegalStateException("retain() on a released frame");
+            }
+            if (mRefCount.compareAndSet(refCount, refCount + 1)) {
+                return this;
+            }
+        }
+    }
+
+    public void release() {
+        int refCount = mRefCount.decrementAndGet();
+        if (refCount == 0) {
+            detach();
+            mPool.recycle(this);
+        } else if (refCount < 0) {
+            throw new IllegalStateException("release() on a released frame");
+        }
+    }
+
+    void acquire() {
+        mRefCount.set(1);
+    }
+
+    void attach(Image image, long timestampNs) {
+        mTimestampNs = timestampNs;
+        mSensorTimestampNs = image.getTimestamp();
+        Image.Plane[] planes = image.getPlanes();
+        for (int i = 0; i < mPlanes.length; i++) {
+            mPlanes[i] = planes[i].getBuffer();
+            mRowStrides[i] = planes[i].getRowStride();
+            mPixelStrides[i] = planes[i].getPixelStride();
+        }
+        mImage = image;
+        synchronized (this) {
+            mPacked = false;
+        }
+    }
+
+    private void detach() {
+        if (mImage != null) {
+            mImage.close();
+            mImage = null;
+            Arrays.fill(mPlanes, null);
+        }
+    }
+}
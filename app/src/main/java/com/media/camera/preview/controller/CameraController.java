@@ -24,8 +24,14 @@ import android.util.Size;
 import android.util.SparseIntArray;
 import android.view.Surface;
 
+import com.media.camera.preview.capture.FramePairer;
+import com.media.camera.preview.capture.FramePool;
 import com.media.camera.preview.capture.PreviewFrameHandler;
 import com.media.camera.preview.capture.VideoCapture;
+import com.media.camera.preview.capture.VideoFrame;
+import com.media.camera.preview.metrics.PipelineMetrics;
+import com.media.camera.preview.metrics.Stage;
+import com.media.camera.preview.render.AIDepthProcessor;
 import com.media.camera.preview.render.VideoRenderer;
 
 import java.nio.ByteBuffer;
@@ -38,7 +44,11 @@ import java.util.concurrent.TimeUnit;
 
 public class CameraController implements PreviewFrameHandler {
     private static final String TAG = CameraController.class.toString();
-    private static final int IMAGE_BUFFER_SIZE = 3;
+    // Frames keep their image open until their last release: one being delivered, the render
+    // mailbox and the frame being drawn, and the segmentation jobs that have not copied theirs.
+    private static final int IMAGE_BUFFER_SIZE = 1 + 2 + AIDepthProcessor.MAX_FRAMES_IN_FLIGHT;
+    // Analysis images are also held while they wait for their preview frame.
+    private static final int ANALYSIS_BUFFER_SIZE = IMAGE_BUFFER_SIZE + FramePairer.CAPACITY;
 
     private static final SparseIntArray ORIENTATIONS = new SparseIntArray();
 
@@ -52,6 +62,8 @@ public class CameraController implements PreviewFrameHandler {
     private final Context mContext;
     private final VideoRenderer mVideoRenderer;
     private final VideoCapture mVideoCapture;
+    private final VideoCapture mAnalysisCapture;
+    private final FramePairer mFramePairer = new FramePairer();
     private final Semaphore mCameraOpenCloseLock = new Semaphore(1);
     private CameraCaptureSession mCaptureSession;
     private CameraDevice mCameraDevice;
@@ -60,6 +72,10 @@ public class CameraController implements PreviewFrameHandler {
     private Handler mBackgroundHandler;
     private HandlerThread mBackgroundThread;
     private ImageReader mImageReader;
+    // Small YUV stream for segmentation, null when the renderer does not want one or the
+    // session could not be configured with it
+    private ImageReader mAnalysisReader;
+    private List<Size> mAnalysisSizes = new ArrayList<>();
     private Integer mSensorOrientation;
     private List<Size> mOutputSizes = new ArrayList<>();
     private Size mPreviewSize;
@@ -71,7 +87,9 @@ public class CameraController implements PreviewFrameHandler {
     public CameraController(Context context, VideoRenderer videoRenderer) {
         mContext = context;
         mVideoRenderer = videoRenderer;
-        mVideoCapture = new VideoCapture(this);
+        // One pooled frame per image, the pool would otherwise drop frames the reader can hold
+        mVideoCapture = new VideoCapture(this, IMAGE_BUFFER_SIZE);
+        mAnalysisCapture = new VideoCapture(this::onAnalysisFrame, ANALYSIS_BUFFER_SIZE);
         mStorageController = new StorageController(context);
     }
 
@@ -79,9 +97,34 @@ public class CameraController implements PreviewFrameHandler {
         return mStorageController;
     }
 
+    public FramePool getFramePool() {
+        return mVideoCapture.getFramePool();
+    }
+
     @Override
-    public void onPreviewFrame(byte[] data, int width, int height) {
-        mVideoRenderer.drawVideoFrame(data, width, height, getOrientation(), isMirrored());
+    public void onPreviewFrame(VideoFrame frame) {
+        long start = PipelineMetrics.now();
+        int rotation = getOrientation();
+        boolean mirror = isMirrored();
+        mVideoRenderer.drawVideoFrame(frame, rotation, mirror);
+        if (mAnalysisReader != null) {
+            VideoFrame analysis = mFramePairer.onPreview(frame.getSensorTimestampNs());
+            if (analysis != null) {
+                try {
+                    mVideoRenderer.analyzeFrame(analysis, rotation, mirror);
+                } finally {
+                    analysis.release();
+                }
+            }
+        }
+        PipelineMetrics.getInstance().record(Stage.PREVIEW, start);
+    }
+
+    // Camera thread, like the preview frames
+    private void onAnalysisFrame(VideoFrame frame) {
+        if (mFramePairer.onAnalysis(frame)) {
+            mVideoRenderer.analyzeFrame(frame, getOrientation(), isMirrored());
+        }
     }
 
     public List<Size> getOutputSizes() {
@@ -143,6 +186,14 @@ public class CameraController implements PreviewFrameHandler {
         mImageReader = ImageReader.newInstance(mPreviewSize.getWidth(), mPreviewSize.getHeight(), ImageFormat.YUV_420_888, IMAGE_BUFFER_SIZE);
         mImageReader.setOnImageAvailableListener(mVideoCapture, mBackgroundHandler);
 
+        Size analysisSize = getAnalysisSize();
+        if (analysisSize != null) {
+            mAnalysisReader = ImageReader.newInstance(analysisSize.getWidth(),
+                    analysisSize.getHeight(), ImageFormat.YUV_420_888, ANALYSIS_BUFFER_SIZE);
+            mAnalysisReader.setOnImageAvailableListener(mAnalysisCapture, mBackgroundHandler);
+            Log.i(TAG, "Analysis stream " + analysisSize);
+        }
+
         // Initialize JPEG ImageReader for high-quality capture
         // Defensive allocation: fall back to safe formats if allocation fails
         try {
@@ -205,6 +256,14 @@ public class CameraController implements PreviewFrameHandler {
                 mImageReader.close();
                 mImageReader = null;
             }
+            if (null != mAnalysisReader) {
+                mAnalysisReader.close();
+                mAnalysisReader = null;
+                // Waiting frames are released on the camera thread, which owns the pairer
+                if (mBackgroundHandler != null) {
+                    mBackgroundHandler.post(mFramePairer::clear);
+                }
+            }
             if (null != mJpegImageReader) {
                 mJpegImageReader.close();
                 mJpegImageReader = null;
@@ -246,6 +305,9 @@ public class CameraController implements PreviewFrameHandler {
         try {
             CaptureRequest.Builder builder = mCameraDevice.createCaptureRequest(CameraDevice.TEMPLATE_RECORD);
             builder.addTarget(mImageReader.getSurface());
+            if (mAnalysisReader != null) {
+                builder.addTarget(mAnalysisReader.getSurface());
+            }
             return builder.build();
         } catch (CameraAccessException e) {
             Log.e(TAG, "createCaptureRequest " + e);
@@ -284,8 +346,12 @@ public class CameraController implements PreviewFrameHandler {
     private void createCaptureSession() {
         try {
             if (null == mCameraDevice || null == mImageReader || null == mJpegImageReader) return;
-            mCameraDevice.createCaptureSession(Arrays.asList(mImageReader.getSurface(), mJpegImageReader.getSurface()),
-                    sessionStateCallback, mBackgroundHandler);
+            List<Surface> outputs = new ArrayList<>(Arrays.asList(mImageReader.getSurface(),
+                    mJpegImageReader.getSurface()));
+            if (mAnalysisReader != null) {
+                outputs.add(mAnalysisReader.getSurface());
+            }
+            mCameraDevice.createCaptureSession(outputs, sessionStateCallback, mBackgroundHandler);
 
         } catch (CameraAccessException e) {
             Log.e(TAG, "createCaptureSession " + e);
@@ -322,6 +388,7 @@ public class CameraController implements PreviewFrameHandler {
         @Override
         public void onConfigured(@NonNull CameraCaptureSession session) {
             mCaptureSession = session;
+            mVideoRenderer.setAnalysisStream(mAnalysisReader != null);
             try {
                 CaptureRequest captureRequest = createCaptureRequest();
                 if (captureRequest != null) {
@@ -336,10 +403,49 @@ public class CameraController implements PreviewFrameHandler {
 
         @Override
         public void onConfigureFailed(@NonNull CameraCaptureSession session) {
+            if (mAnalysisReader != null) {
+                // Three YUV/JPEG streams are not supported everywhere, segmentation can take the
+                // preview frames instead.
+                Log.w(TAG, "Session with analysis stream failed, retrying without it");
+                mAnalysisReader.close();
+                mAnalysisReader = null;
+                mFramePairer.clear();
+                mVideoRenderer.setAnalysisStream(false);
+                createCaptureSession();
+                return;
+            }
             Log.e(TAG, "onConfigureFailed");
         }
     };
 
+    /**
+     * Smallest YUV size with the preview's aspect ratio that still covers the renderer's
+     * analysis size, or {@code null} when there is none smaller than the preview.
+     */
+    private Size getAnalysisSize() {
+        Size target = mVideoRenderer.getAnalysisSize();
+        if (target == null || mPreviewSize == null) return null;
+
+        final double ASPECT_TOLERANCE = 0.05;
+        double previewRatio = (double) mPreviewSize.getWidth() / mPreviewSize.getHeight();
+        int targetShort = Math.min(target.getWidth(), target.getHeight());
+        long previewArea = (long) mPreviewSize.getWidth() * mPreviewSize.getHeight();
+
+        Size best = null;
+        for (Size size : mAnalysisSizes) {
+            double ratio = (double) size.getWidth() / size.getHeight();
+            if (Math.abs(ratio - previewRatio) > ASPECT_TOLERANCE) continue;
+            // Whatever the rotation, the short side has to cover the tensor's short side
+            if (Math.min(size.getWidth(), size.getHeight()) < targetShort) continue;
+            long area = (long) size.getWidth() * size.getHeight();
+            if (area >= previewArea) continue;
+            if (best == null || area < (long) best.getWidth() * best.getHeight()) {
+                best = size;
+            }
+        }
+        return best;
+    }
+
     public Size getOptimalPreviewSize(int w, int h) {
         // Use a very small tolerance because we want an exact match.
         final double ASPECT_TOLERANCE = 0.1;
@@ -390,6 +496,7 @@ public class CameraController implements PreviewFrameHandler {
                     StreamConfigurationMap streamConfigs = characteristics.get(CameraCharacteristics.SCALER_STREAM_CONFIGURATION_MAP);
                     if (streamConfigs != null) {
                         mOutputSizes = Arrays.asList(streamConfigs.getOutputSizes(SurfaceTexture.class));
+                        mAnalysisSizes = Arrays.asList(streamConfigs.getOutputSizes(ImageFormat.YUV_420_888));
                     }
                     mSensorOrientation = characteristics.get(CameraCharacteristics.SENSOR_ORIENTATION);
                     mCameraId = cameraId;
@@ -0,0 +1,96 @@
+package com.media.camera.preview.metrics;
+
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.AtomicLongArray;
+
+/**
+ * Lock free latency histogram with logarithmic buckets, in the spirit of HdrHistogram.
+ * <p>
+ * Values are recorded in microseconds. Each power of two is split into
+ * {@code 2^SUB_BUCKET_BITS} linear sub buckets, so a bucket is never wider than 1/16 of its
+ * lower bound and percentiles are within about 6% of the exact value. Recording is a handful of
+ * atomic increments and never allocates; it is safe from any number of threads.
+ * <p>
+ * The native renderer keeps its histograms in the same layout (PipelineStats.h), both have to
+ * change together.
+ */
+public final class LatencyHistogram {
+
+    public static final int SUB_BUCKET_BITS = 4;
+    public static final int SUB_BUCKET_COUNT = 1 << SUB_BUCKET_BITS;
+    // Up to 2^31 us, beyond that values land in the last bucket
+    public static final int MAX_EXPONENT = 31;
+    public static final int BUCKET_COUNT = (MAX_EXPONENT - SUB_BUCKET_BITS + 1) * SUB_BUCKET_COUNT
+            + SUB_BUCKET_COUNT;
+
+    private final AtomicLongArray mCounts = new AtomicLongArray(BUCKET_COUNT);
+    private final AtomicLong mCount = new AtomicLong();
+    private final AtomicLong mSum = new AtomicLong();
+    private final AtomicLong mMax = new AtomicLong();
+
+    public void recordNanos(long nanos) {
+        record(nanos / 1000);
+    }
+
+    public void record(long micros) {
+        if (micros < 0) micros = 0;
+        mCounts.incrementAndGet(bucketOf(micros));
+        mCount.incrementAndGet();
+        mSum.addAndGet(micros);
+
+        long max = mMax.get();
+        while (micros > max && !mMax.compareAndSet(max, micros)) {
+            max = mMax.get();
+        }
+    }
+
+    /**
+     * Copies the buckets into {@code counts} and returns {count, sum, max} in {@code totals},
+     * optionally clearing them. Values recorded while a reset is in progress are kept by either
+     * this read or the next one, never lost.
+     */
+    public void read(long[] counts, long[] totals, boolean reset) {
+        for (int i = 0; i < BUCKET_COUNT; i++) {
+            counts[i] = reset ? mCounts.getAndSet(i, 0) : mCounts.get(i);
+        }
+        totals[0] = reset ? mCount.getAndSet(0) : mCount.get();
+        totals[1] = reset ? mSum.getAndSet(0) : mSum.get();
+        totals[2] = reset ? mMax.getAndSet(0) : mMax.get();
+    }
+
+    public static int bucketOf(long micros) {
+        if (micros < SUB_BUCKET_COUNT) {
+            return (int) micros;
+        }
+        int exponent = 63 - Long.numberOfLeadingZeros(micros);
+        if (exponent > MAX_EXPONENT) {
+            return BUCKET_COUNT - 1;
+        }
+        int shift = exponent - SUB_BUCKET_BITS;
+        return shift * SUB_BUCKET_COUNT + (int) (micros >>> shift);
+    }
+
+    /** Largest value, in microseconds, that falls into {@code bucket}. */
+    public static long highestOf(int bucket) {
+        if (bucket < 2 * SUB_BUCKET_COUNT) {
+            return bucket;
+        }
+        int shift = bucket / SUB_BUCKET_COUNT - 1;
+        long sub = bucket - shift * SUB_BUCKET_COUNT;
+        return ((sub + 1) << shift) - 1;
+    }
+
+    /** Value at {@code percentile} (0 to 100) of the given buckets, 0 when empty. */
+    public static long valueAt(long[] counts, long total, double percentile) {
+        if (total <= 0) return 0;
+        long rank = Math.max(1, (long) Math.ceil(total * percentile / 100.0));
+        long seen = 0;
+        for (int i = 0; i < counts.length; i++) {
+            seen += counts[i];
+            if (seen >= rank) {
+                return highestOf(i);
+            }
+        }
+        return highestOf(counts.length - 1);
+    }
+}
@@ -0,0 +1,13 @@
+package com.media.camera.preview.metrics;
+
+/**
+ * Reads the histograms kept by native code, for the stages where {@link Stage#isNative()}.
+ */
+public interface NativeStatsSource {
+    /**
+     * Fills {@code counts} with {@link LatencyHistogram#BUCKET_COUNT} buckets and {@code totals}
+     * with {count, sum in us, max in us, drops}, optionally clearing them. Returns {@code false}
+     * if there is nothing to read yet.
+     */
+    boolean readStageStats(int nativeStage, long[] counts, long[] totals, boolean reset);
+}
@@ -0,0 +1,141 @@
+package com.media.camera.preview.metrics;
+
+import java.util.Arrays;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * Per stage latency histograms and drop counters of the frame pipeline.
+ * <p>
+ * Timestamps come from {@link System#nanoTime()}, the same monotonic clock as
+ * {@code CLOCK_MONOTONIC} on the native side, so a timestamp taken when a frame arrives can be
+ * carried with it and compared on any thread. Recording does not lock or allocate; the
+ * snapshot side allocates and is meant for periodic reporting.
+ */
+public final class PipelineMetrics {
+
+    private static final PipelineMetrics INSTANCE = new PipelineMetrics();
+
+    private static final Stage[] STAGES = Stage.values();
+
+    private final LatencyHistogram[] mHistograms = new LatencyHistogram[STAGES.length];
+    private final AtomicLong[] mDrops = new AtomicLong[STAGES.length];
+    private volatile boolean mEnabled = true;
+    private volatile NativeStatsSource mNativeSource;
+
+    // Snapshot scratch, guarded by this
+    private final long[] mCounts = new long[LatencyHistogram.BUCKET_COUNT];
+    private final long[] mTotals = new long[4];
+
+    /** Result of {@link #snapshot(boolean)}, one entry per {@link Stage}. */
+    public static final class Snapshot {
+        private final StageStats[] mStats;
+
+        Snapshot(StageStats[] stats) {
+            mStats = stats;
+        }
+
+        public StageStats get(Stage stage) {
+            return mStats[stage.ordinal()];
+        }
+
+        @Override
+        public String toString() {
+            StringBuilder builder = new StringBuilder();
+            for (StageStats stats : mStats) {
+                if (stats.count == 0 && stats.drops == 0) continue;
+                if (builder.length() > 0) builder.append('\n');
+                builder.append(stats);
+            }
+            return builder.toString();
+        }
+    }
+
+    private PipelineMetrics() {
+        for (int i = 0; i < STAGES.length; i++) {
+            mHistograms[i] = new LatencyHistogram();
+            mDrops[i] = new AtomicLong();
+        }
+    }
+
+    public static PipelineMetrics getInstance() {
+        return INSTANCE;
+    }
+
+    public static long now() {
+        return System.nanoTime();
+    }
+
+    public void setEnabled(boolean enabled) {
+        mEnabled = enabled;
+    }
+
+    public boolean isEnabled() {
+        return mEnabled;
+    }
+
+    /** Registers where native stages are read from, {@code null} to clear it. */
+    public synchronized void setNativeSource(NativeStatsSource source) {
+        mNativeSource = source;
+    }
+
+    /** Clears the native source if it is still {@code source}. */
+    public synchronized void clearNativeSource(NativeStatsSource source) {
+        if (mNativeSource == source) {
+            mNativeSource = null;
+        }
+    }
+
+    /**
+     * Records the time from {@code startNs} to now for {@code stage} and returns now, so
+     * consecutive stages can be chained.
+     */
+    public long record(Stage stage, long startNs) {
+        long now = System.nanoTime();
+        if (mEnabled) {
+            mHistograms[stage.ordinal()].recordNanos(now - startNs);
+        }
+        return now;
+    }
+
+    public void recordDuration(Stage stage, long durationNs) {
+        if (mEnabled) {
+            mHistograms[stage.ordinal()].recordNanos(durationNs);
+        }
+    }
+
+    /** Counts a frame dropped at {@code stage}. */
+    public void recordDrop(Stage stage) {
+        if (mEnabled) {
+            mDrops[stage.ordinal()].incrementAndGet();
+        }
+    }
+
+    public synchronized Snapshot snapshot(boolean reset) {
+        StageStats[] stats = new StageStats[STAGES.length];
+        NativeStatsSource source = mNativeSource;
+        for (Stage stage : STAGES) {
+            int i = stage.ordinal();
+            if (stage.isNative()) {
+                if (source == null || !source.readStageStats(stage.getNativeIndex(), mCounts,
+                        mTotals, reset)) {
+                    Arrays.fill(mCounts, 0);
+                    Arrays.fill(mTotals, 0);
+                }
+            } else {
+                mHistograms[i].read(mCounts, mTotals, reset);
+                mTotals[3] = reset ? mDrops[i].getAndSet(0) : mDrops[i].get();
+            }
+            stats[i] = new StageStats(stage, mCounts, mTotals[0], mTotals[1], mTotals[2],
+                    mTotals[3]);
+        }
+        return new Snapshot(stats);
+    }
+
+    public Snapshot snapshot() {
+        return snapshot(false);
+    }
+
+    public void reset() {
+        snapshot(true);
+    }
+}
@@ -0,0 +1,62 @@
+package com.media.camera.preview.metrics;
+
+/**
+ * Steps of the frame pipeline that {@link PipelineMetrics} keeps a latency histogram for.
+ */
+public enum Stage {
+    /** Acquiring the camera image and wrapping it in a pooled frame. */
+    CAPTURE,
+    /**
+     * Whole {@code onPreviewFrame} dispatch on the camera thread, segmentation submission
+     * included; drawing too for renderers that draw on the camera thread.
+     */
+    PREVIEW,
+    /**
+     * Handing the frame to the native renderer, from Java. Drops are frames a render thread
+     * replaced before drawing them.
+     */
+    DRAW,
+    /** Native draw, texture upload and, for Vulkan, presentation. */
+    NATIVE_DRAW(0),
+    /** Native render of the current textures. */
+    NATIVE_RENDER(1),
+    /** Copying the camera planes into the memory the GPU reads them from, Vulkan only. */
+    NATIVE_UPLOAD(2),
+    /**
+     * GPU time of a frame from the texture upload to the end of its render pass, from Vulkan
+     * timestamps. Not recorded when the device cannot time its queue.
+     */
+    NATIVE_GPU(3),
+    /** Scheduling a frame for segmentation on the camera thread. */
+    AI_SUBMIT,
+    /** Frame waiting for a segmentation thread. */
+    AI_QUEUE,
+    /** Color conversion, resizing and rotation into the input tensor. */
+    AI_CONVERT,
+    /** Interpreter run. */
+    AI_INFERENCE,
+    /** Output tensor to mask. */
+    AI_POSTPROCESS,
+    /** Frame arrival to its mask being published. */
+    AI_END_TO_END;
+
+    private final int mNativeIndex;
+
+    Stage() {
+        this(-1);
+    }
+
+    Stage(int nativeIndex) {
+        mNativeIndex = nativeIndex;
+    }
+
+    /** Whether the stage is measured by the native renderer, see {@link NativeStatsSource}. */
+    public boolean isNative() {
+        return mNativeIndex >= 0;
+    }
+
+    /** Stage id on the native side, -1 for stages measured in Java. */
+    public int getNativeIndex() {
+        return mNativeIndex;
+    }
+}
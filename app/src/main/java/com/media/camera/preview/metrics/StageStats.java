@@ -0,0 +1,35 @@
+package com.media.camera.preview.metrics;
+
+import java.util.Locale;
+
+/**
+ * Latency percentiles and drop count of one {@link Stage}, in microseconds.
+ */
+public final class StageStats {
+    public final Stage stage;
+    public final long count;
+    public final long drops;
+    public final long mean;
+    public final long p50;
+    public final long p95;
+    public final long p99;
+    public final long max;
+
+    StageStats(Stage stage, long[] counts, long count, long sum, long max, long drops) {
+        this.stage = stage;
+        this.count = count;
+        this.drops = drops;
+        this.mean = count > 0 ? sum / count : 0;
+        this.p50 = LatencyHistogram.valueAt(counts, count, 50.0);
+        this.p95 = LatencyHistogram.valueAt(counts, count, 95.0);
+        this.p99 = LatencyHistogram.valueAt(counts, count, 99.0);
+        this.max = max;
+    }
+
+    @Override
+    public String toString() {
+        return String.format(Locale.US,
+                "%s: n=%d drop=%d mean=%.2fms p50=%.2fms p95=%.2fms p99=%.2fms max=%.2fms",
+                stage, count, drops, mean / 1e3, p50 / 1e3, p95 / 1e3, p99 / 1e3, max / 1e3);
+    }
+}
@@ -6,97 +6,344 @@ import android.os.Handler;
 import android.os.HandlerThread;
 import android.util.Log;
 
+import com.media.camera.preview.ai.DepthMap;
+import com.media.camera.preview.ai.DepthMapPool;
+import com.media.camera.preview.ai.FramePreprocessor;
+import com.media.camera.preview.ai.MaskDecoder;
+import com.media.camera.preview.ai.MotionScheduler;
+import com.media.camera.preview.ai.TileExecutor;
+import com.media.camera.preview.capture.VideoFrame;
+import com.media.camera.preview.metrics.PipelineMetrics;
+import com.media.camera.preview.metrics.Stage;
+
+import org.tensorflow.lite.DataType;
 import org.tensorflow.lite.Interpreter;
-import org.tensorflow.lite.gpu.CompatibilityList;
-import org.tensorflow.lite.gpu.GpuDelegate;
+import org.tensorflow.lite.Tensor;
 
 import java.io.FileInputStream;
 import java.io.IOException;
 import java.nio.ByteBuffer;
 import java.nio.ByteOrder;
+import java.nio.FloatBuffer;
 import java.nio.MappedByteBuffer;
 import java.nio.channels.FileChannel;
+import java.util.Arrays;
+import java.util.Locale;
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.CountDownLatch;
 import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
 
 public class AIDepthProcessor {
     private static final String TAG = "AIDepthProcessor";
-    private static final String MODEL_FILE = "selfie_segmentation_landscape.tflite";
+    static final String MODEL_FILE = "selfie_segmentation_landscape.tflite";
+
+    /**
+     * How preprocessing and inference of consecutive frames overlap.
+     */
+    public enum PipelineMode {
+        /** One frame at a time, preprocessed and inferred on the same thread. */
+        SEQUENTIAL,
+        /** The next frame is preprocessed while the current one is inferred. */
+        PIPELINED,
+        /**
+         * As {@link #PIPELINED}, with a GPU and a CPU interpreter taking frames in turn. Falls
+         * back to {@link #PIPELINED} when the GPU delegate is not available.
+         */
+        PIPELINED_DUAL
+    }
+
+    /** Counters since the processor was created. */
+    public static final class Stats {
+        public final PipelineMode mode;
+        public final int depth;
+        public final long submitted;
+        public final long dropped; // Scheduled frames refused because every slot was in flight
+        public final long published;
+        public final long failed; // Published as the fallback mask after an inference error
+        public final float throughput; // Masks per second between the first and last publish
+        public final float meanLatencyMs; // Frame handed in to mask published
+        public final float meanInferenceMs; // Interpreter run and postprocessing
+
+        Stats(PipelineMode mode, int depth, long submitted, long dropped, long published,
+              long failed, float throughput, float meanLatencyMs, float meanInferenceMs) {
+            this.mode = mode;
+            this.depth = depth;
+            this.submitted = submitted;
+            this.dropped = dropped;
+            this.published = published;
+            this.failed = failed;
+            this.throughput = throughput;
+            this.meanLatencyMs = meanLatencyMs;
+            this.meanInferenceMs = meanInferenceMs;
+        }
 
-    private Interpreter tflite;
+        @Override
+        public String toString() {
+            return mode + " depth " + depth + ": " + published + "/" + submitted + " published, "
+                    + dropped + " dropped, " + failed + " failed, "
+                    + String.format(Locale.US, "%.1f/s, latency %.1f ms, inference %.1f ms",
+                    throughput, meanLatencyMs, meanInferenceMs);
+        }
+    }
+
+    // Inferences on the primary interpreter between backend checks
+    private static final int BACKEND_CHECK_RUNS = 30;
+
+    // Interpreters of PIPELINED_DUAL, the most any mode runs
+    private static final int MAX_INTERPRETERS = 2;
+    /**
+     * Camera frames the pipeline may hold at once: each job keeps its frame until
+     * preprocessing, and there is one job per interpreter plus the one being prepared.
+     */
+    public static final int MAX_FRAMES_IN_FLIGHT = 1 + MAX_INTERPRETERS;
+
+    // Replaced as a whole when the primary backend is switched, guarded by switchLock
+    private volatile InferenceWorker[] workers = new InferenceWorker[0];
+    private volatile PipelineMode mode;
+    private BackendSelector selector;
+    private MappedByteBuffer model;
+    private GpuDelegateCache delegateCache;
+    private final Object switchLock = new Object();
+    private final AtomicBoolean switching = new AtomicBoolean();
+    private boolean stopped; // Guarded by switchLock
     private HandlerThread backgroundThread;
     private Handler backgroundHandler;
-    private final AtomicBoolean isProcessing = new AtomicBoolean(false);
     private int inputSize = 256;
-    private ByteBuffer inputBuffer;
-    private ByteBuffer outputBuffer;
-    private GpuDelegate gpuDelegate;
-    private int[] rgbBuffer;
+    // Shared by preprocessing and the workers' postprocessing, a stage finding it busy runs alone
+    private TileExecutor executor;
+    private DepthMapPool mapPool;
+    private byte[] mockMask;
+
+    // Frames in flight, each slot owns its tensors and preprocessor
+    private int depth;
+    private ArrayBlockingQueue<Job> freeJobs;
+    private long nextSequence; // Camera thread only
+    // Finished jobs waiting for the earlier ones, indexed by sequence % depth
+    private Job[] completed;
+    private long nextPublish; // Guarded by completed
+    private boolean publishing; // Guarded by completed, a thread is handing out masks
+
+    private final AtomicLong submittedCount = new AtomicLong();
+    private final AtomicLong droppedCount = new AtomicLong();
+    private final AtomicLong publishedCount = new AtomicLong();
+    private final AtomicLong failedCount = new AtomicLong();
+    private final AtomicLong latencySumNs = new AtomicLong();
+    private final AtomicLong inferenceSumNs = new AtomicLong();
+    private final AtomicLong inferenceCount = new AtomicLong();
+    private volatile long firstPublishNs;
+    private volatile long lastPublishNs;
+
+    // Tensor layout read from the model
+    private int tensorWidth;
+    private int tensorHeight;
+    private DataType inputType = DataType.FLOAT32;
+    private Tensor.QuantizationParams inputQuantization;
+    private int inputBytes;
+    private int outputBytes;
+    private MaskDecoder decoder = MaskDecoder.forFloat(2);
 
     private DepthCallback callback;
-    private int frameCounter = 0;
-    private int processDivisor = 1;
+    private final MotionScheduler scheduler;
+    // Requested rates, handed to the scheduler on the camera thread
+    private volatile float minRate;
+    private volatile float maxRate;
+    private float scheduledMinRate;
+    private float scheduledMaxRate;
+    private final PipelineMetrics metrics = PipelineMetrics.getInstance();
 
     public interface DepthCallback {
-        void onDepthMapReady(byte[] depthData, int width, int height);
+        /**
+         * Takes ownership of {@code depthMap}, which has to be released once consumed. Masks
+         * arrive in frame order and never concurrently, though not always on the same thread.
+         */
+        void onDepthMapReady(DepthMap depthMap);
     }
 
-    public AIDepthProcessor(Context context, int resolution, int divisor, DepthCallback callback) {
+    /**
+     * @param minRate inferences per second while the scene is still
+     * @param maxRate inferences per second while it moves
+     * @param threads threads sharing the pre and post processing of a frame, 1 keeps it on the
+     *                inference thread
+     */
+    public AIDepthProcessor(Context context, int resolution, float minRate, float maxRate,
+                            int threads, DepthCallback callback) {
+        this(context, resolution, minRate, maxRate, threads, PipelineMode.SEQUENTIAL, callback);
+    }
+
+    public AIDepthProcessor(Context context, int resolution, float minRate, float maxRate,
+                            int threads, PipelineMode mode, DepthCallback callback) {
         this.inputSize = resolution;
-        this.processDivisor = divisor;
+        this.scheduler = new MotionScheduler(minRate, maxRate);
+        this.minRate = scheduledMinRate = minRate;
+        this.maxRate = scheduledMaxRate = maxRate;
         this.callback = callback;
-        initTFLite(context);
+        this.executor = new TileExecutor(threads, "TFLiteWorker");
+        initTFLite(context, mode);
+        createJobs();
+        // One more map than frames in flight, for the one held by the consumer
+        mapPool = new DepthMapPool(Math.max(tensorWidth * tensorHeight, inputSize * inputSize),
+                depth + 1);
         startBackgroundThread();
     }
 
-    private void initTFLite(Context context) {
+    private void initTFLite(Context context, PipelineMode requested) {
+        mode = requested;
         try {
-            Interpreter.Options options = new Interpreter.Options();
-            CompatibilityList compatList = new CompatibilityList();
-            boolean gpuInitialized = false;
+            model = loadModelFile(context);
+            delegateCache = openDelegateCache(context);
+            DeviceProfile profile = QualityManager.getDeviceProfile(context);
+            // Before the pipeline has an interpreter, nothing else infers while backends are timed
+            DeviceCalibrator.calibrate(profile, model, delegateCache);
+            selector = new BackendSelector(profile);
+            InferenceWorker primary = createWorker("TFLiteInference-0", selector.getBest());
+            if (primary == null && !selector.getBest().isCpu()) {
+                primary = createWorker("TFLiteInference-0", selector.getBestCpu());
+            }
+            if (primary == null) {
+                Log.e(TAG, "Failed to load TFLite model");
+                return;
+            }
 
-            try {
-                if (compatList.isDelegateSupportedOnThisDevice()) {
-                    GpuDelegate.Options delegateOptions = compatList.getBestOptionsForThisDevice();
-                    gpuDelegate = new GpuDelegate(delegateOptions);
-                    options.addDelegate(gpuDelegate);
-                    Log.i(TAG, "Using GPU Delegate");
-                    gpuInitialized = true;
+            InferenceWorker secondary = null;
+            if (requested == PipelineMode.PIPELINED_DUAL) {
+                // A second CPU interpreter would only compete for the same cores
+                if (!primary.getBackend().isCpu()) {
+                    secondary = createWorker("TFLiteInference-1", selector.getBestCpu());
                 }
-            } catch (Exception e) {
-                Log.w(TAG, "GPU Delegate failed to initialize, falling back to CPU", e);
-                if (gpuDelegate != null) {
-                    gpuDelegate.close();
-                    gpuDelegate = null;
+                if (secondary == null) {
+                    Log.i(TAG, "No second interpreter, running " + PipelineMode.PIPELINED);
+                    mode = PipelineMode.PIPELINED;
                 }
             }
+            workers = secondary != null
+                    ? new InferenceWorker[]{primary, secondary}
+                    : new InferenceWorker[]{primary};
 
-            if (!gpuInitialized) {
-                options.setNumThreads(4);
-                Log.i(TAG, "Using CPU with 4 threads");
+            configureTensors(primary.getInterpreter());
+        } catch (Exception e) {
+            Log.e(TAG, "Error initializing TFLite", e);
+            for (InferenceWorker worker : workers) {
+                worker.close();
             }
+            workers = new InferenceWorker[0];
+        }
+    }
 
-            try {
-                tflite = new Interpreter(loadModelFile(context), options);
-            } catch (Exception e) {
-                 Log.e(TAG, "Failed to load TFLite model", e);
-            }
+    private InferenceWorker createWorker(String name, InferenceBackend backend) {
+        return InferenceWorker.create(name, model, backend,
+                backend.kind == InferenceBackend.Kind.GPU ? delegateCache : null);
+    }
 
-            // Input: 1 x 256 x 256 x 3 (Float32)
-            inputBuffer = ByteBuffer.allocateDirect(4 * 3 * inputSize * inputSize);
-            inputBuffer.order(ByteOrder.nativeOrder());
+    // On the primary interpreter's thread, after each of its inferences
+    private void checkBackend(InferenceWorker worker) {
+        float meanMs = worker.takeWindowMs(BACKEND_CHECK_RUNS);
+        if (Float.isNaN(meanMs) || selector == null) return;
+
+        // Each interpreter takes every n-th frame, so it has n frame intervals per inference
+        InferenceWorker[] current = workers;
+        float budgetMs = 1000.0f * current.length / Math.max(maxRate, 1.0f);
+        InferenceBackend next = selector.onObserved(worker.getBackend(), meanMs, budgetMs);
+        if (next != null && switching.compareAndSet(false, true)) {
+            new Thread(() -> switchPrimary(next), "BackendSwitch").start();
+        }
+    }
 
-            // Output: 1 x 256 x 256 x 2 (Float32)
-            outputBuffer = ByteBuffer.allocateDirect(4 * inputSize * inputSize * 2);
-            outputBuffer.order(ByteOrder.nativeOrder());
+    // Builds the new primary interpreter off the pipeline, then swaps it in. Jobs already handed
+    // to the old one finish there before it is closed.
+    private void switchPrimary(InferenceBackend backend) {
+        try {
+            InferenceWorker primary = createWorker("TFLiteInference-0", backend);
+            if (primary == null) return;
+
+            InferenceWorker[] retired;
+            synchronized (switchLock) {
+                if (stopped) {
+                    primary.close();
+                    return;
+                }
+                InferenceWorker[] current = workers;
+                InferenceWorker[] next;
+                if (backend.isCpu()) {
+                    // Drops the CPU secondary as well
+                    next = new InferenceWorker[]{primary};
+                    retired = current;
+                } else {
+                    next = current.clone();
+                    next[0] = primary;
+                    retired = new InferenceWorker[]{current[0]};
+                }
+                workers = next;
+                if (next.length == 1 && mode == PipelineMode.PIPELINED_DUAL) {
+                    mode = PipelineMode.PIPELINED;
+                }
+            }
+            for (InferenceWorker worker : retired) {
+                worker.close();
+            }
+            Log.i(TAG, "Primary interpreter now on " + backend);
+        } finally {
+            switching.set(false);
+        }
+    }
 
-            rgbBuffer = new int[inputSize * inputSize];
+    private void configureTensors(Interpreter tflite) {
+        Tensor input = tflite.getInputTensor(0);
+        Tensor output = tflite.getOutputTensor(0);
+        Log.i(TAG, "Input " + input.dataType() + " " + Arrays.toString(input.shape())
+                + ", output " + output.dataType() + " " + Arrays.toString(output.shape()));
+
+        // Input: 1 x H x W x 3, Output: 1 x H x W x C
+        int[] inputShape = input.shape();
+        tensorHeight = inputShape[1];
+        tensorWidth = inputShape[2];
+        if (tensorWidth != inputSize || tensorHeight != inputSize) {
+            Log.i(TAG, "Model input is " + tensorWidth + "x" + tensorHeight
+                    + ", requested resolution " + inputSize + " is not used");
+        }
+        inputType = input.dataType();
+        inputQuantization = input.quantizationParams();
+        inputBytes = input.numBytes();
+        outputBytes = output.numBytes();
+
+        int[] outputShape = output.shape();
+        int outputChannels = outputShape[outputShape.length - 1];
+        if (isQuantized(output.dataType())) {
+            Tensor.QuantizationParams params = output.quantizationParams();
+            decoder = MaskDecoder.forQuantized(params.getScale(), params.getZeroPoint(),
+                    output.dataType() == DataType.INT8, outputChannels);
+        } else {
+            decoder = MaskDecoder.forFloat(outputChannels);
+        }
+    }
 
-        } catch (Exception e) {
-            Log.e(TAG, "Error initializing TFLite", e);
+    private void createJobs() {
+        if (workers.length == 0 || mode == PipelineMode.SEQUENTIAL) {
+            depth = 1;
+        } else {
+            // One frame in preprocessing plus one in inference per interpreter
+            depth = 1 + workers.length;
+        }
+        freeJobs = new ArrayBlockingQueue<>(depth);
+        completed = new Job[depth];
+        for (int i = 0; i < depth; i++) {
+            freeJobs.offer(new Job());
         }
+        Log.i(TAG, "Pipeline " + mode + ", " + workers.length + " interpreters, depth " + depth);
     }
 
-    private MappedByteBuffer loadModelFile(Context context) throws IOException {
+    private static boolean isQuantized(DataType type) {
+        return type == DataType.UINT8 || type == DataType.INT8;
+    }
+
+    /** Kernel cache for the GPU delegate, keyed by the model hash of the device profile. */
+    static GpuDelegateCache openDelegateCache(Context context) {
+        long modelHash = QualityManager.getDeviceProfile(context).getModelHash();
+        return modelHash != 0 ? GpuDelegateCache.open(context, modelHash) : null;
+    }
+
+    static MappedByteBuffer loadModelFile(Context context) throws IOException {
         AssetFileDescriptor fileDescriptor = context.getAssets().openFd(MODEL_FILE);
         FileInputStream inputStream = new FileInputStream(fileDescriptor.getFileDescriptor());
         FileChannel fileChannel = inputStream.getChannel();
@@ -113,133 +360,391 @@ public class AIDepthProcessor {
 
     public void stop() {
         if (backgroundThread != null) backgroundThread.quitSafely();
-        if (tflite != null) tflite.close();
-        if (gpuDelegate != null) gpuDelegate.close();
+        InferenceWorker[] current;
+        synchronized (switchLock) {
+            stopped = true;
+            current = workers;
+        }
+        // Interpreters are closed on their own threads once the queued frames are done
+        for (InferenceWorker worker : current) {
+            worker.close();
+        }
+        if (executor != null) executor.shutdown();
     }
 
-    public void processFrame(byte[] yuvData, int width, int height, int rotation) {
-        frameCounter++;
-        if (frameCounter % processDivisor != 0) return;
+    /** Rows of the tensor handed to a worker at a time. */
+    public void setTileRows(int rows) {
+        executor.setTileRows(rows);
+    }
 
-        if (isProcessing.compareAndSet(false, true)) {
-            backgroundHandler.post(() -> {
+    /** Mean luma difference, in 8 bit levels, that triggers inference ahead of the minimum rate. */
+    public void setMotionThreshold(float threshold) {
+        scheduler.setThreshold(threshold);
+    }
+
+    /**
+     * Changes the inference rates from any thread, effective from the next camera frame.
+     *
+     * @param minRate inferences per second while the scene is still
+     * @param maxRate inferences per second while it moves
+     */
+    public void setRates(float minRate, float maxRate) {
+        this.minRate = minRate;
+        this.maxRate = maxRate;
+    }
+
+    /**
+     * Runs one inference on every interpreter and waits for them, so the first frames do not pay
+     * for delegate setup and first run allocations. Call before handing in frames.
+     *
+     * @return whether every interpreter ran
+     */
+    public boolean warmUp() {
+        if (workers.length == 0) return false;
+        CountDownLatch done = new CountDownLatch(workers.length);
+        AtomicInteger succeeded = new AtomicInteger();
+        for (InferenceWorker worker : workers) {
+            boolean posted = worker.post(() -> {
                 try {
-                    runInference(yuvData, width, height, rotation);
+                    ByteBuffer input = ByteBuffer.allocateDirect(inputBytes)
+                            .order(ByteOrder.nativeOrder());
+                    ByteBuffer output = ByteBuffer.allocateDirect(outputBytes)
+                            .order(ByteOrder.nativeOrder());
+                    long start = System.nanoTime();
+                    worker.getInterpreter().run(input, output);
+                    Log.i(TAG, worker.getName() + " warmed up in "
+                            + (System.nanoTime() - start) / 1000000 + " ms");
+                    succeeded.incrementAndGet();
                 } catch (Exception e) {
-                    Log.e(TAG, "Inference error", e);
+                    Log.w(TAG, worker.getName() + " warm up failed", e);
                 } finally {
-                    isProcessing.set(false);
+                    done.countDown();
                 }
             });
+            if (!posted) done.countDown();
+        }
+        try {
+            done.await();
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            return false;
         }
+        return succeeded.get() == workers.length;
     }
 
-    private void runInference(byte[] yuvData, int width, int height, int rotation) {
-        if (tflite == null) {
-            runMockInference();
+    /** Mode actually running, which may be a fallback from the requested one. */
+    public PipelineMode getPipelineMode() {
+        return mode;
+    }
+
+    public Stats getStats() {
+        long published = publishedCount.get();
+        long inferences = inferenceCount.get();
+        long span = lastPublishNs - firstPublishNs;
+        float throughput = published > 1 && span > 0 ? (published - 1) * 1e9f / span : 0.0f;
+        float latency = published > 0 ? latencySumNs.get() / 1e6f / published : 0.0f;
+        float inference = inferences > 0 ? inferenceSumNs.get() / 1e6f / inferences : 0.0f;
+        return new Stats(mode, depth, submittedCount.get(), droppedCount.get(), published,
+                failedCount.get(), throughput, latency, inference);
+    }
+
+    public void processFrame(VideoFrame frame, int rotation, boolean mirror) {
+        float min = minRate;
+        float max = maxRate;
+        if (min != scheduledMinRate || max != scheduledMaxRate) {
+            scheduler.setRates(min, max);
+            scheduledMinRate = min;
+            scheduledMaxRate = max;
+        }
+
+        long now = System.nanoTime();
+        boolean run;
+        if (frame.hasPlanes()) {
+            run = scheduler.shouldRun(frame.getPlane(VideoFrame.PLANE_Y),
+                    frame.getRowStride(VideoFrame.PLANE_Y), frame.getWidth(), frame.getHeight(),
+                    now);
+        } else {
+            run = scheduler.shouldRun(ByteBuffer.wrap(frame.getData()), frame.getWidth(),
+                    frame.getWidth(), frame.getHeight(), now);
+        }
+        if (!run) return;
+
+        Job job = freeJobs.poll();
+        if (job == null) {
+            // Every slot is in flight, try again on the next frame
+            droppedCount.incrementAndGet();
+            metrics.recordDrop(Stage.AI_QUEUE);
             return;
         }
 
-        try {
-            // 1. Convert YUV to RGB and Resize
-            convertYUVtoRGBResize(yuvData, width, height, rgbBuffer, inputSize, inputSize);
-
-            // 2. Fill Input Buffer
-            inputBuffer.rewind();
-            for(int val : rgbBuffer) {
-                // Normalize to 0-1 or -1 to 1 depending on model.
-                // Selfie Segmentation usually 0-1.
-                inputBuffer.putFloat(((val >> 16) & 0xFF) / 255.0f);
-                inputBuffer.putFloat(((val >> 8) & 0xFF) / 255.0f);
-                inputBuffer.putFloat((val & 0xFF) / 255.0f);
-            }
-
-            // 3. Run Inference
-            outputBuffer.rewind();
-            tflite.run(inputBuffer, outputBuffer);
-
-            // 4. Process Output
-            outputBuffer.rewind();
-            byte[] depthMap = new byte[inputSize * inputSize];
-            for (int i = 0; i < inputSize * inputSize; i++) {
-                // Typically output is [BG, FG] or just mask.
-                // Assuming [BG_logit, FG_logit]
-                float bg = outputBuffer.getFloat();
-                float fg = outputBuffer.getFloat();
-
-                // Sigmoid of difference: 1 / (1 + exp(bg - fg))
-                // Optim: just check if fg > bg? No we need smooth gradient for antialiasing
-                float prob = (float) (1.0 / (1.0 + Math.exp(bg - fg)));
-                depthMap[i] = (byte) (prob * 255);
+        scheduler.commit(now);
+        submittedCount.incrementAndGet();
+        job.sequence = nextSequence++;
+        job.submitNs = now;
+        job.frameNs = frame.getTimestampNs();
+        job.rotation = rotation;
+        job.mirror = mirror;
+        job.motion = scheduler.getLastMotion();
+        // The frame is recycled by the camera thread once we return, keep it alive until
+        // preprocessing is done with it.
+        frame.retain();
+        job.frame = frame;
+
+        // Sequential mode prepares on the interpreter thread, so a frame is done before the
+        // next one starts.
+        InferenceWorker[] current = workers;
+        boolean sequential = mode == PipelineMode.SEQUENTIAL && current.length > 0;
+        if (sequential) {
+            job.worker = current[0];
+        }
+        boolean posted = sequential
+                ? job.worker.post(job.prepare) : backgroundHandler.post(job.prepare);
+        if (!posted) {
+            job.frame = null;
+            frame.release();
+            complete(job);
+        }
+    }
+
+    /** One frame in flight, with everything it needs to be processed independently. */
+    private final class Job {
+        final ByteBuffer inputBuffer;
+        final ByteBuffer outputBuffer;
+        final FloatBuffer outputFloats;
+        final FramePreprocessor preprocessor;
+        final Runnable prepare = this::prepare;
+        final Runnable infer = this::infer;
+        final TileExecutor.TileTask postprocessTask = this::postprocessRows;
+
+        long sequence;
+        long submitNs;
+        long frameNs; // Arrival of the frame, for the end to end latency
+        VideoFrame frame;
+        int rotation;
+        boolean mirror;
+        float motion;
+        DepthMap map;
+        InferenceWorker worker; // Interpreter the job was handed to
+
+        Job() {
+            if (workers.length == 0) {
+                inputBuffer = null;
+                outputBuffer = null;
+                outputFloats = null;
+                preprocessor = null;
+                return;
             }
 
-            if (callback != null) {
-                callback.onDepthMapReady(depthMap, inputSize, inputSize);
+            inputBuffer = ByteBuffer.allocateDirect(inputBytes);
+            inputBuffer.order(ByteOrder.nativeOrder());
+            outputBuffer = ByteBuffer.allocateDirect(outputBytes);
+            outputBuffer.order(ByteOrder.nativeOrder());
+            outputFloats = decoder.isQuantized() ? null : outputBuffer.asFloatBuffer();
+
+            // Selfie Segmentation expects RGB in [0, 1], which is the preprocessor default.
+            preprocessor = new FramePreprocessor(tensorWidth, tensorHeight, executor);
+            if (isQuantized(inputType)) {
+                preprocessor.setOutput(inputBuffer, inputQuantization.getScale(),
+                        inputQuantization.getZeroPoint(), inputType == DataType.INT8);
+            } else {
+                preprocessor.setOutput(inputBuffer.asFloatBuffer());
             }
+        }
 
-        } catch (Exception e) {
-            // Log.w(TAG, "Inference failed (using mock): " + e.getMessage());
-            runMockInference();
+        private void prepare() {
+            metrics.record(Stage.AI_QUEUE, submitNs);
+            VideoFrame frame = this.frame;
+            this.frame = null;
+            boolean ready;
+            try {
+                ready = preprocess(frame);
+            } finally {
+                frame.release();
+            }
+
+            if (!ready) {
+                complete(this);
+            } else if (mode == PipelineMode.SEQUENTIAL) {
+                infer();
+            } else if (!dispatch()) {
+                // Stopped
+                map.release();
+                map = null;
+                complete(this);
+            }
         }
-    }
 
-    private void runMockInference() {
-        byte[] depthMap = new byte[inputSize * inputSize];
-        float centerX = inputSize / 2.0f;
-        float centerY = inputSize / 2.0f;
-        float maxRadius = inputSize / 3.0f;
+        // Fills the input tensor and the mask guide, returns whether the job goes on to inference
+        private boolean preprocess(VideoFrame frame) {
+            if (workers.length == 0) {
+                map = mockMap();
+                return false;
+            }
 
-        for (int y = 0; y < inputSize; y++) {
-            for (int x = 0; x < inputSize; x++) {
-                float dx = x - centerX;
-                float dy = y - centerY;
-                float dist = (float)Math.sqrt(dx*dx + dy*dy);
+            map = mapPool.acquire(tensorWidth, tensorHeight);
+            if (map == null) {
+                // Every mask is still held, skip this frame.
+                metrics.recordDrop(Stage.AI_CONVERT);
+                return false;
+            }
 
-                // 1.0 (255) = Sharp (Subject), 0.0 (0) = Blur (BG)
-                if (dist < maxRadius) {
-                    depthMap[y * inputSize + x] = (byte)255;
+            try {
+                // Convert, resize, rotate and normalize straight into the input tensor, keeping
+                // the luma as refinement guide
+                long start = PipelineMetrics.now();
+                preprocessor.setGuideOutput(map.getGuide());
+                if (frame.hasPlanes()) {
+                    preprocessor.process(frame.getPlane(VideoFrame.PLANE_Y),
+                            frame.getPlane(VideoFrame.PLANE_U),
+                            frame.getPlane(VideoFrame.PLANE_V),
+                            frame.getRowStride(VideoFrame.PLANE_Y),
+                            frame.getRowStride(VideoFrame.PLANE_U),
+                            frame.getPixelStride(VideoFrame.PLANE_U),
+                            frame.getWidth(), frame.getHeight(), rotation, mirror);
                 } else {
-                    depthMap[y * inputSize + x] = (byte)0;
+                    preprocessor.processI420(frame.getData(), frame.getWidth(),
+                            frame.getHeight(), rotation, mirror);
                 }
+                metrics.record(Stage.AI_CONVERT, start);
+                map.setSize(preprocessor.getMaskWidth(), preprocessor.getMaskHeight());
+                map.setHasGuide(true);
+                map.setMotion(motion);
+                return true;
+            } catch (Exception e) {
+                Log.e(TAG, "Preprocessing error", e);
+                fail();
+                return false;
+            } finally {
+                preprocessor.setGuideOutput(null);
             }
         }
-        if (callback != null) {
-            callback.onDepthMapReady(depthMap, inputSize, inputSize);
+
+        private boolean dispatch() {
+            InferenceWorker[] current = workers;
+            worker = current[(int) (sequence % current.length)];
+            return worker.post(infer);
         }
-    }
 
-    private void convertYUVtoRGBResize(byte[] yuv, int srcWidth, int srcHeight, int[] outRgb, int dstWidth, int dstHeight) {
-        // Nearest neighbor resize from NV21 YUV
-        int frameSize = srcWidth * srcHeight;
-        for (int j = 0; j < dstHeight; j++) {
-            int srcY = j * srcHeight / dstHeight;
-            int yIdx = srcY * srcWidth;
-            int uvIdx = frameSize + (srcY >> 1) * srcWidth;
+        private void infer() {
+            InferenceWorker worker = this.worker;
+            this.worker = null;
+            try {
+                long start = PipelineMetrics.now();
+                inputBuffer.rewind();
+                outputBuffer.rewind();
+                worker.getInterpreter().run(inputBuffer, outputBuffer);
+                long inferred = metrics.record(Stage.AI_INFERENCE, start);
+                worker.recordRun(inferred - start);
+                if (worker == workers[0]) {
+                    checkBackend(worker);
+                }
 
-            for (int i = 0; i < dstWidth; i++) {
-                int srcX = i * srcWidth / dstWidth;
-                int idx = yIdx + srcX;
+                // Back in frame orientation so the shader can sample it with the video texture
+                // coordinates
+                executor.execute(tensorHeight, postprocessTask);
+                inferenceSumNs.addAndGet(metrics.record(Stage.AI_POSTPROCESS, inferred) - start);
+                inferenceCount.incrementAndGet();
+            } catch (Exception e) {
+                // Log.w(TAG, "Inference failed (using mock): " + e.getMessage());
+                fail();
+            }
+            complete(this);
+        }
 
-                int y = (0xff & ((int) yuv[idx]));
-                // NV21: V U V U
-                int uvOffset = (srcX & ~1);
-                int v = (0xff & ((int) yuv[uvIdx + uvOffset]));
-                int u = (0xff & ((int) yuv[uvIdx + uvOffset + 1]));
+        // Replaces the mask with the fallback one
+        private void fail() {
+            failedCount.incrementAndGet();
+            if (map == null) return;
+            byte[] mock = mockMask();
+            map.setSize(inputSize, inputSize);
+            map.setHasGuide(false);
+            map.setFallback(true);
+            System.arraycopy(mock, 0, map.getData(), 0, mock.length);
+        }
 
-                y = y < 16 ? 16 : y;
+        private void postprocessRows(int start, int end, int worker) {
+            int first = start * tensorWidth;
+            int last = end * tensorWidth;
+            if (outputFloats != null) {
+                decoder.decode(outputFloats, first, last, preprocessor.getMaskIndex(),
+                        map.getData());
+            } else {
+                decoder.decode(outputBuffer, first, last, preprocessor.getMaskIndex(),
+                        map.getData());
+            }
+        }
+    }
 
-                // Integer math for speed
-                int y1192 = 1192 * (y - 16);
-                int r = (y1192 + 1634 * (v - 128));
-                int g = (y1192 - 833 * (v - 128) - 400 * (u - 128));
-                int b = (y1192 + 2066 * (u - 128));
+    /**
+     * Hands finished jobs to the callback in sequence order. A job without a mask still takes
+     * its turn so the ones after it are not held back.
+     * <p>
+     * The callback runs outside the lock, so other workers can queue their jobs meanwhile. Only
+     * one thread publishes at a time: one that finds another publishing leaves its job to it,
+     * which keeps the masks in order and never concurrent.
+     */
+    private void complete(Job job) {
+        synchronized (completed) {
+            completed[(int) (job.sequence % depth)] = job;
+            if (publishing) return;
+            publishing = true;
+        }
 
-                r = (r < 0) ? 0 : ((r > 262143) ? 262143 : r);
-                g = (g < 0) ? 0 : ((g > 262143) ? 262143 : g);
-                b = (b < 0) ? 0 : ((b > 262143) ? 262143 : b);
+        // publish() catches what the callback throws, so the loop always ends on the check
+        while (true) {
+            DepthMap map;
+            synchronized (completed) {
+                int slot = (int) (nextPublish % depth);
+                Job next = completed[slot];
+                if (next == null || next.sequence != nextPublish) {
+                    publishing = false;
+                    return;
+                }
+                completed[slot] = null;
+                nextPublish++;
+
+                map = next.map;
+                next.map = null;
+                if (map != null) {
+                    long now = System.nanoTime();
+                    if (publishedCount.getAndIncrement() == 0) firstPublishNs = now;
+                    lastPublishNs = now;
+                    latencySumNs.addAndGet(now - next.submitNs);
+                    metrics.recordDuration(Stage.AI_END_TO_END, now - next.frameNs);
+                }
+                freeJobs.offer(next);
+            }
+            if (map != null) {
+                publish(map);
+            }
+        }
+    }
 
-                outRgb[j * dstWidth + i] = 0xff000000 | ((r << 6) & 0xff0000) | ((g >> 2) & 0xff00) | ((b >> 10) & 0xff);
+    private void publish(DepthMap map) {
+        try {
+            if (callback != null) {
+                callback.onDepthMapReady(map);
+            } else {
+                map.release();
             }
+        } catch (RuntimeException e) {
+            Log.e(TAG, "Depth callback error", e);
+        }
+    }
+
+    private DepthMap mockMap() {
+        byte[] mock = mockMask();
+        DepthMap map = mapPool.acquire(inputSize, inputSize);
+        if (map == null) return null;
+        map.setFallback(true);
+        System.arraycopy(mock, 0, map.getData(), 0, mock.length);
+        return map;
+    }
+
+    private synchronized byte[] mockMask() {
+        if (mockMask == null) {
+            mockMask = MaskDecoder.placeholderMask(inputSize);
         }
+        return mockMask;
     }
 }
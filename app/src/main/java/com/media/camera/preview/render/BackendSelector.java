@@ -0,0 +1,113 @@
+package com.media.camera.preview.render;
+
+import android.os.Build;
+import android.os.SystemClock;
+import android.util.Log;
+
+import java.util.ArrayList;
+import java.util.List;
+
+/**
+ * Picks the inference backend from the calibrated {@link DeviceProfile} and moves away from it
+ * when it slows down at runtime.
+ * <p>
+ * A backend whose live inference time goes over the frame budget and well above its calibrated
+ * time, typically because the device is throttling, is ranked by the live time instead for
+ * {@link #PENALTY_MS}. If another backend is then faster it is returned to switch to; once the
+ * penalty expires the calibrated times rank again.
+ */
+final class BackendSelector {
+    private static final String TAG = "BackendSelector";
+
+    static final int DEFAULT_CPU_THREADS = 4;
+    static final long PENALTY_MS = 60_000;
+    // How much slower than calibrated a backend has to run before it is penalized
+    private static final float SLOWDOWN = 1.5f;
+
+    private final DeviceProfile mProfile;
+    private final InferenceBackend[] mBackends;
+    private final float[] mPenaltyMs;
+    private final long[] mPenaltyUntil;
+
+    BackendSelector(DeviceProfile profile) {
+        mProfile = profile;
+        mBackends = profile.getMeasuredBackends();
+        mPenaltyMs = new float[mBackends.length];
+        mPenaltyUntil = new long[mBackends.length];
+    }
+
+    /**
+     * Backends worth calibrating on this device: the GPU delegate, NNAPI from Android 8.1, and
+     * XNNPACK on 1, 2, 4 and all cores.
+     */
+    static List<InferenceBackend> candidates() {
+        List<InferenceBackend> backends = new ArrayList<>();
+        backends.add(InferenceBackend.gpu());
+        if (Build.VERSION.SDK_INT >= Build.VERSION_CODES.O_MR1) {
+            backends.add(InferenceBackend.nnapi());
+        }
+        int cores = Runtime.getRuntime().availableProcessors();
+        for (int threads : new int[]{1, 2, 4, cores}) {
+            InferenceBackend cpu = InferenceBackend.cpu(threads);
+            if (threads <= cores && !backends.contains(cpu)) {
+                backends.add(cpu);
+            }
+        }
+        return backends;
+    }
+
+    /** Fastest backend, the GPU delegate when the device was not calibrated. */
+    synchronized InferenceBackend getBest() {
+        InferenceBackend best = fastest(false);
+        return best != null ? best : InferenceBackend.gpu();
+    }
+
+    /** Fastest CPU configuration, {@link #DEFAULT_CPU_THREADS} when not calibrated. */
+    synchronized InferenceBackend getBestCpu() {
+        InferenceBackend best = fastest(true);
+        return best != null ? best : InferenceBackend.cpu(DEFAULT_CPU_THREADS);
+    }
+
+    /**
+     * Reports the live mean inference time of {@code backend}. Returns the backend to switch to
+     * when it is over {@code budgetMs} and another one is now faster, {@code null} to keep it.
+     */
+    synchronized InferenceBackend onObserved(InferenceBackend backend, float meanMs,
+                                             float budgetMs) {
+        int index = indexOf(backend);
+        if (index < 0 || meanMs <= budgetMs) return null;
+        float calibrated = mProfile.getInferenceMs(backend);
+        if (!(meanMs > calibrated * SLOWDOWN)) return null;
+
+        mPenaltyMs[index] = meanMs;
+        mPenaltyUntil[index] = SystemClock.elapsedRealtime() + PENALTY_MS;
+        InferenceBackend best = fastest(false);
+        if (best == null || best.equals(backend)) return null;
+        Log.i(TAG, backend + " runs " + meanMs + " ms against " + calibrated
+                + " ms calibrated, switching to " + best);
+        return best;
+    }
+
+    private InferenceBackend fastest(boolean cpuOnly) {
+        long now = SystemClock.elapsedRealtime();
+        InferenceBackend best = null;
+        float bestMs = Float.MAX_VALUE;
+        for (int i = 0; i < mBackends.length; i++) {
+            if (cpuOnly && !mBackends[i].isCpu()) continue;
+            float ms = now < mPenaltyUntil[i] ? mPenaltyMs[i]
+                    : mProfile.getInferenceMs(mBackends[i]);
+            if (ms < bestMs) {
+                best = mBackends[i];
+                bestMs = ms;
+            }
+        }
+        return best;
+    }
+
+    private int indexOf(InferenceBackend backend) {
+        for (int i = 0; i < mBackends.length; i++) {
+            if (mBackends[i].equals(backend)) return i;
+        }
+        return -1;
+    }
+}
@@ -0,0 +1,112 @@
+package com.media.camera.preview.render;
+
+import android.util.Log;
+
+import org.tensorflow.lite.Interpreter;
+
+import java.nio.ByteBuffer;
+import java.nio.ByteOrder;
+import java.nio.MappedByteBuffer;
+import java.util.Arrays;
+import java.util.List;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Measures inference on each backend once per device, OS build and model.
+ * <p>
+ * Runs on the first launch, or after {@link DeviceProfile} was invalidated, and stores the mean
+ * inference time of every {@link BackendSelector#candidates() candidate} backend in the profile.
+ * {@link AIDepthProcessor} calibrates before building its interpreters, so no inference of the
+ * pipeline competes with the timed runs, and picks its backends from the fresh measurements.
+ * The quality config of that launch was already guessed from memory; later launches pick their
+ * tier from the measurements.
+ */
+class DeviceCalibrator {
+    private static final String TAG = "DeviceCalibrator";
+
+    private static final int WARMUP_RUNS = 3;
+    private static final int TIMED_RUNS = 10;
+    private static final long TIMEOUT_S = 30;
+
+    private DeviceCalibrator() {
+    }
+
+    /**
+     * Calibrates into {@code profile} unless it already is, returning once every candidate was
+     * measured. Each one runs on a worker thread of its own, at the priority the pipeline's run.
+     *
+     * @param cache where the GPU delegate keeps its compiled kernels, the pipeline's delegate
+     *              then starts from the ones compiled here
+     */
+    static synchronized void calibrate(DeviceProfile profile, MappedByteBuffer model,
+                                       GpuDelegateCache cache) {
+        if (profile.isCalibrated()) return;
+        long start = System.nanoTime();
+
+        List<InferenceBackend> candidates = BackendSelector.candidates();
+        InferenceBackend[] backends = new InferenceBackend[candidates.size()];
+        float[] ms = new float[candidates.size()];
+        int measured = 0;
+        for (InferenceBackend backend : candidates) {
+            float mean = measure(model, backend,
+                    backend.kind == InferenceBackend.Kind.GPU ? cache : null);
+            if (Float.isNaN(mean)) continue;
+            backends[measured] = backend;
+            ms[measured++] = mean;
+        }
+        if (measured == 0) {
+            Log.w(TAG, "No backend could be measured");
+            return;
+        }
+        profile.setInference(Arrays.copyOf(backends, measured), Arrays.copyOf(ms, measured));
+        profile.save();
+        Log.i(TAG, "Calibrated in " + (System.nanoTime() - start) / 1000000 + " ms: " + profile);
+    }
+
+    /** Mean inference time in ms on {@code backend}, NaN when it is not available. */
+    private static float measure(MappedByteBuffer model, InferenceBackend backend,
+                                 GpuDelegateCache cache) {
+        InferenceWorker worker = InferenceWorker.create("Calibration-" + backend, model, backend,
+                cache);
+        if (worker == null) return Float.NaN;
+
+        float[] result = {Float.NaN};
+        CountDownLatch done = new CountDownLatch(1);
+        // Timed on the worker thread, like the pipeline runs it
+        worker.post(() -> {
+            try {
+                Interpreter interpreter = worker.getInterpreter();
+                ByteBuffer input = ByteBuffer.allocateDirect(
+                        interpreter.getInputTensor(0).numBytes()).order(ByteOrder.nativeOrder());
+                ByteBuffer output = ByteBuffer.allocateDirect(
+                        interpreter.getOutputTensor(0).numBytes()).order(ByteOrder.nativeOrder());
+
+                long total = 0;
+                for (int i = 0; i < WARMUP_RUNS + TIMED_RUNS; i++) {
+                    input.rewind();
+                    output.rewind();
+                    long start = System.nanoTime();
+                    interpreter.run(input, output);
+                    if (i >= WARMUP_RUNS) total += System.nanoTime() - start;
+                }
+                result[0] = total / (TIMED_RUNS * 1e6f);
+            } catch (Exception e) {
+                Log.w(TAG, worker.getName() + ": inference failed", e);
+            } finally {
+                done.countDown();
+            }
+        });
+
+        try {
+            if (!done.await(TIMEOUT_S, TimeUnit.SECONDS)) {
+                Log.w(TAG, worker.getName() + ": timed out");
+            }
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+        }
+        worker.close();
+        Log.i(TAG, worker.getName() + ": " + result[0] + " ms");
+        return result[0];
+    }
+}
@@ -0,0 +1,281 @@
+package com.media.camera.preview.render;
+
+import android.content.Context;
+import android.content.pm.PackageManager;
+import android.os.Build;
+import android.util.Log;
+
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.util.Arrays;
+import java.util.zip.CRC32;
+
+/**
+ * Measured performance of this device, persisted between launches.
+ * <p>
+ * Holds the mean inference time per backend and thread count, filled in by
+ * {@link DeviceCalibrator}, and the native render time per bokeh sample count, collected from
+ * live frames by {@link QualityController}. The file is a few dozen bytes keyed by device model,
+ * OS build and a hash of the model asset; when any of them changes the measurements are dropped
+ * and the device is calibrated again. The model is only hashed when the app was updated since
+ * the profile was written, so a normal launch reads one small file.
+ */
+public final class DeviceProfile {
+    private static final String TAG = "DeviceProfile";
+
+    private static final String FILE_NAME = "device_profile.bin";
+    private static final int MAGIC = 0x52465046; // "RFPF"
+    private static final int VERSION = 2;
+
+    /** Sample counts whose render time is tracked, see {@link QualityManager#getQualityLevels}. */
+    static final int[] SAMPLE_COUNTS = {8, 12, 16, 24, 32};
+
+    private final File mFile;
+    private final String mDevice;
+    private final String mBuild;
+    private long mAppUpdateTime;
+    private long mModelHash;
+
+    // Mean of the timed runs per backend that could be measured
+    private InferenceBackend[] mBackends = new InferenceBackend[0];
+    private float[] mInferenceMs = new float[0];
+    // 95th percentile of the render stage per SAMPLE_COUNTS entry, 0 when not seen yet
+    private final long[] mRenderP95Us = new long[SAMPLE_COUNTS.length];
+    private boolean mDirty;
+
+    private DeviceProfile(File file, String device, String build, long appUpdateTime,
+                          long modelHash) {
+        mFile = file;
+        mDevice = device;
+        mBuild = build;
+        mAppUpdateTime = appUpdateTime;
+        mModelHash = modelHash;
+    }
+
+    /**
+     * Returns the stored profile if it still matches this device, OS build and model, otherwise
+     * an empty one that needs calibration.
+     */
+    public static DeviceProfile load(Context context, String modelAsset) {
+        File file = new File(context.getFilesDir(), FILE_NAME);
+        String device = Build.MANUFACTURER + " " + Build.MODEL;
+        String build = Build.FINGERPRINT;
+        long updateTime = getAppUpdateTime(context);
+
+        try (DataInputStream in = new DataInputStream(new FileInputStream(file))) {
+            if (in.readInt() != MAGIC || in.readInt() != VERSION) {
+                throw new IOException("Unknown profile format");
+            }
+            String storedDevice = in.readUTF();
+            String storedBuild = in.readUTF();
+            long storedUpdateTime = in.readLong();
+            long storedHash = in.readLong();
+
+            if (!storedDevice.equals(device) || !storedBuild.equals(build)) {
+                Log.i(TAG, "Device or OS build changed, recalibrating");
+            } else {
+                long hash = storedHash;
+                if (storedUpdateTime != updateTime) {
+                    // The asset can only change with the app
+                    hash = hashAsset(context, modelAsset);
+                }
+                if (hash != storedHash) {
+                    Log.i(TAG, "Model changed, recalibrating");
+                } else {
+                    DeviceProfile profile = new DeviceProfile(file, device, build, updateTime,
+                            hash);
+                    int backends = in.readUnsignedByte();
+                    InferenceBackend[] measured = new InferenceBackend[backends];
+                    float[] ms = new float[backends];
+                    int valid = 0;
+                    for (int i = 0; i < backends; i++) {
+                        InferenceBackend backend = InferenceBackend.decode(in.readUnsignedShort());
+                        float value = in.readFloat();
+                        if (backend == null) continue;
+                        measured[valid] = backend;
+                        ms[valid++] = value;
+                    }
+                    profile.mBackends = Arrays.copyOf(measured, valid);
+                    profile.mInferenceMs = Arrays.copyOf(ms, valid);
+                    int count = in.readUnsignedByte();
+                    for (int i = 0; i < count; i++) {
+                        int samples = in.readUnsignedByte();
+                        long p95 = in.readInt() & 0xffffffffL;
+                        int index = indexOf(samples);
+                        if (index >= 0) profile.mRenderP95Us[index] = p95;
+                    }
+                    // Persist the new update time so the model is not hashed again
+                    profile.mDirty = storedUpdateTime != updateTime;
+                    Log.i(TAG, "Loaded " + profile);
+                    return profile;
+                }
+            }
+        } catch (IOException e) {
+            if (file.exists()) {
+                Log.w(TAG, "Discarding unreadable profile", e);
+            }
+        }
+        return new DeviceProfile(file, device, build, updateTime, hashAsset(context, modelAsset));
+    }
+
+    /** CRC32 of the model asset, 0 if it could not be read. */
+    public long getModelHash() {
+        return mModelHash;
+    }
+
+    /** Whether inference was measured on this device, OS build and model. */
+    public synchronized boolean isCalibrated() {
+        return mBackends.length > 0;
+    }
+
+    /** Backends that were measured, in calibration order. */
+    public synchronized InferenceBackend[] getMeasuredBackends() {
+        return mBackends.clone();
+    }
+
+    /** Mean inference time on {@code backend}, NaN when it was not measured. */
+    public synchronized float getInferenceMs(InferenceBackend backend) {
+        for (int i = 0; i < mBackends.length; i++) {
+            if (mBackends[i].equals(backend)) return mInferenceMs[i];
+        }
+        return Float.NaN;
+    }
+
+    /** Fastest measured backend, {@code null} when not calibrated. */
+    public synchronized InferenceBackend getBestBackend() {
+        return fastest(false);
+    }
+
+    /** Fastest measured CPU configuration, {@code null} when not calibrated. */
+    public synchronized InferenceBackend getBestCpuBackend() {
+        return fastest(true);
+    }
+
+    private InferenceBackend fastest(boolean cpuOnly) {
+        InferenceBackend best = null;
+        float bestMs = Float.MAX_VALUE;
+        for (int i = 0; i < mBackends.length; i++) {
+            if (cpuOnly && !mBackends[i].isCpu()) continue;
+            if (mInferenceMs[i] < bestMs) {
+                best = mBackends[i];
+                bestMs = mInferenceMs[i];
+            }
+        }
+        return best;
+    }
+
+    /** Render time for {@code samples}, 0 when it was not measured. */
+    public synchronized long getRenderP95Us(int samples) {
+        int index = indexOf(samples);
+        return index >= 0 ? mRenderP95Us[index] : 0;
+    }
+
+    /**
+     * Stores the calibrated inference times, {@code ms[i]} being the time on
+     * {@code backends[i]}.
+     */
+    public synchronized void setInference(InferenceBackend[] backends, float[] ms) {
+        mBackends = backends.clone();
+        mInferenceMs = ms.clone();
+        mDirty = true;
+    }
+
+    /** Folds a window's render time for {@code samples} into the profile. */
+    public synchronized void recordRender(int samples, long p95Us) {
+        int index = indexOf(samples);
+        if (index < 0 || p95Us <= 0) return;
+        long previous = mRenderP95Us[index];
+        // Smoothed, one window of a busy moment should not stick
+        long value = previous == 0 ? p95Us : (previous * 3 + p95Us) / 4;
+        if (value != previous) {
+            mRenderP95Us[index] = value;
+            mDirty = true;
+        }
+    }
+
+    /** Writes the profile if it changed since it was loaded or last saved. */
+    public synchronized void save() {
+        if (!mDirty) return;
+        File tmp = new File(mFile.getPath() + ".tmp");
+        try (DataOutputStream out = new DataOutputStream(new FileOutputStream(tmp))) {
+            out.writeInt(MAGIC);
+            out.writeInt(VERSION);
+            out.writeUTF(mDevice);
+            out.writeUTF(mBuild);
+            out.writeLong(mAppUpdateTime);
+            out.writeLong(mModelHash);
+            out.writeByte(mBackends.length);
+            for (int i = 0; i < mBackends.length; i++) {
+                out.writeShort(mBackends[i].encode());
+                out.writeFloat(mInferenceMs[i]);
+            }
+            int count = 0;
+            for (long p95 : mRenderP95Us) {
+                if (p95 > 0) count++;
+            }
+            out.writeByte(count);
+            for (int i = 0; i < SAMPLE_COUNTS.length; i++) {
+                if (mRenderP95Us[i] == 0) continue;
+                out.writeByte(SAMPLE_COUNTS[i]);
+                out.writeInt((int) Math.min(mRenderP95Us[i], 0xffffffffL));
+            }
+        } catch (IOException e) {
+            Log.e(TAG, "Failed to write profile", e);
+            tmp.delete();
+            return;
+        }
+        if (!tmp.renameTo(mFile)) {
+            Log.e(TAG, "Failed to replace " + mFile);
+            tmp.delete();
+            return;
+        }
+        mDirty = false;
+    }
+
+    @Override
+    public synchronized String toString() {
+        StringBuilder builder = new StringBuilder("profile ").append(mDevice).append(':');
+        for (int i = 0; i < mBackends.length; i++) {
+            builder.append(' ').append(mBackends[i]).append(' ').append(mInferenceMs[i])
+                    .append(" ms,");
+        }
+        return builder.append(" render p95 ").append(Arrays.toString(mRenderP95Us))
+                .append(" us").toString();
+    }
+
+    private static int indexOf(int samples) {
+        for (int i = 0; i < SAMPLE_COUNTS.length; i++) {
+            if (SAMPLE_COUNTS[i] == samples) return i;
+        }
+        return -1;
+    }
+
+    private static long getAppUpdateTime(Context context) {
+        try {
+            return context.getPackageManager()
+                    .getPackageInfo(context.getPackageName(), 0).lastUpdateTime;
+        } catch (PackageManager.NameNotFoundException e) {
+            return 0;
+        }
+    }
+
+    private static long hashAsset(Context context, String asset) {
+        CRC32 crc = new CRC32();
+        byte[] buffer = new byte[64 * 1024];
+        try (InputStream in = context.getAssets().open(asset)) {
+            int read;
+            while ((read = in.read(buffer)) > 0) {
+                crc.update(buffer, 0, read);
+            }
+        } catch (IOException e) {
+            Log.w(TAG, "Cannot read " + asset, e);
+            return 0;
+        }
+        return crc.getValue();
+    }
+}
@@ -2,6 +2,10 @@ package com.media.camera.preview.render;
 
 import android.opengl.GLSurfaceView;
 
+import com.media.camera.preview.capture.VideoFrame;
+import com.media.camera.preview.metrics.PipelineMetrics;
+import com.media.camera.preview.metrics.Stage;
+
 import javax.microedition.khronos.egl.EGLConfig;
 import javax.microedition.khronos.opengles.GL10;
 
@@ -22,8 +26,10 @@ public class GLVideoRenderer extends VideoRenderer implements GLSurfaceView.Rend
     }
 
     @Override
-    public void drawVideoFrame(byte[] data, int width, int height, int rotation, boolean mirror) {
-        draw(data, width, height, rotation, mirror);
+    public void drawVideoFrame(VideoFrame frame, int rotation, boolean mirror) {
+        long start = PipelineMetrics.now();
+        drawFrame(frame, rotation, mirror);
+        PipelineMetrics.getInstance().record(Stage.DRAW, start);
         requestRender();
     }
 
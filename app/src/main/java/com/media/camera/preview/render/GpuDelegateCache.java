@@ -0,0 +1,122 @@
+package com.media.camera.preview.render;
+
+import android.content.Context;
+import android.os.Build;
+import android.util.Log;
+
+import org.tensorflow.lite.gpu.GpuDelegate;
+
+import java.io.File;
+import java.util.Arrays;
+import java.util.Locale;
+
+/**
+ * Where the GPU delegate serializes its compiled kernels, so launches after the first load them
+ * instead of compiling every kernel again.
+ * <p>
+ * Lives in the code cache dir, which the system clears when the app or the platform is updated.
+ * Each token, built from the model hash, the delegate options and the OS build, gets its own
+ * directory, so a different model, options or driver never picks up stale kernels. Directories
+ * of other tokens are deleted when the cache is applied, and the oldest files beyond
+ * {@link #MAX_BYTES} as well.
+ */
+final class GpuDelegateCache {
+    private static final String TAG = "GpuDelegateCache";
+
+    private static final String DIR_NAME = "gpu_delegate";
+    static final long MAX_BYTES = 32L * 1024 * 1024;
+
+    private final File mDir;
+    private final long mModelHash;
+
+    private GpuDelegateCache(File dir, long modelHash) {
+        mDir = dir;
+        mModelHash = modelHash;
+    }
+
+    /** Opens the cache for the model with {@code modelHash}, {@code null} if it is unusable. */
+    static GpuDelegateCache open(Context context, long modelHash) {
+        File dir = new File(context.getCodeCacheDir(), DIR_NAME);
+        if (!dir.isDirectory() && !dir.mkdirs()) {
+            Log.w(TAG, "Cannot create " + dir);
+            return null;
+        }
+        return new GpuDelegateCache(dir, modelHash);
+    }
+
+    /** Token identifying kernels compiled for the model with {@code options} on this build. */
+    String tokenFor(GpuDelegate.Options options) {
+        int optionsHash = Arrays.hashCode(new Object[]{
+                options.isPrecisionLossAllowed(),
+                options.areQuantizedModelsAllowed(),
+                options.getInferencePreference(),
+                Build.FINGERPRINT
+        });
+        return String.format(Locale.US, "m%016x_o%08x", mModelHash, optionsHash);
+    }
+
+    /**
+     * Points {@code options} at the cache, after dropping entries that belong to other tokens
+     * and trimming it to its size cap. Returns {@code false} if the options were left without
+     * a cache.
+     */
+    synchronized boolean apply(GpuDelegate.Options options) {
+        String token = tokenFor(options);
+        File tokenDir = new File(mDir, token);
+        prune(token);
+        if (!tokenDir.isDirectory() && !tokenDir.mkdirs()) {
+            Log.w(TAG, "Cannot create " + tokenDir + ", compiling without cache");
+            return false;
+        }
+        options.setSerializationParams(tokenDir.getAbsolutePath(), token);
+        return true;
+    }
+
+    /** Deletes every entry, after the delegate failed to start from them. */
+    synchronized void clear() {
+        File[] entries = mDir.listFiles();
+        if (entries == null) return;
+        for (File entry : entries) {
+            delete(entry);
+        }
+        Log.i(TAG, "Cleared");
+    }
+
+    private void prune(String token) {
+        File[] entries = mDir.listFiles();
+        if (entries == null) return;
+        for (File entry : entries) {
+            if (!entry.getName().equals(token)) {
+                Log.i(TAG, "Removing stale " + entry.getName());
+                delete(entry);
+            }
+        }
+
+        File[] files = new File(mDir, token).listFiles();
+        if (files == null) return;
+        long total = 0;
+        for (File file : files) {
+            total += file.length();
+        }
+        if (total <= MAX_BYTES) return;
+
+        // Oldest first
+        Arrays.sort(files, (a, b) -> Long.compare(a.lastModified(), b.lastModified()));
+        for (File file : files) {
+            if (total <= MAX_BYTES) break;
+            total -= file.length();
+            file.delete();
+        }
+        Log.i(TAG, "Trimmed to " + total + " bytes");
+    }
+
+    private static void delete(File file) {
+        File[] children = file.listFiles();
+        if (children != null) {
+            for (File child : children) {
+                delete(child);
+            }
+        }
+        file.delete();
+    }
+}
@@ -0,0 +1,69 @@
+package com.media.camera.preview.render;
+
+/**
+ * Where an interpreter runs the model: the GPU delegate, NNAPI, or XNNPACK on a number of CPU
+ * threads.
+ */
+public final class InferenceBackend {
+
+    public enum Kind {
+        GPU,
+        NNAPI,
+        CPU
+    }
+
+    public final Kind kind;
+    public final int threads; // CPU threads, also used by ops the delegate does not take
+
+    private InferenceBackend(Kind kind, int threads) {
+        this.kind = kind;
+        this.threads = threads;
+    }
+
+    public static InferenceBackend gpu() {
+        return new InferenceBackend(Kind.GPU, 1);
+    }
+
+    public static InferenceBackend nnapi() {
+        return new InferenceBackend(Kind.NNAPI, 1);
+    }
+
+    public static InferenceBackend cpu(int threads) {
+        return new InferenceBackend(Kind.CPU, threads);
+    }
+
+    public boolean isCpu() {
+        return kind == Kind.CPU;
+    }
+
+    /** Compact form for the device profile, see {@link #decode}. */
+    int encode() {
+        return kind.ordinal() << 8 | threads;
+    }
+
+    /** Backend of an {@link #encode} value, {@code null} when it is not valid. */
+    static InferenceBackend decode(int value) {
+        int kind = value >> 8;
+        int threads = value & 0xff;
+        if (kind < 0 || kind >= Kind.values().length || threads < 1) return null;
+        return new InferenceBackend(Kind.values()[kind], threads);
+    }
+
+    @Override
+    public boolean equals(Object o) {
+        if (this == o) return true;
+        if (!(o instanceof InferenceBackend)) return false;
+        InferenceBackend other = (InferenceBackend) o;
+        return kind == other.kind && threads == other.threads;
+    }
+
+    @Override
+    public int hashCode() {
+        return encode();
+    }
+
+    @Override
+    public String toString() {
+        return kind == Kind.CPU ? "CPU x" + threads : kind.name();
+    }
+}
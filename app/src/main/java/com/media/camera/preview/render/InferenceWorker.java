@@ -0,0 +1,171 @@
+package com.media.camera.preview.render;
+
+import android.os.Handler;
+import android.os.HandlerThread;
+import android.util.Log;
+
+import org.tensorflow.lite.Interpreter;
+import org.tensorflow.lite.gpu.CompatibilityList;
+import org.tensorflow.lite.gpu.GpuDelegate;
+
+import java.nio.MappedByteBuffer;
+
+/**
+ * One TFLite interpreter together with the thread it runs on.
+ */
+class InferenceWorker {
+    private static final String TAG = "InferenceWorker";
+
+    private final String name;
+    private final InferenceBackend backend;
+    private final Interpreter interpreter;
+    private final GpuDelegate gpuDelegate;
+    private final HandlerThread thread;
+    private final Handler handler;
+
+    // Inference time since the last window was taken, worker thread only
+    private long windowNs;
+    private int windowRuns;
+
+    private InferenceWorker(String name, InferenceBackend backend, Interpreter interpreter,
+                            GpuDelegate gpuDelegate) {
+        this.name = name;
+        this.backend = backend;
+        this.interpreter = interpreter;
+        this.gpuDelegate = gpuDelegate;
+        thread = new HandlerThread(name);
+        thread.start();
+        handler = new Handler(thread.getLooper());
+    }
+
+    /**
+     * Creates a worker running on {@code backend}. Returns {@code null} if the device does not
+     * support it or the interpreter cannot be created, there is no fallback to another backend.
+     *
+     * @param cache where the GPU delegate keeps its compiled kernels, {@code null} to compile
+     *              them every time
+     */
+    static InferenceWorker create(String name, MappedByteBuffer model, InferenceBackend backend,
+                                  GpuDelegateCache cache) {
+        try {
+            return create(name, model, backend, cache, true);
+        } catch (CachedKernelsException e) {
+            // A damaged cache entry must not cost the GPU for good
+            Log.w(TAG, name + ": Cached kernels failed, compiling them", e.getCause());
+            cache.clear();
+            return create(name, model, backend, cache, false);
+        }
+    }
+
+    /**
+     * Thrown instead of returning {@code null} when the interpreter could not be built while the
+     * delegate was loading its kernels from the cache, the only failure clearing it can fix.
+     */
+    private static final class CachedKernelsException extends RuntimeException {
+        CachedKernelsException(Exception cause) {
+            super(cause);
+        }
+    }
+
+    private static InferenceWorker create(String name, MappedByteBuffer model,
+                                          InferenceBackend backend, GpuDelegateCache cache,
+                                          boolean useCache) {
+        Interpreter.Options options = new Interpreter.Options();
+        options.setNumThreads(backend.threads);
+        GpuDelegate gpuDelegate = null;
+        boolean cached = false;
+        long start = System.nanoTime();
+
+        switch (backend.kind) {
+            case GPU:
+                try {
+                    CompatibilityList compatList = new CompatibilityList();
+                    if (!compatList.isDelegateSupportedOnThisDevice()) {
+                        Log.i(TAG, name + ": GPU Delegate not supported");
+                        return null;
+                    }
+                    GpuDelegate.Options delegateOptions = compatList.getBestOptionsForThisDevice();
+                    if (cache != null && useCache) {
+                        cached = cache.apply(delegateOptions);
+                    }
+                    gpuDelegate = new GpuDelegate(delegateOptions);
+                    options.addDelegate(gpuDelegate);
+                } catch (Exception e) {
+                    Log.w(TAG, name + ": GPU Delegate failed to initialize", e);
+                    if (gpuDelegate != null) gpuDelegate.close();
+                    return null;
+                }
+                break;
+            case NNAPI:
+                options.setUseNNAPI(true);
+                break;
+            case CPU:
+                options.setUseXNNPACK(true);
+                break;
+        }
+
+        try {
+            // Kernels are compiled, or loaded from the cache, when the interpreter is built
+            Interpreter interpreter = new Interpreter(model, options);
+            Log.i(TAG, name + ": " + backend + " ready in "
+                    + (System.nanoTime() - start) / 1000000 + " ms");
+            return new InferenceWorker(name, backend, interpreter, gpuDelegate);
+        } catch (Exception e) {
+            if (gpuDelegate != null) gpuDelegate.close();
+            if (cached) throw new CachedKernelsException(e);
+            Log.e(TAG, name + ": Failed to create interpreter on " + backend, e);
+            return null;
+        }
+    }
+
+    String getName() {
+        return name;
+    }
+
+    InferenceBackend getBackend() {
+        return backend;
+    }
+
+    boolean isGpu() {
+        return gpuDelegate != null;
+    }
+
+    Interpreter getInterpreter() {
+        return interpreter;
+    }
+
+    /** Adds one inference to the current window, on the worker thread. */
+    void recordRun(long nanos) {
+        windowNs += nanos;
+        windowRuns++;
+    }
+
+    /**
+     * Mean inference time of the window in ms once it holds {@code runs} inferences, starting a
+     * new one; NaN while it is shorter.
+     */
+    float takeWindowMs(int runs) {
+        if (windowRuns < runs) return Float.NaN;
+        float mean = windowNs / 1e6f / windowRuns;
+        windowNs = 0;
+        windowRuns = 0;
+        return mean;
+    }
+
+    boolean post(Runnable task) {
+        return handler.post(task);
+    }
+
+    /** Lets queued work finish, then releases the interpreter on its own thread. */
+    void close() {
+        boolean posted = handler.post(() -> {
+            interpreter.close();
+            if (gpuDelegate != null) gpuDelegate.close();
+        });
+        thread.quitSafely();
+        if (!posted) {
+            interpreter.close();
+            if (gpuDelegate != null) gpuDelegate.close();
+        }
+    }
+}
@@ -0,0 +1,222 @@
+package com.media.camera.preview.render;
+
+import android.content.Context;
+import android.os.Build;
+import android.os.Handler;
+import android.os.HandlerThread;
+import android.os.PowerManager;
+import android.util.Log;
+
+import com.media.camera.preview.metrics.PipelineMetrics;
+import com.media.camera.preview.metrics.Stage;
+import com.media.camera.preview.metrics.StageStats;
+
+/**
+ * Adjusts the quality level at runtime to hold the target frame rate.
+ * <p>
+ * Once per window the controller reads the render thread frame time, the segmentation
+ * latency and the thermal state, then moves one step along the levels of
+ * {@link QualityManager#getQualityLevels}. Stepping down is quick, stepping up needs several
+ * good windows in a row, and after every change the next windows are skipped so the new level
+ * is measured on its own. Levels only change values the pipeline picks up from the next frame,
+ * nothing is torn down.
+ * <p>
+ * The controller owns the {@link PipelineMetrics} windows: it resets them on every evaluation,
+ * {@link #getLastSnapshot()} returns the last window. Render times of settled windows are kept
+ * in the {@link DeviceProfile}, so the next launch starts at a sample count the device handles.
+ */
+public class QualityController {
+    private static final String TAG = "QualityController";
+
+    public static final float DEFAULT_TARGET_FPS = 30.0f;
+    public static final long DEFAULT_WINDOW_MS = 1000;
+
+    // Fraction of the frame budget the render thread may spend on a frame, at the 95th
+    // percentile, before the level is too expensive or while it is cheap enough to step up
+    private static final float OVERLOAD_BUDGET = 0.8f;
+    private static final float HEADROOM_BUDGET = 0.5f;
+    // Mask latency, frame to published mask, at the 95th percentile
+    private static final long AI_LATENCY_LIMIT_US = 200_000;
+    private static final int DOWN_WINDOWS = 2;
+    private static final int UP_WINDOWS = 5;
+    private static final int SETTLE_WINDOWS = 2;
+    // Thermal headroom, 1.0 being the point the device starts throttling
+    private static final float HEADROOM_STEP_DOWN = 0.95f;
+    private static final float HEADROOM_HOLD = 0.75f;
+
+    public interface QualityTarget {
+        /** Applies {@code config} to the running pipeline, called on the controller thread. */
+        void applyQuality(QualityManager.QualityConfig config);
+    }
+
+    private final QualityManager.QualityConfig[] mLevels;
+    private final QualityTarget mTarget;
+    private final DeviceProfile mProfile;
+    private final PowerManager mPowerManager;
+    private final PipelineMetrics mMetrics = PipelineMetrics.getInstance();
+
+    private volatile float mTargetFps = DEFAULT_TARGET_FPS;
+    private volatile long mWindowMs = DEFAULT_WINDOW_MS;
+    private volatile PipelineMetrics.Snapshot mLastSnapshot;
+    private volatile int mLevel;
+
+    private HandlerThread mThread;
+    private Handler mHandler;
+    private int mBadWindows;
+    private int mGoodWindows;
+    private int mSettleWindows;
+
+    public QualityController(Context context, QualityManager.QualityConfig base,
+                             DeviceProfile profile, QualityTarget target) {
+        mLevels = QualityManager.getQualityLevels(base);
+        mLevel = QualityManager.getStartLevel(base);
+        mTarget = target;
+        mProfile = profile;
+        mPowerManager = (PowerManager) context.getSystemService(Context.POWER_SERVICE);
+    }
+
+    public void setTargetFps(float fps) {
+        mTargetFps = fps;
+    }
+
+    public void setWindowMs(long windowMs) {
+        mWindowMs = windowMs;
+    }
+
+    public QualityManager.QualityConfig getCurrentConfig() {
+        return mLevels[mLevel];
+    }
+
+    public PipelineMetrics.Snapshot getLastSnapshot() {
+        return mLastSnapshot;
+    }
+
+    public synchronized void start() {
+        if (mThread != null) return;
+        mThread = new HandlerThread("QualityController");
+        mThread.start();
+        mHandler = new Handler(mThread.getLooper());
+        mHandler.post(() -> {
+            // Start from a clean window at the current level
+            mMetrics.reset();
+            mTarget.applyQuality(mLevels[mLevel]);
+            mSettleWindows = SETTLE_WINDOWS;
+        });
+        mHandler.postDelayed(mEvaluate, mWindowMs);
+    }
+
+    public synchronized void stop() {
+        if (mThread == null) return;
+        mHandler.removeCallbacks(mEvaluate);
+        if (mProfile != null) {
+            mHandler.post(mProfile::save);
+        }
+        mThread.quitSafely();
+        mThread = null;
+        mHandler = null;
+    }
+
+    private final Runnable mEvaluate = new Runnable() {
+        @Override
+        public void run() {
+            evaluate();
+            Handler handler = mHandler;
+            if (handler != null) {
+                handler.postDelayed(this, mWindowMs);
+            }
+        }
+    };
+
+    private void evaluate() {
+        PipelineMetrics.Snapshot snapshot = mMetrics.snapshot(true);
+        mLastSnapshot = snapshot;
+        // adb shell setprop log.tag.QualityController DEBUG
+        if (Log.isLoggable(TAG, Log.DEBUG)) {
+            Log.d(TAG, "Window at level " + mLevel + ":\n" + snapshot);
+        }
+
+        int thermalStatus = getThermalStatus();
+        float headroom = getThermalHeadroom();
+        if (mSettleWindows > 0) {
+            mSettleWindows--;
+            // Severe heat does not wait for the level to settle.
+            if (thermalStatus < PowerManager.THERMAL_STATUS_SEVERE) return;
+        }
+
+        StageStats render = snapshot.get(Stage.NATIVE_RENDER);
+        if (mProfile != null && render.count > 0 && mSettleWindows == 0) {
+            mProfile.recordRender(mLevels[mLevel].sampleCount, render.p95);
+        }
+
+        long budgetUs = (long) (1e6f / mTargetFps);
+        StageStats frame = snapshot.get(Stage.DRAW);
+        StageStats mask = snapshot.get(Stage.AI_END_TO_END);
+        // Frames the camera or the render mailbox had to drop, a few are timing jitter
+        long captureDrops = snapshot.get(Stage.CAPTURE).drops;
+        boolean renderBehind = frame.drops > frame.count / 20;
+
+        boolean hot = thermalStatus >= PowerManager.THERMAL_STATUS_SEVERE
+                || headroom >= HEADROOM_STEP_DOWN;
+        boolean warm = thermalStatus >= PowerManager.THERMAL_STATUS_MODERATE
+                || headroom >= HEADROOM_HOLD;
+        boolean overloaded = frame.p95 > budgetUs * OVERLOAD_BUDGET
+                || mask.p95 > AI_LATENCY_LIMIT_US
+                || captureDrops > 0
+                || renderBehind;
+        boolean idle = frame.count > 0
+                && frame.p95 < budgetUs * HEADROOM_BUDGET
+                && mask.p95 < AI_LATENCY_LIMIT_US * HEADROOM_BUDGET
+                && captureDrops == 0
+                && frame.drops == 0;
+
+        if (hot || overloaded) {
+            mGoodWindows = 0;
+            mBadWindows++;
+            if (hot || mBadWindows >= DOWN_WINDOWS) {
+                step(-1, hot ? "thermal " + thermalStatus + "/" + headroom
+                        : "frame p95 " + frame.p95 + "us, mask p95 " + mask.p95 + "us, "
+                        + captureDrops + " drops");
+            }
+        } else if (idle && !warm) {
+            mBadWindows = 0;
+            mGoodWindows++;
+            if (mGoodWindows >= UP_WINDOWS) {
+                step(1, "frame p95 " + frame.p95 + "us, mask p95 " + mask.p95 + "us");
+            }
+        } else {
+            mBadWindows = 0;
+            mGoodWindows = 0;
+        }
+    }
+
+    private void step(int direction, String reason) {
+        mBadWindows = 0;
+        mGoodWindows = 0;
+        int level = Math.max(0, Math.min(mLevels.length - 1, mLevel + direction));
+        if (level == mLevel) return;
+
+        mLevel = level;
+        QualityManager.QualityConfig config = mLevels[level];
+        Log.i(TAG, (direction > 0 ? "Up" : "Down") + " to level " + level + " (samples "
+                + config.sampleCount + ", AI " + config.aiMaxFps + " fps): " + reason);
+        mTarget.applyQuality(config);
+        mSettleWindows = SETTLE_WINDOWS;
+        // Drop what was measured during the switch
+        mMetrics.reset();
+    }
+
+    private int getThermalStatus() {
+        if (mPowerManager == null || Build.VERSION.SDK_INT < Build.VERSION_CODES.Q) {
+            return PowerManager.THERMAL_STATUS_NONE;
+        }
+        return mPowerManager.getCurrentThermalStatus();
+    }
+
+    // NaN, which never crosses the thresholds, where the device does not report it
+    private float getThermalHeadroom() {
+        if (mPowerManager == null || Build.VERSION.SDK_INT < Build.VERSION_CODES.R) {
+            return Float.NaN;
+        }
+        return mPowerManager.getThermalHeadroom(10);
+    }
+}
@@ -5,22 +5,125 @@ import android.content.Context;
 import android.os.Build;
 import android.util.Log;
 
+import com.media.camera.preview.ai.TileExecutor;
+
 public class QualityManager {
     private static final String TAG = "QualityManager";
 
     public static class QualityConfig {
         public int aiResolution;
         public int sampleCount;
-        public int aiFpsDivisor; // 1 = every frame, 2 = every 2nd frame, etc.
+        public float aiMinFps; // AI rate while the scene is still
+        public float aiMaxFps; // AI rate cap while the scene moves
+        public int aiThreads; // Threads for AI pre/post processing, 1 = inference thread only
+        public AIDepthProcessor.PipelineMode aiPipeline; // Overlap of AI stages across frames
 
-        public QualityConfig(int aiResolution, int sampleCount, int aiFpsDivisor) {
+        public QualityConfig(int aiResolution, int sampleCount, float aiMinFps, float aiMaxFps,
+                             int aiThreads, AIDepthProcessor.PipelineMode aiPipeline) {
             this.aiResolution = aiResolution;
             this.sampleCount = sampleCount;
-            this.aiFpsDivisor = aiFpsDivisor;
+            this.aiMinFps = aiMinFps;
+            this.aiMaxFps = aiMaxFps;
+            this.aiThreads = aiThreads;
+            this.aiPipeline = aiPipeline;
+        }
+    }
+
+    // Runtime quality ladder, from cheapest to most expensive
+    private static final int[] LEVEL_SAMPLES = {8, 12, 16, 24, 32};
+    private static final float[] LEVEL_AI_MAX_FPS = {8, 10, 15, 24, 30};
+
+    /**
+     * Configs {@link QualityController} can switch between at runtime, cheapest first. They only
+     * differ from {@code base} in what can change without rebuilding the pipeline: the bokeh
+     * sample count and the inference rates.
+     */
+    public static QualityConfig[] getQualityLevels(QualityConfig base) {
+        QualityConfig[] levels = new QualityConfig[LEVEL_SAMPLES.length];
+        for (int i = 0; i < levels.length; i++) {
+            float maxFps = LEVEL_AI_MAX_FPS[i];
+            levels[i] = new QualityConfig(base.aiResolution, LEVEL_SAMPLES[i],
+                    Math.min(base.aiMinFps, maxFps), maxFps, base.aiThreads, base.aiPipeline);
+        }
+        return levels;
+    }
+
+    /** Highest level of {@link #getQualityLevels} that is not more expensive than {@code base}. */
+    public static int getStartLevel(QualityConfig base) {
+        int level = 0;
+        for (int i = 0; i < LEVEL_SAMPLES.length; i++) {
+            if (LEVEL_SAMPLES[i] <= base.sampleCount && LEVEL_AI_MAX_FPS[i] <= base.aiMaxFps) {
+                level = i;
+            }
+        }
+        return level;
+    }
+
+    // Share of the frame budget the bokeh pass may take at the chosen sample count
+    private static final float RENDER_BUDGET = 0.5f;
+    // Share of the measured inference throughput the pipeline is configured to use
+    private static final float INFERENCE_BUDGET = 0.5f;
+    private static final float TARGET_FPS = 30.0f;
+
+    private static DeviceProfile sProfile;
+
+    /** Profile of this device, loaded on first use. */
+    public static synchronized DeviceProfile getDeviceProfile(Context context) {
+        if (sProfile == null) {
+            sProfile = DeviceProfile.load(context, AIDepthProcessor.MODEL_FILE);
         }
+        return sProfile;
     }
 
+    /**
+     * Picks the quality config from the calibrated {@link DeviceProfile}. Until the device is
+     * calibrated the config is guessed from its memory, calibration happens when the
+     * segmentation pipeline starts.
+     */
     public static QualityConfig getQualityConfig(Context context) {
+        DeviceProfile profile = getDeviceProfile(context);
+        if (profile.isCalibrated()) {
+            return fromProfile(profile);
+        }
+        return fromMemory(context);
+    }
+
+    private static QualityConfig fromProfile(DeviceProfile profile) {
+        InferenceBackend best = profile.getBestBackend();
+        InferenceBackend bestCpu = profile.getBestCpuBackend();
+        float bestMs = profile.getInferenceMs(best);
+        float cpuMs = bestCpu != null ? profile.getInferenceMs(bestCpu) : Float.NaN;
+
+        // A CPU interpreter next to an accelerator pays off when it adds a meaningful share
+        boolean dual = !best.isCpu() && bestCpu != null && cpuMs < 3 * bestMs;
+        float throughput = 1000.0f / bestMs + (dual ? 1000.0f / cpuMs : 0);
+        float maxFps = Math.max(5, Math.min(TARGET_FPS, throughput * INFERENCE_BUDGET));
+        float minFps = maxFps >= 20 ? 2 : 1;
+        boolean fast = maxFps >= 20;
+
+        // Largest sample count seen rendering within budget, otherwise a guess from inference
+        int samples = fast ? 32 : 16;
+        long budgetUs = (long) (1e6f / TARGET_FPS * RENDER_BUDGET);
+        boolean measured = false;
+        for (int count : DeviceProfile.SAMPLE_COUNTS) {
+            long p95 = profile.getRenderP95Us(count);
+            if (p95 == 0) continue;
+            if (!measured || p95 <= budgetUs) {
+                samples = count;
+                measured = true;
+            }
+        }
+
+        int threads = fast ? TileExecutor.defaultParallelism()
+                : Math.min(2, TileExecutor.defaultParallelism());
+        Log.i(TAG, "Tier from " + profile + ": samples " + samples + ", AI " + minFps + "-"
+                + maxFps + " fps" + (dual ? ", dual" : ""));
+        return new QualityConfig(fast ? 512 : 256, samples, minFps, maxFps, threads,
+                dual ? AIDepthProcessor.PipelineMode.PIPELINED_DUAL
+                        : AIDepthProcessor.PipelineMode.PIPELINED);
+    }
+
+    private static QualityConfig fromMemory(Context context) {
         ActivityManager.MemoryInfo memoryInfo = new ActivityManager.MemoryInfo();
         ActivityManager activityManager = (ActivityManager) context.getSystemService(Context.ACTIVITY_SERVICE);
         if (activityManager != null) {
@@ -38,11 +141,13 @@ public class QualityManager {
         // High End: > 7GB RAM (approx > 7GB technically covering 8GB devices)
         if (totalMemGB > 7) {
              Log.i(TAG, "Tier: HIGH");
-             return new QualityConfig(512, 32, 1);
+             return new QualityConfig(512, 32, 2, 30, TileExecutor.defaultParallelism(),
+                     AIDepthProcessor.PipelineMode.PIPELINED_DUAL);
         } else {
              Log.i(TAG, "Tier: MID/LOW");
              // Helio G99 / Mid range
-             return new QualityConfig(256, 16, 2);
+             return new QualityConfig(256, 16, 1, 15, Math.min(2, TileExecutor.defaultParallelism()),
+                     AIDepthProcessor.PipelineMode.PIPELINED);
         }
     }
 }
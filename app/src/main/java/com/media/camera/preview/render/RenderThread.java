@@ -0,0 +1,156 @@
+package com.media.camera.preview.render;
+
+import android.os.Process;
+import android.util.Log;
+
+import com.media.camera.preview.capture.VideoFrame;
+
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.AtomicReference;
+import java.util.concurrent.locks.LockSupport;
+
+/**
+ * Draws camera frames on a thread of its own, so the camera thread never waits for the GPU.
+ * <p>
+ * Frames are handed over through a single slot mailbox: {@link #post} swaps the frame in and
+ * releases the one it replaces if the render thread had not taken it yet, so the renderer
+ * always draws the newest frame and a slow frame costs at most the frames behind it. Posting
+ * does not lock, and the producer never blocks.
+ * <p>
+ * Work that has to happen on the render thread, such as surface setup, is passed the same way
+ * through {@link #runOnRenderThread}, where a newer task replaces one that has not run yet.
+ */
+final class RenderThread {
+    private static final String TAG = "RenderThread";
+
+    interface FrameRenderer {
+        /** Draws {@code frame} on the render thread, the frame is released afterwards. */
+        void renderFrame(VideoFrame frame);
+    }
+
+    private final String mName;
+    private final FrameRenderer mRenderer;
+    private final AtomicReference<VideoFrame> mMailbox = new AtomicReference<>();
+    private final AtomicReference<Runnable> mTask = new AtomicReference<>();
+    private final AtomicLong mPosted = new AtomicLong();
+    private final AtomicLong mRendered = new AtomicLong();
+    private final AtomicLong mReplaced = new AtomicLong();
+    private final AtomicLong mDropped = new AtomicLong();
+
+    private volatile Thread mThread;
+    private volatile boolean mRunning;
+
+    RenderThread(String name, FrameRenderer renderer) {
+        mName = name;
+        mRenderer = renderer;
+    }
+
+    synchronized void start() {
+        if (mThread != null) return;
+        mRunning = true;
+        mThread = new Thread(this::loop, mName);
+        mThread.start();
+    }
+
+    /** Stops the thread and waits for the frame being drawn, pending frames are released. */
+    synchronized void quit() {
+        Thread thread = mThread;
+        if (thread == null) return;
+        mRunning = false;
+        LockSupport.unpark(thread);
+        try {
+            thread.join();
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+        }
+        mThread = null;
+        VideoFrame pending = mMailbox.getAndSet(null);
+        if (pending != null) {
+            pending.release();
+            mDropped.incrementAndGet();
+        }
+        mTask.set(null);
+    }
+
+    /**
+     * Queues {@code frame} for drawing, retaining it until it is drawn or replaced. Returns
+     * whether it replaced an earlier frame that was not drawn.
+     */
+    boolean post(VideoFrame frame) {
+        Thread thread = mThread;
+        if (thread == null || !mRunning) {
+            mDropped.incrementAndGet();
+            return false;
+        }
+        mPosted.incrementAndGet();
+        VideoFrame replaced = mMailbox.getAndSet(frame.retain());
+        LockSupport.unpark(thread);
+        if (replaced != null) {
+            replaced.release();
+            mReplaced.incrementAndGet();
+        }
+        // Lost a race with quit(), which may already have emptied the mailbox
+        if (!mRunning && mMailbox.compareAndSet(frame, null)) {
+            frame.release();
+            mDropped.incrementAndGet();
+        }
+        return replaced != null;
+    }
+
+    /** Runs {@code task} on the render thread before the next frame. */
+    void runOnRenderThread(Runnable task) {
+        mTask.set(task);
+        Thread thread = mThread;
+        if (thread != null) {
+            LockSupport.unpark(thread);
+        }
+    }
+
+    /** Frames handed to {@link #post} while running. */
+    long getPostedCount() {
+        return mPosted.get();
+    }
+
+    long getRenderedCount() {
+        return mRendered.get();
+    }
+
+    /** Frames replaced in the mailbox by a newer one before they were drawn. */
+    long getReplacedCount() {
+        return mReplaced.get();
+    }
+
+    /** Frames posted while the thread was not running, or pending when it stopped. */
+    long getDroppedCount() {
+        return mDropped.get();
+    }
+
+    private void loop() {
+        Process.setThreadPriority(Process.THREAD_PRIORITY_DISPLAY);
+        while (mRunning) {
+            Runnable task = mTask.getAndSet(null);
+            if (task != null) {
+                task.run();
+            }
+
+            VideoFrame frame = mMailbox.getAndSet(null);
+            if (frame == null) {
+                if (mTask.get() == null) {
+                    // Spurious wakeups just go around the loop
+                    LockSupport.park(this);
+                }
+                continue;
+            }
+            try {
+                mRenderer.renderFrame(frame);
+                mRendered.incrementAndGet();
+            } catch (RuntimeException e) {
+                Log.e(TAG, "Render failed", e);
+            } finally {
+                frame.release();
+            }
+        }
+        Log.i(TAG, mName + ": " + mRendered.get() + " rendered, " + mReplaced.get()
+                + " replaced, " + mDropped.get() + " dropped");
+    }
+}
@@ -1,23 +1,51 @@
 package com.media.camera.preview.render;
 
 import android.content.Context;
+import android.os.Process;
+import android.os.SystemClock;
+import android.util.Log;
+import android.util.Size;
 import androidx.annotation.NonNull;
 import android.view.SurfaceHolder;
 import android.view.SurfaceView;
 
+import com.media.camera.preview.ai.SegmentationEngine;
+import com.media.camera.preview.capture.VideoFrame;
+import com.media.camera.preview.metrics.PipelineMetrics;
+import com.media.camera.preview.metrics.Stage;
+
 public class VKVideoRenderer extends VideoRenderer implements SurfaceHolder.Callback {
+    private static final String TAG = "VKVideoRenderer";
 
     private final Context mContext;
-    private com.media.camera.preview.ai.SegmentationEngine mSegmentationEngine;
+    private SegmentationEngine mSegmentationEngine;
     private QualityManager.QualityConfig mQualityConfig;
+    private final QualityController mQualityController;
+    // Startup timing: time to first frame is measured from the renderer's creation, the log
+    // also gives it from process start
+    private final long mCreatedNs = System.nanoTime();
+    private volatile long mFirstFrameNs;
+    // Segmentation takes the analysis stream instead of preview frames
+    private volatile boolean mAnalysisStream;
+    // Frames are drawn on their own thread, with the orientation of the latest posted one
+    private final RenderThread mRenderThread = new RenderThread("VKRender", this::renderFrame);
+    private volatile int mRotation;
+    private volatile boolean mMirror;
 
     public VKVideoRenderer(Context context) {
         mContext = context;
         mQualityConfig = QualityManager.getQualityConfig(context);
 
-        mSegmentationEngine = new com.media.camera.preview.ai.SegmentationEngine(context, mQualityConfig.aiResolution, mQualityConfig.aiFpsDivisor, (depthData, width, height) -> {
-            updateDepth(depthData, width, height);
+        mSegmentationEngine = new SegmentationEngine(context, mQualityConfig.aiResolution, mQualityConfig.aiMinFps, mQualityConfig.aiMaxFps, mQualityConfig.aiThreads, mQualityConfig.aiPipeline, mask -> {
+            // The mask is copied natively, it can be recycled right away.
+            try {
+                updateDepth(mask.getData(), mask.getWidth(), mask.getHeight());
+            } finally {
+                mask.release();
+            }
         });
+        mQualityController = new QualityController(context, mQualityConfig,
+                QualityManager.getDeviceProfile(context), this::applyQuality);
     }
 
     public void init(SurfaceView surface) {
@@ -44,29 +72,121 @@ public class VKVideoRenderer extends VideoRenderer implements SurfaceHolder.Call
         setQualityParams(samples);
     }
 
+    /** Reports whether portrait masks are available yet, see {@link SegmentationEngine.State}. */
+    public void setSegmentationStateListener(SegmentationEngine.StateListener listener) {
+        mSegmentationEngine.setStateListener(listener);
+    }
+
+    public SegmentationEngine.State getSegmentationState() {
+        return mSegmentationEngine.getState();
+    }
+
+    /** Time from creation to the first drawn camera frame, -1 before it. */
+    public long getTimeToFirstFrameMs() {
+        long first = mFirstFrameNs;
+        return first != 0 ? (first - mCreatedNs) / 1000000 : -1;
+    }
+
+    /** Time from creation to the first segmentation mask, -1 before it. */
+    public long getTimeToFirstMaskMs() {
+        return mSegmentationEngine.getFirstMaskTimeMs();
+    }
+
+    public QualityController getQualityController() {
+        return mQualityController;
+    }
+
+    private void applyQuality(QualityManager.QualityConfig config) {
+        updateQuality(config.sampleCount);
+        if (mSegmentationEngine != null) {
+            mSegmentationEngine.setRates(config.aiMinFps, config.aiMaxFps);
+        }
+    }
+
+    /** Frames replaced in the render mailbox by a newer one before they were drawn. */
+    public long getReplacedFrameCount() {
+        return mRenderThread.getReplacedCount();
+    }
+
+    /** Frames that arrived while there was no surface to draw on. */
+    public long getDroppedFrameCount() {
+        return mRenderThread.getDroppedCount();
+    }
+
+    // Camera thread: hands the frame to the render thread and segmentation, never waits for
+    // the GPU
+    @Override
+    public void drawVideoFrame(VideoFrame frame, int rotation, boolean mirror) {
+        mRotation = rotation;
+        mMirror = mirror;
+        if (mSegmentationEngine != null && !mAnalysisStream) {
+            long start = PipelineMetrics.now();
+            mSegmentationEngine.processFrame(frame, rotation, mirror);
+            PipelineMetrics.getInstance().record(Stage.AI_SUBMIT, start);
+        }
+        if (mRenderThread.post(frame)) {
+            PipelineMetrics.getInstance().recordDrop(Stage.DRAW);
+        }
+    }
+
+    // Render thread
+    private void renderFrame(VideoFrame frame) {
+        long start = PipelineMetrics.now();
+        drawFrame(frame, mRotation, mMirror);
+        long end = PipelineMetrics.getInstance().record(Stage.DRAW, start);
+        if (mFirstFrameNs == 0) {
+            mFirstFrameNs = end;
+            Log.i(TAG, "First frame " + getTimeToFirstFrameMs() + " ms after creation, "
+                    + (SystemClock.elapsedRealtime() - Process.getStartElapsedRealtime())
+                    + " ms after process start");
+        }
+    }
+
+    @Override
+    public Size getAnalysisSize() {
+        // Model input as configured, the preprocessor scales whatever it gets to the tensor
+        return mSegmentationEngine != null
+                ? new Size(mQualityConfig.aiResolution, mQualityConfig.aiResolution) : null;
+    }
+
+    @Override
+    public void setAnalysisStream(boolean enabled) {
+        mAnalysisStream = enabled;
+    }
+
     @Override
-    public void drawVideoFrame(byte[] data, int width, int height, int rotation, boolean mirror) {
-        draw(data, width, height, rotation, mirror);
+    public void analyzeFrame(VideoFrame frame, int rotation, boolean mirror) {
         if (mSegmentationEngine != null) {
-            mSegmentationEngine.processFrame(data, width, height, rotation);
+            long start = PipelineMetrics.now();
+            mSegmentationEngine.processFrame(frame, rotation, mirror);
+            PipelineMetrics.getInstance().record(Stage.AI_SUBMIT, start);
         }
     }
 
     @Override
     public void surfaceCreated(@NonNull SurfaceHolder holder) {
         create(Type.VK_YUV420.getValue());
+        // Pipeline cache, the system clears the code cache when the app is updated
+        setCacheDir(mContext.getCodeCacheDir().getAbsolutePath());
         if (mQualityConfig != null) {
             updateQuality(mQualityConfig.sampleCount);
         }
+        mQualityController.start();
+        mRenderThread.start();
     }
 
     @Override
     public void surfaceChanged(@NonNull SurfaceHolder holder, int format, int width, int height) {
-        init(holder.getSurface(), mContext.getAssets(), width, height);
+        // Swapchain setup happens between two frames on the thread that draws them
+        mRenderThread.runOnRenderThread(() ->
+                init(holder.getSurface(), mContext.getAssets(), width, height));
     }
 
     @Override
     public void surfaceDestroyed(@NonNull SurfaceHolder holder) {
+        // The surface has to be unused once this returns
+        mRenderThread.quit();
+        mQualityController.stop();
         if (mSegmentationEngine != null) {
             mSegmentationEngine.stop();
         }
@@ -1,13 +1,20 @@
 package com.media.camera.preview.render;
 
 import android.content.res.AssetManager;
+import android.util.Size;
 import android.view.Surface;
 
+import com.media.camera.preview.capture.VideoFrame;
+import com.media.camera.preview.metrics.NativeStatsSource;
+import com.media.camera.preview.metrics.PipelineMetrics;
+
+import java.nio.ByteBuffer;
+
 /**
  * Created by oleg on 11/2/17.
  */
 
-public abstract class VideoRenderer {
+public abstract class VideoRenderer implements NativeStatsSource {
     protected enum Type {
         GL_YUV420(0), VK_YUV420(1), GL_YUV420_FILTER(2);
 
@@ -24,6 +31,10 @@ public abstract class VideoRenderer {
 
     private long mNativeContext; // using by native
 
+    protected VideoRenderer() {
+        PipelineMetrics.getInstance().setNativeSource(this);
+    }
+
     protected native void create(int type);
 
     protected native void destroy();
@@ -34,6 +45,11 @@ public abstract class VideoRenderer {
 
     protected native void draw(byte[] data, int width, int height, int rotation, boolean mirror);
 
+    // Reads the planes in place through their direct buffers, U and V share strides.
+    protected native void drawPlanes(ByteBuffer y, ByteBuffer u, ByteBuffer v, int rowStrideY,
+                                     int rowStrideUV, int pixelStrideUV, int width, int height,
+                                     int rotation, boolean mirror);
+
     protected native void setParameters(int params);
 
     protected native int getParameters();
@@ -43,10 +59,54 @@ public abstract class VideoRenderer {
     protected native void setFilter(int filterId);
     protected native void updateDepthData(byte[] data, int width, int height);
     protected native void setQualityParams(int samples);
+    // Directory for caches the native renderer keeps across launches, set before init
+    protected native void setCacheDir(String path);
+
+    @Override
+    public native boolean readStageStats(int nativeStage, long[] counts, long[] totals,
+                                         boolean reset);
+
+    /**
+     * Draws a camera frame. The frame is only guaranteed to be valid for the duration of the
+     * call; implementations that keep it longer have to retain it.
+     */
+    public abstract void drawVideoFrame(VideoFrame frame, int rotation, boolean mirror);
+
+    /**
+     * Smallest frame size segmentation needs, for a separate analysis stream, or {@code null}
+     * when the renderer has no use for one.
+     */
+    public Size getAnalysisSize() {
+        return null;
+    }
 
-    public abstract void drawVideoFrame(byte[] data, int width, int height, int rotation, boolean mirror);
+    /**
+     * Tells the renderer whether {@link #analyzeFrame} receives frames of a separate analysis
+     * stream, in which case preview frames are only drawn.
+     */
+    public void setAnalysisStream(boolean enabled) {
+    }
+
+    /**
+     * Hands a frame of the analysis stream to segmentation, on the camera thread. Same validity
+     * rules as {@link #drawVideoFrame}.
+     */
+    public void analyzeFrame(VideoFrame frame, int rotation, boolean mirror) {
+    }
+
+    protected void drawFrame(VideoFrame frame, int rotation, boolean mirror) {
+        if (frame.hasPlanes()) {
+            drawPlanes(frame.getPlane(VideoFrame.PLANE_Y), frame.getPlane(VideoFrame.PLANE_U),
+                    frame.getPlane(VideoFrame.PLANE_V), frame.getRowStride(VideoFrame.PLANE_Y),
+                    frame.getRowStride(VideoFrame.PLANE_U), frame.getPixelStride(VideoFrame.PLANE_U),
+                    frame.getWidth(), frame.getHeight(), rotation, mirror);
+        } else {
+            draw(frame.getData(), frame.getWidth(), frame.getHeight(), rotation, mirror);
+        }
+    }
 
     public void destroyRenderer() {
+        PipelineMetrics.getInstance().clearNativeSource(this);
         destroy();
     }
 
@@ -0,0 +1,18 @@
+#version 450
+
+#extension GL_ARB_separate_shader_objects : enable
+#extension GL_ARB_shading_language_420pack : enable
+
+layout (binding = 1) uniform sampler2D tex; // Y, Cb, Cr, converted to RGB by the sampler
+layout (location = 0) in vec2 texcoord;
+layout (location = 0) out vec4 uFragColor;
+
+void main() {
+    vec3 rgb = texture(tex, texcoord).rgb;
+    float r = rgb.r;
+    float g = rgb.g;
+    float b = rgb.b;
+
+    // Invert
+    uFragColor = vec4(1.0 - r, 1.0 - g, 1.0 - b, 1.0);
+}
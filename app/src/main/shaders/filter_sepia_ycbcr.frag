@@ -0,0 +1,22 @@
+#version 450
+
+#extension GL_ARB_separate_shader_objects : enable
+#extension GL_ARB_shading_language_420pack : enable
+
+layout (binding = 1) uniform sampler2D tex; // Y, Cb, Cr, converted to RGB by the sampler
+layout (location = 0) in vec2 texcoord;
+layout (location = 0) out vec4 uFragColor;
+
+void main() {
+    vec3 rgb = texture(tex, texcoord).rgb;
+    float r = rgb.r;
+    float g = rgb.g;
+    float b = rgb.b;
+
+    // Sepia
+    float tr = 0.393 * r + 0.769 * g + 0.189 * b;
+    float tg = 0.349 * r + 0.686 * g + 0.168 * b;
+    float tb = 0.272 * r + 0.534 * g + 0.131 * b;
+
+    uFragColor = vec4(clamp(tr, 0.0, 1.0), clamp(tg, 0.0, 1.0), clamp(tb, 0.0, 1.0), 1.0);
+}
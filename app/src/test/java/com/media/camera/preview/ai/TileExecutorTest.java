@@ -0,0 +1,161 @@
+package com.media.camera.preview.ai;
+
+import org.junit.After;
+import org.junit.Test;
+
+import java.nio.ByteBuffer;
+import java.nio.ByteOrder;
+import java.nio.FloatBuffer;
+import java.util.Random;
+import java.util.concurrent.CyclicBarrier;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.atomic.AtomicIntegerArray;
+import java.util.concurrent.atomic.AtomicReference;
+
+import static org.junit.Assert.*;
+
+public class TileExecutorTest {
+
+    private static final int[] TILE_ROWS = {1, 3, 7, 16, 64};
+    // Tile multiples, and counts that leave a partial last tile or fit in one
+    private static final int[] ROW_COUNTS = {1, 6, 16, 17, 100, 257};
+
+    private final TileExecutor mExecutor = new TileExecutor(4, "TileExecutorTest");
+
+    @After
+    public void tearDown() {
+        mExecutor.shutdown();
+    }
+
+    @Test
+    public void tiledRowsMatchSequential() {
+        for (int tileRows : TILE_ROWS) {
+            mExecutor.setTileRows(tileRows);
+            for (int count : ROW_COUNTS) {
+                int[] expected = new int[count];
+                fillRows(expected, 0, count);
+
+                int[] actual = new int[count];
+                AtomicIntegerArray visits = new AtomicIntegerArray(count);
+                AtomicBoolean badWorker = new AtomicBoolean();
+                mExecutor.execute(count, (start, end, worker) -> {
+                    if (worker < 0 || worker >= mExecutor.getParallelism()) badWorker.set(true);
+                    for (int row = start; row < end; row++) {
+                        visits.incrementAndGet(row);
+                    }
+                    fillRows(actual, start, end);
+                });
+
+                String what = count + " rows in tiles of " + tileRows;
+                assertFalse(what + ": worker index out of range", badWorker.get());
+                assertArrayEquals(what, expected, actual);
+                for (int row = 0; row < count; row++) {
+                    assertEquals(what + ", row " + row, 1, visits.get(row));
+                }
+            }
+        }
+    }
+
+    @Test
+    public void tiledPreprocessingMatchesSequential() {
+        // Output heights that are not tile multiples, in both orientations
+        int width = 30;
+        int height = 22;
+        byte[] frame = new byte[64 * 48 * 3 / 2];
+        new Random(1).nextBytes(frame);
+
+        for (int rotation : new int[]{0, 90}) {
+            float[] expected = preprocess(new FramePreprocessor(width, height), frame, rotation);
+            for (int tileRows : TILE_ROWS) {
+                mExecutor.setTileRows(tileRows);
+                FramePreprocessor tiled = new FramePreprocessor(width, height, mExecutor);
+                assertArrayEquals("rotation " + rotation + ", tiles of " + tileRows, expected,
+                        preprocess(tiled, frame, rotation), 0.0f);
+            }
+        }
+    }
+
+    @Test
+    public void concurrentCallersBothComplete() throws Exception {
+        int count = 200;
+        int rounds = 500;
+        mExecutor.setTileRows(4);
+        CyclicBarrier barrier = new CyclicBarrier(2);
+        AtomicReference<Throwable> failure = new AtomicReference<>();
+
+        Thread[] callers = new Thread[2];
+        for (int i = 0; i < callers.length; i++) {
+            callers[i] = new Thread(() -> {
+                try {
+                    for (int round = 0; round < rounds; round++) {
+                        // Each caller writes its own rows, values differ between rounds
+                        int offset = round;
+                        int[] expected = new int[count];
+                        fillRows(expected, 0, count, offset);
+                        int[] actual = new int[count];
+                        barrier.await();
+                        mExecutor.execute(count,
+                                (start, end, worker) -> fillRows(actual, start, end, offset));
+                        assertArrayEquals("round " + round, expected, actual);
+                    }
+                } catch (Throwable t) {
+                    failure.compareAndSet(null, t);
+                    barrier.reset();
+                }
+            }, "Caller-" + i);
+            callers[i].start();
+        }
+
+        for (Thread caller : callers) {
+            caller.join(10000);
+            assertFalse(caller.getName() + " did not complete", caller.isAlive());
+        }
+        if (failure.get() != null) {
+            throw new AssertionError(failure.get());
+        }
+    }
+
+    @Test
+    public void tileExceptionIsRethrown() {
+        mExecutor.setTileRows(8);
+        IllegalStateException thrown = new IllegalStateException("tile failed");
+        try {
+            mExecutor.execute(100, (start, end, worker) -> {
+                if (start <= 50 && 50 < end) throw thrown;
+            });
+            fail("execute() returned after a tile threw");
+        } catch (IllegalStateException e) {
+            assertSame(thrown, e);
+        }
+
+        // The failure does not stick to the next job
+        int[] actual = new int[100];
+        mExecutor.execute(100, (start, end, worker) -> fillRows(actual, start, end));
+        int[] expected = new int[100];
+        fillRows(expected, 0, 100);
+        assertArrayEquals(expected, actual);
+    }
+
+    private static void fillRows(int[] rows, int start, int end) {
+        fillRows(rows, start, end, 0);
+    }
+
+    private static void fillRows(int[] rows, int start, int end, int offset) {
+        for (int row = start; row < end; row++) {
+            rows[row] = row * 31 + offset;
+        }
+    }
+
+    private static float[] preprocess(FramePreprocessor preprocessor, byte[] frame,
+                                      int rotation) {
+        int values = preprocessor.getWidth() * preprocessor.getHeight() * 3;
+        FloatBuffer output = ByteBuffer.allocateDirect(values * 4).order(ByteOrder.nativeOrder())
+                .asFloatBuffer();
+        preprocessor.setOutput(output);
+        preprocessor.processI420(frame, 64, 48, rotation, false);
+        float[] result = new float[values];
+        output.position(0);
+        output.get(result);
+        return result;
+    }
+}
@@ -0,0 +1,104 @@
+package com.media.camera.preview.metrics;
+
+import org.junit.Test;
+
+import java.io.File;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.util.regex.Matcher;
+import java.util.regex.Pattern;
+
+import static org.junit.Assert.*;
+
+public class LatencyHistogramTest {
+
+    // Relative to the module, where Gradle runs unit tests
+    private static final File NATIVE_HEADER = new File("src/main/cpp/PipelineStats.h");
+
+    @Test
+    public void layoutMatchesNativeHistogram() throws Exception {
+        String header = new String(Files.readAllBytes(NATIVE_HEADER.toPath()),
+                StandardCharsets.UTF_8);
+        assertEquals(LatencyHistogram.SUB_BUCKET_BITS, constant(header, "kSubBucketBits"));
+        assertEquals(LatencyHistogram.MAX_EXPONENT, constant(header, "kMaxExponent"));
+        assertEquals(464, LatencyHistogram.BUCKET_COUNT);
+    }
+
+    @Test
+    public void bucketOfKnownValues() {
+        // Exact below two sub bucket ranges, then 16 linear buckets per power of two
+        for (int micros = 0; micros < 32; micros++) {
+            assertEquals(micros, LatencyHistogram.bucketOf(micros));
+        }
+        assertEquals(32, LatencyHistogram.bucketOf(32));
+        assertEquals(32, LatencyHistogram.bucketOf(33));
+        assertEquals(33, LatencyHistogram.bucketOf(34));
+        assertEquals(111, LatencyHistogram.bucketOf(1000));
+        assertEquals(448, LatencyHistogram.bucketOf(1L << 31));
+        assertEquals(463, LatencyHistogram.bucketOf((1L << 32) - 1));
+        // Beyond the last power of two everything lands in the last bucket
+        assertEquals(463, LatencyHistogram.bucketOf(1L << 32));
+        assertEquals(463, LatencyHistogram.bucketOf(Long.MAX_VALUE));
+    }
+
+    @Test
+    public void highestOfBoundsEveryBucket() {
+        long lowest = 0;
+        for (int bucket = 0; bucket < LatencyHistogram.BUCKET_COUNT; bucket++) {
+            long highest = LatencyHistogram.highestOf(bucket);
+            String what = "bucket " + bucket;
+            assertTrue(what, highest >= lowest);
+            // Both ends map back to the bucket, and no bucket is wider than 1/16 of its start
+            assertEquals(what, bucket, LatencyHistogram.bucketOf(lowest));
+            assertEquals(what, bucket, LatencyHistogram.bucketOf(highest));
+            assertTrue(what, highest - lowest <= lowest / LatencyHistogram.SUB_BUCKET_COUNT);
+            lowest = highest + 1;
+        }
+        assertEquals((1L << 32) - 1, LatencyHistogram.highestOf(LatencyHistogram.BUCKET_COUNT - 1));
+    }
+
+    @Test
+    public void valueAtPercentiles() {
+        LatencyHistogram histogram = new LatencyHistogram();
+        for (int micros = 1; micros <= 100; micros++) {
+            histogram.recordNanos(micros * 1000L + 999);
+        }
+        long[] counts = new long[LatencyHistogram.BUCKET_COUNT];
+        long[] totals = new long[3];
+        histogram.read(counts, totals, false);
+        assertEquals(100, totals[0]);
+        assertEquals(5050, totals[1]);
+        assertEquals(100, totals[2]);
+
+        // Highest value of the bucket holding the ranked sample
+        assertEquals(1, LatencyHistogram.valueAt(counts, totals[0], 0));
+        assertEquals(51, LatencyHistogram.valueAt(counts, totals[0], 50));
+        assertEquals(95, LatencyHistogram.valueAt(counts, totals[0], 95));
+        assertEquals(103, LatencyHistogram.valueAt(counts, totals[0], 100));
+        assertEquals(0, LatencyHistogram.valueAt(new long[LatencyHistogram.BUCKET_COUNT], 0, 50));
+    }
+
+    @Test
+    public void readWithResetClears() {
+        LatencyHistogram histogram = new LatencyHistogram();
+        histogram.record(250);
+        histogram.record(-5);
+        long[] counts = new long[LatencyHistogram.BUCKET_COUNT];
+        long[] totals = new long[3];
+        histogram.read(counts, totals, true);
+        assertEquals(2, totals[0]);
+        assertEquals(250, totals[2]);
+        assertEquals(1, counts[0]);
+        assertEquals(1, counts[LatencyHistogram.bucketOf(250)]);
+
+        histogram.read(counts, totals, false);
+        assertArrayEquals(new long[3], totals);
+        assertArrayEquals(new long[LatencyHistogram.BUCKET_COUNT], counts);
+    }
+
+    private static int constant(String header, String name) {
+        Matcher matcher = Pattern.compile(name + "\\s*=\\s*(\\d+)").matcher(header);
+        assertTrue(name + " not found in " + NATIVE_HEADER, matcher.find());
+        return Integer.parseInt(matcher.group(1));
+    }
+}
@@ -0,0 +1,169 @@
+package com.media.camera.preview.render;
+
+import com.media.camera.preview.capture.FramePool;
+import com.media.camera.preview.capture.VideoFrame;
+
+import org.junit.After;
+import org.junit.Test;
+
+import java.util.List;
+import java.util.concurrent.CopyOnWriteArrayList;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.TimeUnit;
+
+import static org.junit.Assert.*;
+
+public class RenderThreadTest {
+
+    private static final long TIMEOUT_MS = 5000;
+
+    // Frames without a camera image, only their references are of interest
+    private final FramePool mPool = new FramePool(16);
+    private final List<VideoFrame> mRendered = new CopyOnWriteArrayList<>();
+    // Holds the renderer inside renderFrame() until released
+    private final CountDownLatch mDrawing = new CountDownLatch(1);
+    private final CountDownLatch mUnblock = new CountDownLatch(1);
+    private volatile boolean mBlockFirst;
+    private RenderThread mThread = new RenderThread("RenderThreadTest", this::render);
+
+    @After
+    public void tearDown() {
+        mUnblock.countDown();
+        mThread.quit();
+    }
+
+    @Test
+    public void postBeforeStartIsDropped() {
+        VideoFrame frame = mPool.acquire(4, 4);
+        assertFalse(mThread.post(frame));
+        frame.release();
+
+        assertEquals(0, mThread.getPostedCount());
+        assertEquals(1, mThread.getDroppedCount());
+        assertEquals(0, mPool.getOutstandingCount());
+    }
+
+    @Test
+    public void newerFrameReplacesPendingOne() throws Exception {
+        mBlockFirst = true;
+        mThread.start();
+
+        VideoFrame first = postAndRelease();
+        assertTrue(mDrawing.await(TIMEOUT_MS, TimeUnit.MILLISECONDS));
+        // The mailbox is empty while the first frame is drawn
+        VideoFrame second = mPool.acquire(4, 4);
+        assertFalse(mThread.post(second));
+        second.release();
+        VideoFrame third = mPool.acquire(4, 4);
+        assertTrue(mThread.post(third));
+        third.release();
+        // The renderer and the mailbox hold a frame each, the replaced one went back to the pool
+        assertEquals(1, mThread.getReplacedCount());
+        assertEquals(2, mPool.getOutstandingCount());
+
+        mUnblock.countDown();
+        awaitRendered(2);
+        mThread.quit();
+
+        assertSame(first, mRendered.get(0));
+        assertSame(third, mRendered.get(1));
+        assertEquals(3, mThread.getPostedCount());
+        assertEquals(2, mThread.getRenderedCount());
+        assertEquals(0, mThread.getDroppedCount());
+        assertEquals(0, mPool.getOutstandingCount());
+    }
+
+    @Test
+    public void quitReleasesPendingFrame() throws Exception {
+        mBlockFirst = true;
+        mThread.start();
+        postAndRelease();
+        assertTrue(mDrawing.await(TIMEOUT_MS, TimeUnit.MILLISECONDS));
+        postAndRelease();
+
+        Thread quitter = new Thread(mThread::quit, "Quitter");
+        quitter.start();
+        // Waiting in join(), so the render loop ends after the frame it is drawing
+        while (quitter.getState() != Thread.State.WAITING && quitter.isAlive()) {
+            Thread.yield();
+        }
+        mUnblock.countDown();
+        quitter.join(TIMEOUT_MS);
+        assertFalse(quitter.isAlive());
+
+        assertEquals(2, mThread.getPostedCount());
+        assertEquals(1, mThread.getRenderedCount());
+        assertEquals(1, mThread.getDroppedCount());
+        assertEquals(0, mPool.getOutstandingCount());
+    }
+
+    @Test
+    public void postAfterQuitIsDropped() {
+        mThread.start();
+        mThread.quit();
+
+        VideoFrame frame = mPool.acquire(4, 4);
+        assertFalse(mThread.post(frame));
+        frame.release();
+
+        assertEquals(0, mThread.getPostedCount());
+        assertEquals(1, mThread.getDroppedCount());
+        assertEquals(0, mPool.getOutstandingCount());
+    }
+
+    @Test
+    public void postRacingQuitReleasesEveryFrame() throws Exception {
+        for (int round = 0; round < 200; round++) {
+            mThread = new RenderThread("RenderThreadTest", this::render);
+            mThread.start();
+            long[] calls = new long[1];
+            Thread producer = new Thread(() -> {
+                for (int i = 0; i < 50; i++) {
+                    VideoFrame frame = mPool.acquire(4, 4);
+                    if (frame == null) continue;
+                    calls[0]++;
+                    mThread.post(frame);
+                    frame.release();
+                }
+            }, "Producer");
+            producer.start();
+            mThread.quit();
+            producer.join(TIMEOUT_MS);
+            assertFalse(producer.isAlive());
+
+            // Every post ends up drawn, replaced or dropped, and released either way
+            String what = "round " + round;
+            assertEquals(what, calls[0], mThread.getRenderedCount() + mThread.getReplacedCount()
+                    + mThread.getDroppedCount());
+            assertEquals(what, 0, mPool.getOutstandingCount());
+        }
+    }
+
+    // Posts a new frame and drops the producer's reference, as the camera thread does
+    private VideoFrame postAndRelease() {
+        VideoFrame frame = mPool.acquire(4, 4);
+        mThread.post(frame);
+        frame.release();
+        return frame;
+    }
+
+    private void render(VideoFrame frame) {
+        mRendered.add(frame);
+        if (mBlockFirst && mRendered.size() == 1) {
+            mDrawing.countDown();
+            try {
+                mUnblock.await(TIMEOUT_MS, TimeUnit.MILLISECONDS);
+            } catch (InterruptedException e) {
+                Thread.currentThread().interrupt();
+            }
+        }
+    }
+
+    private void awaitRendered(int count) throws InterruptedException {
+        long deadline = System.currentTimeMillis() + TIMEOUT_MS;
+        while (mThread.getRenderedCount() < count && System.currentTimeMillis() < deadline) {
+            Thread.sleep(1);
+        }
+        assertEquals(count, mThread.getRenderedCount());
+    }
+}
@@ -0,0 +1,91 @@
+package com.media.camera.preview.benchmark;
+
+import com.media.camera.preview.ai.FramePreprocessor;
+import com.media.camera.preview.ai.TileExecutor;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.TearDown;
+import org.openjdk.jmh.annotations.Warmup;
+
+import java.nio.ByteBuffer;
+import java.nio.ByteOrder;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * YUV to RGB conversion, resize, rotation and tensor fill for the segmentation input, the
+ * replacement of the former {@code convertYUVtoRGBResize} plus the float or quantized copy
+ * into the input buffer.
+ */
+@State(Scope.Thread)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.MICROSECONDS)
+@Warmup(iterations = 3, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(1)
+public class FramePreprocessorBenchmark {
+
+    @Param({"720p", "1080p", "4K"})
+    public String frame;
+
+    @Param({"256", "512"})
+    public int modelSize;
+
+    @Param({"FLOAT32", "UINT8"})
+    public String tensor;
+
+    @Param({"BILINEAR", "AREA"})
+    public FramePreprocessor.Resampling resampling;
+
+    // Threads sharing the rows, 1 runs on the benchmark thread only
+    @Param({"1"})
+    public int threads;
+
+    private SyntheticFrame mFrame;
+    private FramePreprocessor mPreprocessor;
+    private TileExecutor mExecutor;
+    private byte[] mGuide;
+
+    @Setup
+    public void setUp() {
+        mFrame = SyntheticFrame.named(frame, 2, 64);
+        mExecutor = threads > 1 ? new TileExecutor(threads, "Benchmark") : null;
+        mPreprocessor = new FramePreprocessor(modelSize, modelSize, mExecutor);
+        mPreprocessor.setResampling(resampling);
+
+        int values = modelSize * modelSize * 3;
+        if ("UINT8".equals(tensor)) {
+            ByteBuffer input = ByteBuffer.allocateDirect(values);
+            mPreprocessor.setOutput(input, 1.0f / 255.0f, 0, false);
+        } else {
+            ByteBuffer input = ByteBuffer.allocateDirect(values * 4).order(ByteOrder.nativeOrder());
+            mPreprocessor.setOutput(input.asFloatBuffer());
+        }
+        mGuide = new byte[modelSize * modelSize];
+        mPreprocessor.setGuideOutput(mGuide);
+    }
+
+    @TearDown
+    public void tearDown() {
+        if (mExecutor != null) {
+            mExecutor.shutdown();
+        }
+    }
+
+    @Benchmark
+    public byte[] process() {
+        // Sensor mounted at 90 degrees, as on most back cameras
+        mPreprocessor.process(mFrame.planes[0], mFrame.planes[1], mFrame.planes[2],
+                mFrame.rowStrideY, mFrame.rowStrideUV, mFrame.pixelStrideUV, mFrame.width,
+                mFrame.height, 90, false);
+        return mGuide;
+    }
+}
@@ -0,0 +1,57 @@
+package com.media.camera.preview.benchmark;
+
+import com.media.camera.preview.capture.I420Packer;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Packing camera planes into the I420 array handed to consumers that need a byte[].
+ */
+@State(Scope.Thread)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.MICROSECONDS)
+@Warmup(iterations = 3, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(1)
+public class I420PackerBenchmark {
+
+    @Param({"720p", "1080p", "4K"})
+    public String frame;
+
+    // 1 = planar chroma (I420), 2 = interleaved chroma (NV12/NV21)
+    @Param({"1", "2"})
+    public int pixelStride;
+
+    // 1 = tight rows, 64 = rows padded like most camera HALs
+    @Param({"1", "64"})
+    public int rowAlignment;
+
+    private SyntheticFrame mFrame;
+    private final I420Packer mPacker = new I420Packer();
+    private byte[] mData;
+
+    @Setup
+    public void setUp() {
+        mFrame = SyntheticFrame.named(frame, pixelStride, rowAlignment);
+        mData = new byte[mFrame.width * mFrame.height * 3 / 2];
+    }
+
+    @Benchmark
+    public byte[] pack() {
+        mPacker.pack(mFrame.planes, mFrame.rowStrides, mFrame.pixelStrides, mFrame.width,
+                mFrame.height, mData);
+        return mData;
+    }
+}
@@ -0,0 +1,71 @@
+package com.media.camera.preview.benchmark;
+
+import com.media.camera.preview.ai.GuidedFilter;
+import com.media.camera.preview.ai.MaskDecoder;
+import com.media.camera.preview.ai.MaskStabilizer;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+
+import java.util.Random;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Mask kernels around decoding: the placeholder mask used without a model, guided filter edge
+ * refinement and temporal stabilization.
+ */
+@State(Scope.Thread)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.MICROSECONDS)
+@Warmup(iterations = 3, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(1)
+public class MaskBenchmark {
+
+    @Param({"256", "512"})
+    public int modelSize;
+
+    private final GuidedFilter mFilter = new GuidedFilter();
+    private final MaskStabilizer mStabilizer = new MaskStabilizer();
+    private byte[] mSource;
+    private byte[] mGuide;
+    private byte[] mMask;
+
+    @Setup
+    public void setUp() {
+        int pixels = modelSize * modelSize;
+        Random random = new Random(pixels);
+        mSource = MaskDecoder.placeholderMask(modelSize);
+        mGuide = new byte[pixels];
+        random.nextBytes(mGuide);
+        mMask = new byte[pixels];
+    }
+
+    @Benchmark
+    public byte[] placeholderMask() {
+        return MaskDecoder.placeholderMask(modelSize);
+    }
+
+    @Benchmark
+    public byte[] guidedFilter() {
+        System.arraycopy(mSource, 0, mMask, 0, mMask.length);
+        mFilter.apply(mMask, mGuide, modelSize, modelSize);
+        return mMask;
+    }
+
+    @Benchmark
+    public byte[] stabilize() {
+        System.arraycopy(mSource, 0, mMask, 0, mMask.length);
+        mStabilizer.apply(mMask, modelSize, modelSize, 0.0f);
+        return mMask;
+    }
+}
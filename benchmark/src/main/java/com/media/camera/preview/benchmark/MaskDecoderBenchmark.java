@@ -0,0 +1,91 @@
+package com.media.camera.preview.benchmark;
+
+import com.media.camera.preview.ai.MaskDecoder;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+
+import java.nio.ByteBuffer;
+import java.nio.ByteOrder;
+import java.nio.FloatBuffer;
+import java.util.Random;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Model output to mask: sigmoid of float logits and quantized table lookups, written rotated
+ * into frame orientation.
+ */
+@State(Scope.Thread)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.MICROSECONDS)
+@Warmup(iterations = 3, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(1)
+public class MaskDecoderBenchmark {
+
+    @Param({"256", "512"})
+    public int modelSize;
+
+    // Output layout, FLOAT32 or UINT8 with 1 (probability) or 2 (logits) channels
+    @Param({"FLOAT32x2", "FLOAT32x1", "UINT8x2", "UINT8x1"})
+    public String output;
+
+    private MaskDecoder mDecoder;
+    private FloatBuffer mFloats;
+    private ByteBuffer mBytes;
+    private int[] mMaskIndex;
+    private byte[] mMask;
+
+    @Setup
+    public void setUp() {
+        int pixels = modelSize * modelSize;
+        int channels = output.endsWith("x2") ? 2 : 1;
+        Random random = new Random(pixels);
+
+        if (output.startsWith("UINT8")) {
+            mDecoder = MaskDecoder.forQuantized(0.1f, 128, false, channels);
+            mBytes = ByteBuffer.allocateDirect(pixels * channels);
+            for (int i = 0; i < pixels * channels; i++) {
+                mBytes.put(i, (byte) random.nextInt(256));
+            }
+        } else {
+            mDecoder = MaskDecoder.forFloat(channels);
+            mFloats = ByteBuffer.allocateDirect(pixels * channels * 4)
+                    .order(ByteOrder.nativeOrder()).asFloatBuffer();
+            for (int i = 0; i < pixels * channels; i++) {
+                // Logits around the decision boundary, probabilities in [0, 1]
+                mFloats.put(i, channels == 2 ? (float) random.nextGaussian() * 6.0f
+                        : random.nextFloat());
+            }
+        }
+
+        // Rotated by 90 degrees like the app, so the writes are strided
+        mMaskIndex = new int[pixels];
+        for (int y = 0; y < modelSize; y++) {
+            for (int x = 0; x < modelSize; x++) {
+                mMaskIndex[y * modelSize + x] = x * modelSize + (modelSize - 1 - y);
+            }
+        }
+        mMask = new byte[pixels];
+    }
+
+    @Benchmark
+    public byte[] decode() {
+        int pixels = modelSize * modelSize;
+        if (mFloats != null) {
+            mDecoder.decode(mFloats, 0, pixels, mMaskIndex, mMask);
+        } else {
+            mDecoder.decode(mBytes, 0, pixels, mMaskIndex, mMask);
+        }
+        return mMask;
+    }
+}
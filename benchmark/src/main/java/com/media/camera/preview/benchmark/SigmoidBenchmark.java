@@ -0,0 +1,76 @@
+package com.media.camera.preview.benchmark;
+
+import com.media.camera.preview.ai.MaskDecoder;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+
+import java.nio.ByteBuffer;
+import java.nio.ByteOrder;
+import java.nio.FloatBuffer;
+import java.util.Random;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Sigmoid postprocessing of two channel float logits: the table lookup of
+ * {@link MaskDecoder} against a per pixel {@code Math.exp}.
+ */
+@State(Scope.Thread)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.MICROSECONDS)
+@Warmup(iterations = 3, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(1)
+public class SigmoidBenchmark {
+
+    @Param({"256", "512"})
+    public int modelSize;
+
+    private final MaskDecoder mDecoder = MaskDecoder.forFloat(2);
+    private FloatBuffer mLogits;
+    private int[] mMaskIndex;
+    private byte[] mMask;
+
+    @Setup
+    public void setUp() {
+        int pixels = modelSize * modelSize;
+        Random random = new Random(pixels);
+        mLogits = ByteBuffer.allocateDirect(pixels * 2 * 4).order(ByteOrder.nativeOrder())
+                .asFloatBuffer();
+        for (int i = 0; i < pixels * 2; i++) {
+            mLogits.put(i, (float) random.nextGaussian() * 6.0f);
+        }
+        mMaskIndex = new int[pixels];
+        for (int i = 0; i < pixels; i++) {
+            mMaskIndex[i] = i;
+        }
+        mMask = new byte[pixels];
+    }
+
+    @Benchmark
+    public byte[] lookup() {
+        mDecoder.decode(mLogits, 0, modelSize * modelSize, mMaskIndex, mMask);
+        return mMask;
+    }
+
+    @Benchmark
+    public byte[] exact() {
+        int pixels = modelSize * modelSize;
+        for (int i = 0; i < pixels; i++) {
+            float bg = mLogits.get(2 * i);
+            float fg = mLogits.get(2 * i + 1);
+            float prob = (float) (1.0 / (1.0 + Math.exp(bg - fg)));
+            mMask[mMaskIndex[i]] = (byte) (prob * 255);
+        }
+        return mMask;
+    }
+}
@@ -0,0 +1,81 @@
+package com.media.camera.preview.benchmark;
+
+import java.nio.ByteBuffer;
+import java.util.Random;
+
+/**
+ * YUV 420 frame laid out the way a camera {@code Image} exposes it: three direct buffers with
+ * row strides padded to {@code rowAlignment} and chroma either planar ({@code pixelStride} 1)
+ * or interleaved ({@code pixelStride} 2, U and V views into the same buffer as on NV12/NV21
+ * devices). Content is random but fixed per size.
+ */
+final class SyntheticFrame {
+    final int width;
+    final int height;
+    final int rowStrideY;
+    final int rowStrideUV;
+    final int pixelStrideUV;
+    final ByteBuffer[] planes = new ByteBuffer[3];
+    final int[] rowStrides = new int[3];
+    final int[] pixelStrides = new int[3];
+
+    SyntheticFrame(int width, int height, int pixelStride, int rowAlignment) {
+        this.width = width;
+        this.height = height;
+        this.pixelStrideUV = pixelStride;
+        rowStrideY = align(width, rowAlignment);
+        rowStrideUV = align(width / 2 * pixelStride, rowAlignment);
+
+        Random random = new Random(width * 31L + height);
+        planes[0] = fill(ByteBuffer.allocateDirect(rowStrideY * height), random);
+        int chromaRows = height / 2;
+        if (pixelStride == 1) {
+            planes[1] = fill(ByteBuffer.allocateDirect(rowStrideUV * chromaRows), random);
+            planes[2] = fill(ByteBuffer.allocateDirect(rowStrideUV * chromaRows), random);
+        } else {
+            // Like the camera, the last row of the interleaved plane stops at its last sample.
+            ByteBuffer chroma = fill(ByteBuffer.allocateDirect(rowStrideUV * chromaRows), random);
+            chroma.limit(rowStrideUV * (chromaRows - 1) + width - 1);
+            planes[1] = chroma.slice();
+            chroma.position(1);
+            chroma.limit(rowStrideUV * (chromaRows - 1) + width);
+            planes[2] = chroma.slice();
+        }
+
+        rowStrides[0] = rowStrideY;
+        rowStrides[1] = rowStrides[2] = rowStrideUV;
+        pixelStrides[0] = 1;
+        pixelStrides[1] = pixelStrides[2] = pixelStride;
+    }
+
+    /** Width and height of the named preview size. */
+    static int[] sizeOf(String name) {
+        switch (name) {
+            case "720p":
+                return new int[]{1280, 720};
+            case "1080p":
+                return new int[]{1920, 1080};
+            case "4K":
+                return new int[]{3840, 2160};
+            default:
+                throw new IllegalArgumentException("Unknown frame size " + name);
+        }
+    }
+
+    static SyntheticFrame named(String name, int pixelStride, int rowAlignment) {
+        int[] size = sizeOf(name);
+        return new SyntheticFrame(size[0], size[1], pixelStride, rowAlignment);
+    }
+
+    private static int align(int value, int alignment) {
+        return alignment <= 1 ? value : (value + alignment - 1) / alignment * alignment;
+    }
+
+    private static ByteBuffer fill(ByteBuffer buffer, Random random) {
+        byte[] data = new byte[buffer.capacity()];
+        random.nextBytes(data);
+        buffer.put(data);
+        buffer.clear();
+        return buffer;
+    }
+}